@@ -35,6 +35,8 @@ import org.ligerbots.steamworks.subsystems.ProximitySensor;
 import org.ligerbots.steamworks.subsystems.Shooter;
 import org.ligerbots.steamworks.subsystems.SmartDashboardLogger;
 import org.ligerbots.steamworks.subsystems.Stirrer;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.ligerbots.steamworks.subsystems.Vision;
 import org.ligerbots.steamworks.subsystems.Vision.LedState;
 import org.slf4j.Logger;
@@ -115,6 +117,7 @@ public class Robot extends IterativeRobot {
   public static Lights lights;
 
   public static List<SmartDashboardLogger> allSubsystems;
+  public static TelemetryRegistry telemetry;
 
   public static DriveJoystickCommand driveJoystickCommand;
   public static OperatorInterface operatorInterface;
@@ -122,9 +125,10 @@ public class Robot extends IterativeRobot {
   public static CanDeviceFinder deviceFinder;
 
   private static final Logger logger = LoggerFactory.getLogger(Robot.class);
-  private static long nanosAtLastUpdate = 0;
   
   long prevNanos = System.nanoTime();
+  double cycleMillis;
+  double ourMillis;
   
   long autoModePrintNanos;
   
@@ -162,6 +166,11 @@ public class Robot extends IterativeRobot {
       lights = new Lights();
       allSubsystems = Arrays.asList(driveTrain, vision, shooter, feeder, stirrer, gearManipulator,
           intake, pneumatics, proximitySensor, pdpSubsystem, lights);
+
+      telemetry = new TelemetryRegistry();
+      allSubsystems.forEach(this::tryToRegisterTelemetry);
+      telemetry.addNumber("cycleMillis", Rate.FAST, 0.5, () -> cycleMillis);
+      telemetry.addNumber("ourTime", Rate.FAST, 0.5, () -> ourMillis);
   
       driveJoystickCommand = new DriveJoystickCommand();
       operatorInterface = new OperatorInterface();
@@ -180,7 +189,7 @@ public class Robot extends IterativeRobot {
           }
   
           if (!DriverStation.getInstance().isDSAttached()) {
-            vision.setVisionEnabled(false);
+            vision.releaseAllVision();
           }
         }
       });
@@ -200,17 +209,17 @@ public class Robot extends IterativeRobot {
       final long start = System.nanoTime();
       logger.trace("robotPeriodic()");
       Scheduler.getInstance().run();
+      // turn phone processing on and off for whatever commands are running now
+      vision.updateVisionEnabled();
   
       long currentNanos = System.nanoTime();
+      cycleMillis = (currentNanos - prevNanos) / 1000000.0;
+      prevNanos = currentNanos;
       
-      if (currentNanos - nanosAtLastUpdate > RobotMap.SMARTDASHBOARD_UPDATE_RATE * 1000000000) {
-        allSubsystems.forEach(this::tryToSendDataToSmartDashboard);
-        nanosAtLastUpdate = currentNanos;
-      }
+      telemetry.flush(currentNanos);
       
-      SmartDashboard.putNumber("cycleMillis", (currentNanos - prevNanos) / 1000000.0);
-      SmartDashboard.putNumber("ourTime", (currentNanos - start) / 1000000.0);
-      prevNanos = currentNanos;
+      // includes the flush, so it reaches the dashboard one cycle late
+      ourMillis = (System.nanoTime() - start) / 1000000.0;
     } catch (Throwable ex) {
       logger.error("robotPeriodic error", ex);
       ex.printStackTrace();
@@ -218,15 +227,17 @@ public class Robot extends IterativeRobot {
   }
 
   /**
-   * Call {@link SmartDashboardLogger#sendDataToSmartDashboard()} but with exception handling.
+   * Call {@link SmartDashboardLogger#registerTelemetry(TelemetryRegistry)} but with exception
+   * handling.
    * 
    * @param logger The logger to call the method on
    */
-  public void tryToSendDataToSmartDashboard(SmartDashboardLogger logger) {
+  public void tryToRegisterTelemetry(SmartDashboardLogger logger) {
     try {
-      logger.sendDataToSmartDashboard();
+      logger.registerTelemetry(telemetry);
     } catch (Throwable ex) {
-      Robot.logger.debug("Error in tryToSendDataToSmartDashboard", ex);
+      Robot.logger.error("Could not register telemetry for " + logger.getClass().getSimpleName(),
+          ex);
       ex.printStackTrace();
     }
   }
@@ -239,6 +250,8 @@ public class Robot extends IterativeRobot {
   public void disabledInit() {
     try {
       logger.trace("disabledInit()");
+      // commands run by other commands don't always get to let go of the phones
+      vision.releaseAllVision();
     } catch (Throwable ex) {
       logger.error("disabledInit error", ex);
       ex.printStackTrace();
@@ -250,7 +263,6 @@ public class Robot extends IterativeRobot {
     try {
       SmartDashboard.putNumber("wpilibOverhead", (System.nanoTime() - prevNanos) / 1000000.0);
       logger.trace("disabledPeriodic()");
-      vision.setVisionEnabled(false);
       
       if (System.nanoTime() - autoModePrintNanos > 2_000_000_000) {
         autoModePrintNanos = System.nanoTime();
@@ -331,7 +343,6 @@ public class Robot extends IterativeRobot {
       // 2. (auto|teleop|disabled)Periodic
       // 3. robotPeriodic()
       SmartDashboard.putNumber("wpilibOverhead", (System.nanoTime() - prevNanos) / 1000000.0);
-      vision.setVisionEnabled(true);
       
       if (System.nanoTime() - nanosAutoStart > 5_000_000_000L) {
         intake.setIntakeOn(false);
@@ -379,13 +390,25 @@ public class Robot extends IterativeRobot {
     try {
       SmartDashboard.putNumber("wpilibOverhead", (System.nanoTime() - prevNanos) / 1000000.0);
       logger.trace("teleopPeriodic()");
-      vision.setVisionEnabled(true);
     } catch (Throwable ex) {
       logger.error("teleopPeriodic error", ex);
       ex.printStackTrace();
     }
   }
 
+  @Override
+  public void testInit() {
+    try {
+      logger.trace("testInit()");
+      // for tuning the phones, until the robot is disabled again
+      vision.requestVision(Vision.Phone.GEAR, this);
+      vision.requestVision(Vision.Phone.BOILER, this);
+    } catch (Throwable ex) {
+      logger.error("testInit error", ex);
+      ex.printStackTrace();
+    }
+  }
+
   /**
    * This function is called periodically during test mode.
    */
@@ -394,7 +417,6 @@ public class Robot extends IterativeRobot {
     try {
       logger.trace("testPeriodic()");
       LiveWindow.run();
-      vision.setVisionEnabled(true);
     } catch (Throwable ex) {
       logger.error("testPeriodic error", ex);
       ex.printStackTrace();
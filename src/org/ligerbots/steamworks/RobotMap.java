@@ -20,6 +20,13 @@ public class RobotMap {
   
   public static final boolean IS_ROADKILL = new File("/home/lvuser/roadkill").exists();
   public static final boolean IS_SECOND_ROBOT = new File("/home/lvuser/eviltwin").exists();
+  // record every vision packet to /home/lvuser for replay later
+  public static final boolean VISION_RECORD = new File("/home/lvuser/recordvision").exists();
+  public static final long VISION_RECORD_MAX_BYTES = 256L * 1024 * 1024;
+  // keep the last few minutes of camera frames in /home/lvuser/stream_ring.bin
+  public static final boolean VISION_STREAM_RING =
+      new File("/home/lvuser/recordstream").exists();
+  public static final int VISION_STREAM_RING_BYTES = 64 * 1024 * 1024;
   
   public static final int PCM_CAN_ID = 9;
 
@@ -153,6 +160,16 @@ public class RobotMap {
   @Preference
   public static double AUTO_TURN_ACCEPTABLE_ERROR = 1.5; // Degrees
   @Preference
+  public static double HEADING_LOCK_P = 0.02; // turn output per degree of heading error
+  @Preference
+  public static double ODOMETRY_RATE_HZ = 100; // dead reckoning updates per second
+  @Preference
+  public static boolean ODOMETRY_ARC_INTEGRATION = true; // false for the old straight line steps
+  @Preference
+  public static boolean ODOMETRY_FUSION_ENABLED = false; // let the IMU override slipping wheels
+  @Preference
+  public static boolean GYRO_BIAS_CORRECTION_ENABLED = true; // take out NavX drift learned at rest
+  @Preference
   public static double SMARTDASHBOARD_UPDATE_RATE = 0.1; //Seconds per update
   @Preference
   public static double AUTO_DRIVE_ACCEPTABLE_ERROR = 2.0; // in
@@ -203,6 +220,13 @@ public class RobotMap {
 
   @Preference
   public static double JOYSTICK_DRIVE_DEAD_AREA = 0.05;
+
+  @Preference
+  public static double VISION_STREAM_MAX_MBPS = 2.0; // megabits per second to the DS
+  @Preference
+  public static boolean VISION_FALLBACK_ENABLED = true; // find targets ourselves if a phone dies
+  @Preference
+  public static boolean VISION_POSE_CORRECTION_ENABLED = true; // fix odometry drift with targets
   
   /**
    * Sets up Preferences variables. Must be called first in robotInit().
@@ -1,34 +1,42 @@
 package org.ligerbots.steamworks.commands;
 
-import org.ligerbots.steamworks.FieldPosition;
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.DriveTrain;
 import org.ligerbots.steamworks.subsystems.DriveTrain.ShiftType;
-import org.ligerbots.steamworks.subsystems.Vision.VisionData;
+import org.ligerbots.steamworks.subsystems.Vision;
+import org.ligerbots.steamworks.subsystems.Vision.TargetEstimate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This command automatically gets vision data, begins to spin up shooter while aligning, and then
- * shoots when everything is ready.
+ * shoots when everything is ready. Aiming holds a field heading with the drive train's heading
+ * lock, so the robot turns at the NavX rate instead of turning, stopping and looking again; new
+ * boiler frames only move the heading it's holding.
  */
 public class AlignBoilerAndShootCommand extends StatefulCommand {
   private static final Logger logger = LoggerFactory.getLogger(AlignBoilerAndShootCommand.class);
 
-  private static final long WAIT_NANOS = 250_000_000;
+  // same as the old 0.01 tolerance on centerY
+  private static final double AIM_TOLERANCE = 0.01 * 24 / 0.5;
+  // the range of distances the old 0.508 to 0.518 centerX window allowed
+  private static final double MIN_SHOOTING_DISTANCE = Vision.getBoilerDistance(0.518);
+  private static final double MAX_SHOOTING_DISTANCE = Vision.getBoilerDistance(0.508);
 
   enum State {
-    WAIT_FOR_VISION, START_TURN, TURNING, SHOOT, DONE, ABORTED, DRIVE_TO_RANGE
+    WAIT_FOR_VISION, AIMING, SHOOT, DONE, ABORTED, DRIVE_TO_RANGE
   }
 
   State currentState;
-  TurnCommand turnCommand;
   ShooterFeederCommand shooterFeederCommand;
+  final TargetEstimate boilerTarget = new TargetEstimate();
+  final DriveTrain.Pose robotPosition = new DriveTrain.Pose();
 
-  boolean justStarted;
-  long nanosStartOfWait;
-  double currentAngle;
-  double angleToBoiler;
+  boolean haveTarget;
+  long lastTargetUpdateCount;
+  double headingToBoiler;
+  double distanceToTarget;
   long startTime;
 
   /**
@@ -38,21 +46,23 @@ public class AlignBoilerAndShootCommand extends StatefulCommand {
     requires(Robot.driveTrain);
     requires(Robot.shooter);
     requires(Robot.feeder);
-    turnCommand = new TurnCommand(0.0); // fill in actual angle from Vision
   }
 
   @Override
   protected void initialize() {
     logger.info("Initialize, state=WAIT_FOR_VISION");
     currentState = State.WAIT_FOR_VISION;
+    Robot.vision.requestVision(Vision.Phone.BOILER, this);
+    haveTarget = false;
+    lastTargetUpdateCount = -1;
 
-    shooterFeederCommand = new ShooterFeederCommand(0);
+    // spin up while aiming, so both finish together
+    shooterFeederCommand = new ShooterFeederCommand(RobotMap.SHOOTING_RPM);
     shooterFeederCommand.initialize();
     shooterFeederCommand.setWithholdShooting(true);
     
     Robot.driveTrain.shift(ShiftType.DOWN);
     
-    justStarted = true;
     startTime = System.nanoTime();
   }
 
@@ -70,121 +80,57 @@ public class AlignBoilerAndShootCommand extends StatefulCommand {
       currentState = State.DONE;
     }
 
+    readBoilerTarget();
+
     switch (currentState) {
       case WAIT_FOR_VISION:
         Robot.driveTrain.rawThrottleTurnDrive(0, 0);
-        if ((justStarted || System.nanoTime() - nanosStartOfWait >= WAIT_NANOS)
-            && Robot.vision.isBoilerVisionDataValid()) {
-          VisionData data = Robot.vision.getBoilerVisionData();
-          // phone is rotated, so Y is actually the axis that would be zero if aligned
-          double cx = data.getCenterX();
-          double cy = data.getCenterY();
-          logger.info(String.format("cx %f, cy %f", cx, cy));
-          
-          double boilerCenterHeight = (FieldPosition.BOILER_LOW_VISION_TARGET_BOTTOM + 5.0)
-              - RobotMap.BOILER_CAMERA_HEIGHT;
-          // use small angle approximation to turn image position into angle from the camera's
-          // center of frame. Nexus 5 half-vertical-FOV is 60deg/2 = 30deg
-          // use 0.62 for cx 0.49 for cy
-          double angleOnCamera = (cx - 0.5) * 30 / 0.5;
-          double angleFromGround = angleOnCamera + RobotMap.VISION_BOILER_CAMERA_ANGLE;
-          double distanceToTarget = boilerCenterHeight / Math.tan(Math.toRadians(angleFromGround));
-          angleToBoiler = - ((cy - 0.5) * 24 / 0.5);
-          
-          logger.info(String.format("distance %f", distanceToTarget));
-          
-          if (Math.abs(cy - 0.5) >= 0.01) {
-            currentState = State.START_TURN;
-            Robot.driveTrain.shift(ShiftType.DOWN);
-            justStarted = false;
-            logger.info(String.format("state=START_TURN, cy=%5.2f, angleToBoiler=%5.2f", cy,
-                angleToBoiler));
-          } else if (cx < 0.508 || cx > 0.518) {
+        if (haveTarget) {
+          logger.info(String.format("state=AIMING, distance %f, heading %f", distanceToTarget,
+              headingToBoiler));
+          currentState = State.AIMING;
+        }
+        break;
+      case AIMING:
+        if (!haveTarget) {
+          lostTarget();
+          break;
+        }
+        Robot.driveTrain.lockHeading(headingToBoiler, 0, AIM_TOLERANCE);
+        if (Robot.driveTrain.isHeadingLockOnTarget(AIM_TOLERANCE)) {
+          if (distanceToTarget < MIN_SHOOTING_DISTANCE
+              || distanceToTarget > MAX_SHOOTING_DISTANCE) {
             currentState = State.DRIVE_TO_RANGE;
-            justStarted = false;
-            logger.info(String.format("state=DRIVE_TO_RANGE, cx=%5.2f, distance=%5.2f", cx,
-                distanceToTarget));
+            logger.info(String.format("state=DRIVE_TO_RANGE, distance=%5.2f", distanceToTarget));
           } else {
-            // calculate shooter rpm
-            double calculatedRpm = RobotMap.SHOOTING_RPM;
-            logger.info(String.format("Shooter rpm: %f", calculatedRpm));
-            shooterFeederCommand.setRpm(calculatedRpm);
-            
             shooterFeederCommand.setWithholdShooting(false);
             currentState = State.SHOOT;
-            justStarted = false;
             logger.info(String.format("state=SHOOT, time to prepare=%5.2f seconds", 
                                       (System.nanoTime() - startTime) / RobotMap.NANOS_PER_SECOND));
           }
         }
         break;
-      case START_TURN:
-        if (!Robot.vision.isBoilerVisionDataValid()) {
-          Robot.driveTrain.rawThrottleTurnDrive(0, 0);
-          logger.info("Lost vision, state=WAIT_FOR_VISION");
-          nanosStartOfWait = System.nanoTime();
-          currentState = State.WAIT_FOR_VISION;
-        } else {
-          // we got data from WAIT_FOR_VISION
-
-          turnCommand.setParameters(angleToBoiler, 0.3, 0.25);
-          turnCommand.initialize();
-          
-          currentState = State.TURNING;
-        }
-        // fall through
-      case TURNING:
-        turnCommand.execute();
-        if (turnCommand.isFinished()) {
-          turnCommand.end();
-          currentState = State.WAIT_FOR_VISION;
-        }
-
-         
-        /*
-         * old way based on constant feedback from Vision
-        // VisionData data = Robot.vision.getBoilerVisionData();
-          if (Math.abs(data.getCenterY() - 0.5) < 0.01) {
-            Robot.driveTrain.rawThrottleTurnDrive(0, 0);
-            logger.info("Completed turn, state=WAIT_FOR_VISION");
-            nanosStartOfWait = System.nanoTime();
-            currentState = State.WAIT_FOR_VISION;
-          }
-          
-          double turn = RobotMap.AUTO_BOILER_TURN_SPEED
-              + Math.abs(data.getCenterY() - 0.5) * (1 - RobotMap.AUTO_BOILER_TURN_SPEED);
-          if (Math.abs(data.getCenterY() - 0.5) < 0.2) {
-            turn = RobotMap.AUTO_BOILER_TURN_SPEED;
-          }
-          // turn clockwise if necessary, otherwise counterclockwise
-          if (data.getCenterY() < 0.5) {
-            turn = -turn;
-          }
-          Robot.driveTrain.rawThrottleTurnDrive(0, turn);
-        } */
-        break;
       case DRIVE_TO_RANGE:
-        if (!Robot.vision.isBoilerVisionDataValid()) {
-          Robot.driveTrain.rawThrottleTurnDrive(0, 0);
-          logger.info("Lost vision, state=WAIT_FOR_VISION");
-          nanosStartOfWait = System.nanoTime();
-          currentState = State.WAIT_FOR_VISION;
+        // keep holding the heading while backing up or closing in
+        if (!haveTarget) {
+          lostTarget();
+        } else if (distanceToTarget < MIN_SHOOTING_DISTANCE) {
+          Robot.driveTrain.lockHeading(headingToBoiler, RobotMap.AUTO_DRIVE_MIN_SPEED_LOW,
+              AIM_TOLERANCE);
+        } else if (distanceToTarget > MAX_SHOOTING_DISTANCE) {
+          Robot.driveTrain.lockHeading(headingToBoiler, -RobotMap.AUTO_DRIVE_MIN_SPEED_LOW,
+              AIM_TOLERANCE);
         } else {
-          VisionData data = Robot.vision.getBoilerVisionData();
-          double cx = data.getCenterX();
-          
-          if (cx > 0.518) {
-            Robot.driveTrain.rawThrottleTurnDrive(RobotMap.AUTO_DRIVE_MIN_SPEED_LOW, 0);
-          } else if (cx < 0.508) {
-            Robot.driveTrain.rawThrottleTurnDrive(-RobotMap.AUTO_DRIVE_MIN_SPEED_LOW, 0);
-          } else {
-            currentState = State.WAIT_FOR_VISION;
-            nanosStartOfWait = System.nanoTime();
-            logger.info("state=WAIT_FOR_VISION");
-          }
+          currentState = State.AIMING;
+          logger.info("state=AIMING");
         }
         break;
+      case SHOOT:
+        // hold the aim while the balls go out
+        Robot.driveTrain.lockHeading(headingToBoiler, 0, AIM_TOLERANCE);
+        break;
       default:
+        Robot.driveTrain.unlockHeading();
         Robot.driveTrain.rawThrottleTurnDrive(0, 0);
         break;
     }
@@ -206,7 +152,9 @@ public class AlignBoilerAndShootCommand extends StatefulCommand {
 
     logger.info("Finish");
     shooterFeederCommand.end();
+    Robot.vision.releaseVision(Vision.Phone.BOILER, this);
 
+    Robot.driveTrain.unlockHeading();
     Robot.driveTrain.rawThrottleTurnDrive(0, 0);
   }
 
@@ -216,10 +164,46 @@ public class AlignBoilerAndShootCommand extends StatefulCommand {
 
     logger.warn("Interrupted");
     shooterFeederCommand.interrupted();
+    Robot.vision.releaseVision(Vision.Phone.BOILER, this);
 
+    Robot.driveTrain.unlockHeading();
     Robot.driveTrain.rawThrottleTurnDrive(0, 0);
   }
 
+  /**
+   * Stops and waits for the boiler again, since the distance can't be trusted any more.
+   */
+  private void lostTarget() {
+    Robot.driveTrain.unlockHeading();
+    Robot.driveTrain.rawThrottleTurnDrive(0, 0);
+    logger.info("Lost vision, state=WAIT_FOR_VISION");
+    currentState = State.WAIT_FOR_VISION;
+  }
+
+  /**
+   * Gets the filtered boiler position and works out how far away it is. The field heading to aim
+   * at only changes when there's a new frame; in between, the heading lock holds it. If the
+   * estimate stops being confident, there's no target until it's confident again.
+   */
+  private void readBoilerTarget() {
+    Robot.vision.getBoilerTarget(boilerTarget);
+    if (!boilerTarget.isConfident()) {
+      haveTarget = false;
+      lastTargetUpdateCount = -1;
+      return;
+    }
+
+    Robot.driveTrain.getPose(robotPosition);
+    double dx = boilerTarget.getX() - robotPosition.getX();
+    double dy = boilerTarget.getY() - robotPosition.getY();
+    distanceToTarget = Math.sqrt(dx * dx + dy * dy);
+    if (boilerTarget.getUpdateCount() != lastTargetUpdateCount) {
+      lastTargetUpdateCount = boilerTarget.getUpdateCount();
+      headingToBoiler = DriveTrain.fixDegrees(Math.toDegrees(Math.atan2(dx, dy)));
+      haveTarget = true;
+    }
+  }
+
   @Override
   protected String getState() {
     return currentState.toString();
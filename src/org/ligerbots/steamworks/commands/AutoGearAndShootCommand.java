@@ -5,7 +5,7 @@ import org.ligerbots.steamworks.FieldMap.FieldSide;
 import org.ligerbots.steamworks.FieldPosition;
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
-import org.ligerbots.steamworks.RobotPosition;
+import org.ligerbots.steamworks.subsystems.DriveTrain;
 import org.ligerbots.steamworks.subsystems.GearManipulator;
 import org.ligerbots.steamworks.subsystems.Vision;
 import org.slf4j.Logger;
@@ -37,6 +37,7 @@ public class AutoGearAndShootCommand extends StatefulCommand {
 
   DrivePathCommand driveToGear;
   AccessibleCommand driveToBoiler;
+  final DriveTrain.Pose pose = new DriveTrain.Pose();
   
   boolean doGear;
   boolean doShoot;
@@ -60,6 +61,14 @@ public class AutoGearAndShootCommand extends StatefulCommand {
   }
 
   protected void initialize() {
+    // turn the phones on now, so they're warmed up by the time the gear or boiler command needs them
+    if (doGear) {
+      Robot.vision.requestVision(Vision.Phone.GEAR, this);
+    }
+    if (doShoot) {
+      Robot.vision.requestVision(Vision.Phone.BOILER, this);
+    }
+
     FieldSide startingPosition = Robot.operatorInterface.getStartingPosition();
     if (doGear) {
       FieldSide gearLiftPosition = Robot.operatorInterface.getGearLiftPosition();
@@ -178,9 +187,9 @@ public class AutoGearAndShootCommand extends StatefulCommand {
   }
   
   private TurnCommand generateAlign(FieldPosition targetPosition) {
-    RobotPosition pos = Robot.driveTrain.getRobotPosition();
-    double angle = 90 - pos.angleTo(targetPosition);
-    return new TurnCommand(angle - pos.getDirection(),  RobotMap.AUTO_TURN_ACCEPTABLE_ERROR);
+    Robot.driveTrain.getPose(pose);
+    double angle = 90 - pose.angleTo(targetPosition);
+    return new TurnCommand(angle - pose.getDirection(),  RobotMap.AUTO_TURN_ACCEPTABLE_ERROR);
   }
   
   private void generateBoilerAlign() {
@@ -201,6 +210,7 @@ public class AutoGearAndShootCommand extends StatefulCommand {
     super.end();
     logger.info("Finish");
 
+    releaseVision();
     Robot.driveTrain.rawThrottleTurnDrive(0, 0);
     Robot.shooter.setShooterRpm(0);
     Robot.feeder.setFeeder(0);
@@ -211,12 +221,21 @@ public class AutoGearAndShootCommand extends StatefulCommand {
     super.interrupted();
     logger.warn("Interrupted");
 
+    releaseVision();
     Robot.driveTrain.rawThrottleTurnDrive(0, 0);
     Robot.shooter.setShooterRpm(0);
     Robot.feeder.setFeeder(0);
     Robot.gearManipulator.setPosition(GearManipulator.Position.CLOSED);
   }
 
+  private void releaseVision() {
+    Robot.vision.releaseVision(Vision.Phone.GEAR, this);
+    Robot.vision.releaseVision(Vision.Phone.BOILER, this);
+    // in case this was interrupted in the middle of one of them
+    Robot.vision.releaseVision(Vision.Phone.GEAR, gearCommand);
+    Robot.vision.releaseVision(Vision.Phone.BOILER, boilerCommand);
+  }
+
   @Override
   protected String getState() {
     return currentState.toString();
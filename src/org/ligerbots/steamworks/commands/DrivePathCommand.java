@@ -4,7 +4,6 @@ import java.util.List;
 import org.ligerbots.steamworks.FieldPosition;
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
-import org.ligerbots.steamworks.RobotPosition;
 import org.ligerbots.steamworks.subsystems.DriveTrain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,7 +20,7 @@ public class DrivePathCommand extends AccessibleCommand {
   boolean driveForward;
   double angleError;
 
-  RobotPosition currentPosition;
+  final DriveTrain.Pose currentPosition = new DriveTrain.Pose();
   FieldPosition currentWaypoint;
 
   boolean isHighGear;
@@ -79,13 +78,13 @@ public class DrivePathCommand extends AccessibleCommand {
   }
 
   protected void execute() {
-    currentPosition = Robot.driveTrain.getRobotPosition();
+    Robot.driveTrain.getPose(currentPosition);
 
     // TODO: inefficient, do we care?
     double minDist = Double.MAX_VALUE;
     int minDistPointIndex = waypointIndex;
     for (int i = 0; i < waypoints.size(); i++) {
-      double dist = waypoints.get(i).distanceTo(currentPosition);
+      double dist = currentPosition.distanceTo(waypoints.get(i));
       if (dist < minDist) {
         minDist = dist;
         minDistPointIndex = i;
@@ -5,12 +5,12 @@ import java.util.List;
 import org.ligerbots.steamworks.FieldMap;
 import org.ligerbots.steamworks.FieldPosition;
 import org.ligerbots.steamworks.Robot;
-import org.ligerbots.steamworks.RobotMap;
 import org.ligerbots.steamworks.RobotPosition;
 import org.ligerbots.steamworks.subsystems.DriveTrain;
 import org.ligerbots.steamworks.subsystems.GearManipulator;
 import org.ligerbots.steamworks.subsystems.GearManipulator.Position;
-import org.ligerbots.steamworks.subsystems.Vision.VisionData;
+import org.ligerbots.steamworks.subsystems.Vision;
+import org.ligerbots.steamworks.subsystems.Vision.TargetEstimate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,7 +20,6 @@ import org.slf4j.LoggerFactory;
 public class DriveToFeederCommand extends StatefulCommand {
   private static final Logger logger = LoggerFactory.getLogger(DriveToFeederCommand.class);
   
-  private static final long WAIT_VISION_NANOS = 100_000_000;
   private static final long MAX_WAIT_VISION_NANOS = 2_000_000_000;
   
   enum State {
@@ -39,6 +38,11 @@ public class DriveToFeederCommand extends StatefulCommand {
   DriveUltrasonicCommand driveUltrasonicCommand;
   TurnCommand turnCommand;
   double finalAngle;
+  final TargetEstimate gearTarget = new TargetEstimate();
+  final DriveTrain.Pose robotPosition = new DriveTrain.Pose();
+  double targetX;
+  double targetZ;
+  double targetYaw;
 
   /**
    * Creates a new DriveToFeederCommand.
@@ -52,6 +56,7 @@ public class DriveToFeederCommand extends StatefulCommand {
 
   protected void initialize() {
     Robot.gearManipulator.setPosition(Position.CLOSED);
+    Robot.vision.requestVision(Vision.Phone.GEAR, this);
     
     logger.info("Initialize, state=VISION");
     currentState = State.VISION;
@@ -64,14 +69,13 @@ public class DriveToFeederCommand extends StatefulCommand {
     switch (currentState) {
       case VISION:
         Robot.driveTrain.rawThrottleTurnDrive(0, 0);
-        if (System.nanoTime() - nanosAtWaitForVisionStart >= WAIT_VISION_NANOS
-            && Robot.vision.isGearVisionDataValid()) {
-          // get current vision data
-          VisionData data = Robot.vision.getGearVisionData();
+        // act as soon as the filtered target is good enough; it's in field coordinates, so there's
+        // no need to wait for the robot to settle
+        if (readGearTarget()) {
   
-          double tx = data.getTvecX();
-          double tz = data.getTvecZ() + RobotMap.ROBOT_GEAR_CAM_TURN_CENTER_DIST;
-          double ry = data.getRvecYaw();
+          double tx = targetX;
+          double tz = targetZ;
+          double ry = targetYaw;
   
           logger.debug(String.format("tx: %f, tz: %f, ry: %f", tx, tz, ry));
           
@@ -150,7 +154,8 @@ public class DriveToFeederCommand extends StatefulCommand {
             currentState = State.PATH_DRIVE;
             logger.info("state=PATH_DRIVE");
           }
-        } else if (System.nanoTime() - nanosAtWaitForVisionStart >= MAX_WAIT_VISION_NANOS) {
+        } else if (System.nanoTime() - nanosAtWaitForVisionStart >= MAX_WAIT_VISION_NANOS
+            && Robot.vision.isVisionWarmedUp(Vision.Phone.GEAR)) {
           logger.info("state=ABORTED");
           currentState = State.ABORTED;
         }
@@ -161,7 +166,7 @@ public class DriveToFeederCommand extends StatefulCommand {
           initialDriveCommand.end();
   
           turnCommand = new TurnCommand(DriveTrain
-              .fixDegrees(finalAngle - Robot.driveTrain.getRobotPosition().getDirection()));
+              .fixDegrees(finalAngle - Robot.driveTrain.getYaw()));
           turnCommand.initialize();
           logger.info("state=TURN_BACK_ON_TARGET");
           currentState = State.TURN_BACK_ON_TARGET;
@@ -205,6 +210,7 @@ public class DriveToFeederCommand extends StatefulCommand {
   protected void end() {
     super.end();
     
+    Robot.vision.releaseVision(Vision.Phone.GEAR, this);
     Robot.gearManipulator.setPosition(GearManipulator.Position.RECEIVE_GEAR);
     
     logger.info("Finish");
@@ -214,10 +220,30 @@ public class DriveToFeederCommand extends StatefulCommand {
   protected void interrupted() {
     super.interrupted();
     
+    Robot.vision.releaseVision(Vision.Phone.GEAR, this);
     logger.info("Interrupted");
     Robot.driveTrain.rawThrottleTurnDrive(0, 0);
   }
 
+  /**
+   * Gets the filtered gear target and works out where it is from where the robot is now, the same
+   * way the gear camera would see it but measured from the turn center.
+   * 
+   * @return False if the target estimate isn't confident yet
+   */
+  private boolean readGearTarget() {
+    Robot.vision.getGearTarget(gearTarget);
+    if (!gearTarget.isConfident()) {
+      return false;
+    }
+
+    Robot.driveTrain.getPose(robotPosition);
+    targetX = gearTarget.getRobotFrameX(robotPosition);
+    targetZ = gearTarget.getRobotFrameZ(robotPosition);
+    targetYaw = gearTarget.getRobotFrameYaw(robotPosition);
+    return true;
+  }
+
   @Override
   protected String getState() {
     return currentState.toString();
@@ -12,7 +12,8 @@ import org.ligerbots.steamworks.subsystems.DriveTrain;
 import org.ligerbots.steamworks.subsystems.GearManipulator;
 import org.ligerbots.steamworks.subsystems.GearManipulator.GearOrientation;
 import org.ligerbots.steamworks.subsystems.GearManipulator.Position;
-import org.ligerbots.steamworks.subsystems.Vision.VisionData;
+import org.ligerbots.steamworks.subsystems.Vision;
+import org.ligerbots.steamworks.subsystems.Vision.TargetEstimate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,7 +25,6 @@ import org.slf4j.LoggerFactory;
 public class DriveToGearCommand extends StatefulCommand {
   private static final Logger logger = LoggerFactory.getLogger(DriveToGearCommand.class);
 
-  private static final long WAIT_VISION_NANOS = 100_000_000;
   private static final long MAX_WAIT_VISION_NANOS = 2_000_000_000;
   private static final long WAIT_GEAR_NANOS = 1_000_000_000;
   private static final long DELAY_GEAR_NANOS = 250_000_000;
@@ -61,6 +61,12 @@ public class DriveToGearCommand extends StatefulCommand {
   TankDriveCommand tankDrive;
   
   boolean approachedPegFromRight;
+  
+  final TargetEstimate gearTarget = new TargetEstimate();
+  final DriveTrain.Pose robotPosition = new DriveTrain.Pose();
+  double targetX;
+  double targetZ;
+  double targetYaw;
 
   /**
    * Creates a new DriveToGearCommand.
@@ -81,6 +87,7 @@ public class DriveToGearCommand extends StatefulCommand {
     nanosAtCloseToTarget = -1;
     
     if (!deliverOnly) {
+      Robot.vision.requestVision(Vision.Phone.GEAR, this);
       logger.info("Initialize, state=VISION");
       currentState = State.VISION;
       nanosAtWaitForVisionStart = System.nanoTime();
@@ -102,14 +109,13 @@ public class DriveToGearCommand extends StatefulCommand {
     switch (currentState) {
       case VISION:
         Robot.driveTrain.rawThrottleTurnDrive(0, 0);
-        if (System.nanoTime() - nanosAtWaitForVisionStart >= WAIT_VISION_NANOS
-            && Robot.vision.isGearVisionDataValid()) {
-          // get current vision data
-          VisionData data = Robot.vision.getGearVisionData();
+        // act as soon as the filtered target is good enough; it's in field coordinates, so there's
+        // no need to wait for the robot to settle
+        if (readGearTarget()) {
 
-          double tx = data.getTvecX();
-          double tz = data.getTvecZ() + RobotMap.ROBOT_GEAR_CAM_TURN_CENTER_DIST;
-          double ry = data.getRvecYaw();
+          double tx = targetX;
+          double tz = targetZ;
+          double ry = targetYaw;
 
           logger.debug(String.format("tx: %f, tz: %f, ry: %f", tx, tz, ry));
           
@@ -229,7 +235,8 @@ public class DriveToGearCommand extends StatefulCommand {
             currentState = State.INITIAL_DRIVE;
             logger.info("state=INITIAL_DRIVE");
           }
-        } else if (System.nanoTime() - nanosAtWaitForVisionStart >= MAX_WAIT_VISION_NANOS) {
+        } else if (System.nanoTime() - nanosAtWaitForVisionStart >= MAX_WAIT_VISION_NANOS
+            && Robot.vision.isVisionWarmedUp(Vision.Phone.GEAR)) {
           logger.info("state=ABORTED");
           currentState = State.ABORTED;
         }
@@ -273,7 +280,7 @@ public class DriveToGearCommand extends StatefulCommand {
           // }
 
           turnCommand = new TurnCommand(DriveTrain
-              .fixDegrees(finalAngle - Robot.driveTrain.getRobotPosition().getDirection()));
+              .fixDegrees(finalAngle - Robot.driveTrain.getYaw()));
           turnCommand.initialize();
           logger.info("state=TURN_BACK_ON_TARGET");
           currentState = State.TURN_BACK_ON_TARGET;
@@ -379,6 +386,7 @@ public class DriveToGearCommand extends StatefulCommand {
   protected void end() {
     super.end();
     
+    Robot.vision.releaseVision(Vision.Phone.GEAR, this);
     Robot.gearManipulator.setPosition(GearManipulator.Position.CLOSED);
     
     logger.info("Finish");
@@ -388,12 +396,32 @@ public class DriveToGearCommand extends StatefulCommand {
   protected void interrupted() {
     super.interrupted();
     
+    Robot.vision.releaseVision(Vision.Phone.GEAR, this);
     Robot.gearManipulator.setPosition(GearManipulator.Position.CLOSED);
     
     logger.info("Interrupted");
     Robot.driveTrain.rawThrottleTurnDrive(0, 0);
   }
 
+  /**
+   * Gets the filtered gear target and works out where it is from where the robot is now, the same
+   * way the gear camera would see it but measured from the turn center.
+   * 
+   * @return False if the target estimate isn't confident yet
+   */
+  private boolean readGearTarget() {
+    Robot.vision.getGearTarget(gearTarget);
+    if (!gearTarget.isConfident()) {
+      return false;
+    }
+
+    Robot.driveTrain.getPose(robotPosition);
+    targetX = gearTarget.getRobotFrameX(robotPosition);
+    targetZ = gearTarget.getRobotFrameZ(robotPosition);
+    targetYaw = gearTarget.getRobotFrameYaw(robotPosition);
+    return true;
+  }
+
   @Override
   protected String getState() {
     return currentState.toString();
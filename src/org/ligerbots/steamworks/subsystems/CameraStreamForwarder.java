@@ -0,0 +1,369 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * Forwards camera frames from the phones to the DS using a small pool of direct buffers. Frames are
+ * received straight into a pooled buffer and that same buffer is handed to send(), so a frame is
+ * never copied, even when it goes to more than one dashboard. If the phones send faster than we can
+ * forward, only the newest frame from each camera is kept and the rest are counted as dropped.
+ *
+ * <p>
+ * The field radio caps how much the robot can send to the DS, so frames go through a token bucket
+ * filled at RobotMap.VISION_STREAM_MAX_MBPS. A frame that doesn't fit is thrown away rather than
+ * delayed, which lowers the frame rate instead of adding latency, and leaves room for control and
+ * NetworkTables packets.
+ * </p>
+ *
+ * <p>
+ * Everything must be called from the vision network thread. The counters can be read from any
+ * thread.
+ * </p>
+ */
+class CameraStreamForwarder {
+  static final int STREAM_GEAR = 0;
+  static final int STREAM_BOILER = 1;
+
+  // one pending frame per camera, plus one to receive into
+  private static final int POOL_SIZE = 3;
+  // code byte + magic int + length int
+  private static final int HEADER_LENGTH = 9;
+  // how much unused bandwidth can be saved up, so one big frame after a quiet spell still goes out
+  private static final double BURST_SECONDS = 0.1;
+  private static final int MIN_BURST_BYTES = 65536;
+
+  /**
+   * Frame counters for one camera. Every received frame ends up forwarded, dropped (a newer frame
+   * replaced it before it went to every dashboard), skipped (nobody is watching that camera) or
+   * throttled (it would have gone over the bandwidth ceiling).
+   */
+  static class StreamCounters {
+    final String name;
+    volatile long received;
+    volatile long forwarded;
+    volatile long dropped;
+    volatile long skipped;
+    volatile long throttled;
+    volatile long forwardedBytes;
+    volatile long lastLatencyNanos;
+    volatile long maxLatencyNanos;
+
+    StreamCounters(String name) {
+      this.name = name;
+    }
+
+    void registerTelemetry(TelemetryRegistry telemetry) {
+      // the frame rate and bitrate actually forwarded
+      telemetry.addRate(name + "_Fps", Rate.NORMAL, 0.1, 1, () -> forwarded);
+      telemetry.addRate(name + "_Mbps", Rate.NORMAL, 0.01, 8 / 1e6, () -> forwardedBytes);
+      telemetry.addNumber(name + "_Received", Rate.NORMAL, () -> received);
+      telemetry.addNumber(name + "_Forwarded", Rate.NORMAL, () -> forwarded);
+      telemetry.addNumber(name + "_Dropped", Rate.NORMAL, () -> dropped);
+      telemetry.addNumber(name + "_Skipped", Rate.NORMAL, () -> skipped);
+      telemetry.addNumber(name + "_Throttled", Rate.NORMAL, () -> throttled);
+      telemetry.addNumber(name + "_Latency_Ms", Rate.NORMAL, 0.1, () -> lastLatencyNanos / 1e6);
+      telemetry.addNumber(name + "_Max_Latency_Ms", Rate.NORMAL, 0.1,
+          () -> maxLatencyNanos / 1e6);
+    }
+  }
+
+  private final StreamCounters[] counters;
+  volatile long controlPackets;
+
+  private final Vision.PortStats portStats;
+  private final byte codeGear;
+  private final byte codeBoiler;
+  private final int magicNumber;
+
+  private final ByteBuffer[] freeBuffers = new ByteBuffer[POOL_SIZE];
+  private int freeCount;
+
+  // the newest frame from each camera, so one phone's frames never push out the other's
+  private final ByteBuffer[] pending = new ByteBuffer[2];
+  private final long[] pendingReceiveNanos = new long[2];
+  // how far sending each pending frame to each dashboard has got, for when the send buffer fills
+  private final StreamSubscribers.Subscriber[][] pendingSubscribers =
+      new StreamSubscribers.Subscriber[2][];
+  private final int[] pendingStart = new int[2];
+  private final int[] nextSubscriber = new int[2];
+  private final boolean[] pendingSent = new boolean[2];
+
+  private final SocketAddress[] senders = new SocketAddress[2];
+
+  private double tokens = MIN_BURST_BYTES;
+  private long lastRefillNanos = System.nanoTime();
+
+  private SelectionKey selectionKey;
+  private VisionPacketRecorder recorder;
+  private FallbackTargetDetector fallbackDetector;
+  private StreamRingRecorder ringRecorder;
+
+  /**
+   * Creates the forwarder and its buffer pool.
+   *
+   * @param portStats The stream port's packet counters
+   * @param counters The frame counters, indexed by stream
+   * @param bufferSize The size of each pooled buffer, at least the largest frame packet
+   * @param codeGear The data code byte of gear camera frames
+   * @param codeBoiler The data code byte of boiler camera frames
+   * @param magicNumber The magic number that marks a packet as a camera frame
+   */
+  CameraStreamForwarder(Vision.PortStats portStats, StreamCounters[] counters, int bufferSize,
+      byte codeGear, byte codeBoiler, int magicNumber) {
+    this.portStats = portStats;
+    this.counters = counters;
+    this.codeGear = codeGear;
+    this.codeBoiler = codeBoiler;
+    this.magicNumber = magicNumber;
+    for (int i = 0; i < POOL_SIZE; i++) {
+      freeBuffers[freeCount++] = ByteBuffer.allocateDirect(bufferSize);
+    }
+  }
+
+  /**
+   * Sets the key the stream channel is registered with, so the forwarder can ask for OP_WRITE when
+   * the socket's send buffer is full.
+   *
+   * @param selectionKey The stream channel's key
+   */
+  void setSelectionKey(SelectionKey selectionKey) {
+    this.selectionKey = selectionKey;
+  }
+
+  /**
+   * Sets where to record every received packet, or null to stop recording.
+   *
+   * @param recorder The recorder
+   */
+  void setRecorder(VisionPacketRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  /**
+   * Sets where to keep the last few minutes of frames, or null to not keep them.
+   *
+   * @param ringRecorder The ring recorder
+   */
+  void setRingRecorder(StreamRingRecorder ringRecorder) {
+    this.ringRecorder = ringRecorder;
+  }
+
+  /**
+   * Sets where to send the occasional frame for onboard target detection, or null for nowhere.
+   *
+   * @param fallbackDetector The detector
+   */
+  void setFallbackDetector(FallbackTargetDetector fallbackDetector) {
+    this.fallbackDetector = fallbackDetector;
+  }
+
+  /**
+   * Receives every packet that is waiting on the channel. Camera frames replace the pending frame
+   * from the same camera; anything else is a control packet from the dashboard and is ignored.
+   *
+   * @param channel The stream channel
+   * @return The address of the last phone that sent a frame, or null if none arrived
+   */
+  SocketAddress receive(DatagramChannel channel) throws IOException {
+    SocketAddress lastFrom = null;
+    while (true) {
+      ByteBuffer buffer = freeBuffers[--freeCount];
+      buffer.clear();
+      SocketAddress from = channel.receive(buffer);
+      if (from == null) {
+        freeBuffers[freeCount++] = buffer;
+        return lastFrom;
+      }
+      long receiveNanos = System.nanoTime();
+      portStats.packets++;
+
+      buffer.flip();
+      if (recorder != null) {
+        recorder.record(VisionPacketRecorder.PORT_STREAM, receiveNanos, buffer);
+      }
+      int stream = classify(buffer);
+      if (stream < 0) {
+        // probably the dashboard sending the resolution and fps settings
+        controlPackets++;
+        freeBuffers[freeCount++] = buffer;
+        continue;
+      }
+
+      counters[stream].received++;
+      senders[stream] = from;
+      // both of these want just the JPEG
+      buffer.position(HEADER_LENGTH);
+      if (ringRecorder != null) {
+        ringRecorder.record(stream, receiveNanos, buffer);
+      }
+      if (fallbackDetector != null && fallbackDetector.wants(stream, receiveNanos)) {
+        fallbackDetector.offer(stream, receiveNanos, buffer);
+      }
+      buffer.position(1);
+      if (pending[stream] != null) {
+        counters[stream].dropped++;
+        releasePending(stream);
+      }
+      pending[stream] = buffer;
+      pendingReceiveNanos[stream] = receiveNanos;
+      lastFrom = from;
+    }
+  }
+
+  /**
+   * Gets the address of the phone that last sent a frame for a camera.
+   *
+   * @param stream STREAM_GEAR or STREAM_BOILER
+   * @return The phone's address, or null if it hasn't sent anything yet
+   */
+  SocketAddress getSender(int stream) {
+    return senders[stream];
+  }
+
+  /**
+   * Works out which camera a packet came from, and sets its limit to the end of the frame.
+   *
+   * @return STREAM_GEAR, STREAM_BOILER, or -1 if it's not a camera frame
+   */
+  private int classify(ByteBuffer buffer) {
+    if (buffer.remaining() < HEADER_LENGTH) {
+      return -1;
+    }
+    byte dataCode = buffer.get(0);
+    int magic = buffer.getInt(1);
+    int length = buffer.getInt(5);
+    if (magic != magicNumber || length < 0 || length > buffer.remaining() - HEADER_LENGTH) {
+      return -1;
+    }
+    // forward a packet of the same length as the frame, minus our code byte
+    buffer.position(1);
+    buffer.limit(length + HEADER_LENGTH);
+    if (dataCode == codeGear) {
+      return STREAM_GEAR;
+    } else if (dataCode == codeBoiler) {
+      return STREAM_BOILER;
+    }
+    return -1;
+  }
+
+  /**
+   * Sends the pending frames to every dashboard. The camera the driver isn't watching is skipped.
+   * Each send starts from the same buffer. A dashboard whose sends fail is left out for a while,
+   * backing off longer each time. OP_WRITE is only asked for while a frame is stuck behind a full
+   * send buffer, since a writable UDP socket would otherwise wake select() all the time.
+   *
+   * @param channel The stream channel
+   * @param subscribers The dashboards to send to
+   * @param wantedStream Which camera the driver is watching
+   */
+  void forward(DatagramChannel channel, StreamSubscribers.Subscriber[] subscribers,
+      int wantedStream) throws IOException {
+    boolean blocked = false;
+    for (int stream = 0; stream < pending.length && !blocked; stream++) {
+      if (pending[stream] != null) {
+        blocked = !forward(channel, stream, subscribers, stream == wantedStream);
+      }
+    }
+    selectionKey.interestOps(
+        blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+  }
+
+  /**
+   * Sends or throws away one camera's pending frame.
+   *
+   * @return False if the send buffer filled up before the frame went to every dashboard
+   */
+  private boolean forward(DatagramChannel channel, int stream,
+      StreamSubscribers.Subscriber[] subscribers, boolean wanted) throws IOException {
+    ByteBuffer frame = pending[stream];
+    StreamCounters streamCounters = counters[stream];
+    long now = System.nanoTime();
+    if (pendingSubscribers[stream] == null) {
+      // a new frame
+      if (subscribers.length == 0 || !wanted) {
+        streamCounters.skipped++;
+        releasePending(stream);
+        return true;
+      }
+
+      if (!refillTokens()) {
+        streamCounters.throttled++;
+        releasePending(stream);
+        return true;
+      }
+      pendingSubscribers[stream] = subscribers;
+      pendingStart[stream] = frame.position();
+    }
+
+    StreamSubscribers.Subscriber[] frameSubscribers = pendingSubscribers[stream];
+    int length = frame.limit() - pendingStart[stream];
+    while (nextSubscriber[stream] < frameSubscribers.length) {
+      StreamSubscribers.Subscriber subscriber = frameSubscribers[nextSubscriber[stream]];
+      if (!subscriber.isReady(now)) {
+        subscriber.backedOff++;
+        nextSubscriber[stream]++;
+        continue;
+      }
+
+      frame.position(pendingStart[stream]);
+      try {
+        if (channel.send(frame, subscriber.address) == 0) {
+          // the socket's send buffer is full, so try again once it drains
+          return false;
+        }
+        subscriber.onSent(length);
+        streamCounters.forwardedBytes += length;
+        tokens -= length;
+        pendingSent[stream] = true;
+      } catch (IOException ex) {
+        // usually no route to that dashboard any more
+        subscriber.onError(now);
+      }
+      nextSubscriber[stream]++;
+    }
+
+    if (pendingSent[stream]) {
+      long latency = System.nanoTime() - pendingReceiveNanos[stream];
+      streamCounters.forwarded++;
+      streamCounters.lastLatencyNanos = latency;
+      if (latency > streamCounters.maxLatencyNanos) {
+        streamCounters.maxLatencyNanos = latency;
+      }
+    }
+    releasePending(stream);
+    return true;
+  }
+
+  /**
+   * Refills the token bucket and checks whether a new frame may start. The tokens are only taken
+   * as the frame is actually sent, since a full send buffer means it'll be tried again. A frame
+   * may go out whenever the bucket isn't in debt, and the bucket goes negative by however much it
+   * cost, so a frame to several dashboards that's bigger than the bucket still goes out, and the
+   * frames after it are throttled until the debt is repaid. That keeps the average under the
+   * ceiling without stopping the stream when one frame can never fit.
+   *
+   * @return True if the frame can be sent
+   */
+  private boolean refillTokens() {
+    long now = System.nanoTime();
+    double bytesPerSecond = RobotMap.VISION_STREAM_MAX_MBPS * 1e6 / 8;
+    double burst = Math.max(MIN_BURST_BYTES, bytesPerSecond * BURST_SECONDS);
+    tokens = Math.min(burst, tokens + bytesPerSecond * (now - lastRefillNanos) / 1e9);
+    lastRefillNanos = now;
+    return tokens > 0;
+  }
+
+  private void releasePending(int stream) {
+    freeBuffers[freeCount++] = pending[stream];
+    pending[stream] = null;
+    pendingSubscribers[stream] = null;
+    nextSubscriber[stream] = 0;
+    pendingSent[stream] = false;
+  }
+}
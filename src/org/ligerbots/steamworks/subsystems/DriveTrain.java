@@ -7,6 +7,7 @@ import edu.wpi.first.wpilibj.DoubleSolenoid;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.RobotDrive;
 import edu.wpi.first.wpilibj.SPI;
+import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.command.Subsystem;
 import edu.wpi.first.wpilibj.networktables.NetworkTable;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
@@ -17,6 +18,7 @@ import org.ligerbots.steamworks.FieldPosition;
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
 import org.ligerbots.steamworks.RobotPosition;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +43,68 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
     LEFT, RIGHT
   }
 
+  /**
+   * A consistent copy of the dead reckoning pose. Keep one per command and fill it with
+   * {@link DriveTrain#getPose(Pose)} every cycle, so reading the pose doesn't allocate.
+   */
+  public static class Pose {
+    double x;
+    double y;
+    double direction;
+    long nanos;
+
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    /**
+     * Gets the direction the robot is facing.
+     * 
+     * @return Degrees clockwise from +y, NavX convention
+     */
+    public double getDirection() {
+      return direction;
+    }
+
+    /**
+     * Gets when the pose was worked out.
+     * 
+     * @return The time, in System.nanoTime() nanoseconds
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * Same as FieldPosition.distanceTo().
+     */
+    public double distanceTo(FieldPosition other) {
+      double dx = other.getX() - x;
+      double dy = other.getY() - y;
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Same as FieldPosition.angleTo(), counterclockwise from +x.
+     */
+    public double angleTo(FieldPosition other) {
+      return Math.toDegrees(Math.atan2(other.getY() - y, other.getX() - x));
+    }
+
+    public RobotPosition toRobotPosition() {
+      return new RobotPosition(x, y, direction);
+    }
+
+    @Override
+    public String toString() {
+      return "Pose [direction=" + direction + ", x=" + x + ", y=" + y + "]";
+    }
+  }
+
   CANTalon leftMaster;
   CANTalon leftSlave;
   CANTalon rightMaster;
@@ -54,8 +118,45 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
   double positionX;
   double positionY;
   double rotation;
+  // the pose as of the last update, for other threads. Writes are serialized by updatePosition()
+  // and setPosition() being synchronized.
+  private final SequenceLock poseLock = new SequenceLock();
+  private volatile double publishedX;
+  private volatile double publishedY;
+  private volatile double publishedDirection;
+  private volatile long publishedNanos;
+  private final Pose dashboardPose = new Pose();
+  private final double[] odometryStep = new double[2];
+  // at least two seconds at up to 200Hz, longer than any vision frame stays valid
+  final PoseHistory poseHistory = new PoseHistory(400);
+  final VisionLocalizer localizer = new VisionLocalizer();
+  final OdometryEngine odometry = new OdometryEngine(this);
+  final PoseEstimator poseEstimator = new PoseEstimator();
+  final GyroBiasEstimator gyroBias = new GyroBiasEstimator();
+  // vision corrections waiting for the odometry thread to apply them, guarded by correctionLock
+  private final Object correctionLock = new Object();
+  private double pendingCorrectionX;
+  private double pendingCorrectionY;
   double absoluteDistanceTraveled;
 
+  // heading lock, set by the main thread and driven from the odometry thread
+  // if the owner stops refreshing it for this long, it lets go and stops the motors
+  private static final long HEADING_LOCK_TIMEOUT_NANOS = 100_000_000L;
+  // once inside the tolerance, don't turn again until the error is this many times the tolerance,
+  // or the minimum turn speed kicks it back and forth across the target
+  private static final double HEADING_LOCK_RESUME_FACTOR = 2;
+  // updates in a row inside the tolerance before the lock counts as settled, 100ms at 100Hz
+  private static final int HEADING_LOCK_SETTLE_UPDATES = 10;
+  private final Object headingLockSync = new Object();
+  private volatile boolean headingLocked;
+  private volatile double headingLockTarget;
+  private volatile double headingLockThrottle;
+  private volatile double headingLockTolerance;
+  private volatile double headingLockError;
+  private volatile long headingLockRefreshNanos;
+  private volatile boolean headingLockHolding;
+  private volatile int headingLockSettledUpdates;
+
   double prevEncoderLeft;
   double prevEncoderRight;
   DriverStation driverStation;
@@ -142,13 +243,20 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
     if (SmartDashboard.containsKey("Robot_y")) {
       positionY = SmartDashboard.getNumber("Robot_y", positionY);
     }
+    publishPose(System.nanoTime());
 
     // new firmware supports 200hz
     navX = new AHRS(SPI.Port.kMXP, (byte) 200);
     navX.registerCallback(
         (long systemTimestamp, long sensorTimestamp, AHRSUpdateBase sensorData, Object context) -> {
-          updatePosition(sensorData.yaw);
+          // the NavX stamps samples with the FPGA clock in milliseconds; how long ago that was
+          // moves the stamp onto System.nanoTime(), which everything else uses
+          long ageNanos = (long) (Timer.getFPGATimestamp() * RobotMap.NANOS_PER_SECOND)
+              - systemTimestamp * 1_000_000L;
+          odometry.onNavxSample(System.nanoTime() - Math.max(0, ageNanos), sensorData.yaw,
+              sensorData.linear_accel_x, sensorData.linear_accel_y);
         }, new Object());
+    odometry.start();
 
     calibrateYaw();
   }
@@ -167,6 +275,8 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
     talon.setD(1.0);
     talon.setPosition(0);
     talon.enableBrakeMode(true);
+    // getPosition() reads the feedback frame, so send it as often as the odometry runs
+    talon.setStatusFrameRateMs(CANTalon.StatusFrameRate.Feedback, 10);
   }
 
   private void configureSlave(CANTalon talon, int masterId) {
@@ -195,7 +305,7 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
    * @param quickTurn true to override constant-curvature turning behavior
    */
   public void joystickDrive(double throttle, double turn, boolean quickTurn) {
-    if (isHoldingPosition) {
+    if (isHoldingPosition || headingLocked) {
       return;
     }
     
@@ -247,7 +357,7 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
    * @param right Right side value
    */
   public void rawTankDrive(double left, double right) {
-    if (isHoldingPosition) {
+    if (isHoldingPosition || headingLocked) {
       return;
     }
     
@@ -265,10 +375,15 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
    * @param turn turn is the horizontal axis
    */
   public void rawThrottleTurnDrive(double throttle, double turn) {
-    if (isHoldingPosition) {
+    if (isHoldingPosition || headingLocked) {
       return;
     }
     
+    arcadeDrive(throttle, turn);
+    onDriveCommand();
+  }
+
+  private void arcadeDrive(double throttle, double turn) {
     if (!RobotMap.IS_ROADKILL) {
       throttle = -throttle;
       turn = -turn;
@@ -278,6 +393,17 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
     robotDrive.arcadeDrive(throttle, turn, false);
   }
 
+  /**
+   * Tells the vision latency tracker a command has decided how to drive. Only called from the main
+   * thread, since the tracker's drive histograms have to have a single writer.
+   */
+  private void onDriveCommand() {
+    Vision vision = Robot.vision;
+    if (vision != null) {
+      vision.latency.onDrive(System.nanoTime());
+    }
+  }
+
   /**
    * Sets raw left and right motor values. DOES NOT flip direction for production robot.
    * 
@@ -285,13 +411,114 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
    * @param right The right value
    */
   public void rawLeftRightDrive(double left, double right) {
-    if (isHoldingPosition) {
+    if (isHoldingPosition || headingLocked) {
       return;
     }
     
     robotDrive.setLeftRightMotorOutputs(left, right);
   }
 
+  /**
+   * Turns to and holds a field heading, closing the loop on the NavX at the odometry rate instead
+   * of once per command cycle. Drive calls are ignored while the heading is locked. Must
+   * be called every cycle to keep the lock; if it isn't, the lock lets go by itself.
+   * 
+   * @param heading The field heading to hold, NavX convention
+   * @param throttle The throttle to drive with while turning, like rawThrottleTurnDrive()
+   * @param tolerance How many degrees off the heading is close enough to stop turning
+   */
+  public void lockHeading(double heading, double throttle, double tolerance) {
+    headingLockTarget = fixDegrees(heading);
+    headingLockThrottle = throttle;
+    headingLockTolerance = tolerance;
+    headingLockRefreshNanos = System.nanoTime();
+    if (!headingLocked) {
+      headingLockError = getHeadingError(headingLockTarget);
+      headingLockHolding = false;
+      headingLockSettledUpdates = 0;
+      headingLocked = true;
+    }
+    // the odometry thread drives toward this heading from its next update on
+    onDriveCommand();
+  }
+
+  /**
+   * Lets go of the heading and stops the motors. Safe to call when the heading isn't locked.
+   */
+  public void unlockHeading() {
+    synchronized (headingLockSync) {
+      if (headingLocked) {
+        headingLocked = false;
+        arcadeDrive(0, 0);
+      }
+    }
+  }
+
+  /**
+   * Checks whether a heading lock has settled, so a heading that's only passing through the
+   * target on its way past doesn't count.
+   * 
+   * @param tolerance How many degrees off the heading is allowed to be
+   * @return True if the heading is locked, within tolerance of the target, and has stayed within
+   *         the lock's own tolerance for several updates in a row
+   */
+  public boolean isHeadingLockOnTarget(double tolerance) {
+    return headingLocked && Math.abs(headingLockError) < tolerance
+        && headingLockSettledUpdates >= HEADING_LOCK_SETTLE_UPDATES;
+  }
+
+  /**
+   * Runs one step of the heading lock. Called on the odometry thread after every update.
+   */
+  private void driveHeadingLock() {
+    synchronized (headingLockSync) {
+      if (!headingLocked) {
+        return;
+      }
+      if (System.nanoTime() - headingLockRefreshNanos > HEADING_LOCK_TIMEOUT_NANOS) {
+        logger.warn("Heading lock not refreshed, letting go");
+        headingLocked = false;
+        arcadeDrive(0, 0);
+        return;
+      }
+
+      double error = getHeadingError(headingLockTarget);
+      headingLockError = error;
+      double magnitude = Math.abs(error);
+      if (magnitude < headingLockTolerance) {
+        headingLockHolding = true;
+        headingLockSettledUpdates++;
+      } else {
+        headingLockSettledUpdates = 0;
+        if (magnitude >= headingLockTolerance * HEADING_LOCK_RESUME_FACTOR) {
+          headingLockHolding = false;
+        }
+      }
+
+      double turn = 0;
+      if (!headingLockHolding) {
+        turn = Math.min(RobotMap.AUTO_TURN_MAX_SPEED_LOW,
+            Math.max(RobotMap.AUTO_TURN_MIN_SPEED_LOW, magnitude * RobotMap.HEADING_LOCK_P));
+      }
+      // clockwise is a negative turn
+      arcadeDrive(headingLockThrottle, error > 0 ? -turn : turn);
+    }
+  }
+
+  /**
+   * Gets how far the robot has to turn to face a heading, the short way around.
+   * 
+   * @param heading The field heading, NavX convention
+   * @return The error in degrees, clockwise positive, from -180 to 180
+   */
+  private double getHeadingError(double heading) {
+    double error = fixDegrees(heading - getYaw());
+    if (error > 180) {
+      error -= 360;
+    }
+    return error;
+  }
+
   public void setBrakeOn(boolean brakeOn) {
     Arrays.asList(leftMaster, leftSlave, rightMaster, rightSlave)
         .forEach((CANTalon talon) -> talon.enableBrakeMode(brakeOn));
@@ -412,153 +639,308 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
   }
 
   /**
-   * Sends all navx data to the dashboard.
+   * Registers all navx data to send to the dashboard.
+   * 
+   * @param telemetry The registry to add it to
    */
-  public void dumpNavxData() {
-    SmartDashboard.putBoolean("IMU_Connected", navX.isConnected());
-    SmartDashboard.putBoolean("IMU_IsCalibrating", navX.isCalibrating());
-    SmartDashboard.putNumber("IMU_Yaw", navX.getYaw());
-    SmartDashboard.putNumber("IMU_Pitch", navX.getPitch());
-    SmartDashboard.putNumber("IMU_Roll", navX.getRoll());
-
-    SmartDashboard.putNumber("IMU_CompassHeading", navX.getCompassHeading());
-
-    SmartDashboard.putNumber("IMU_FusedHeading", navX.getFusedHeading());
-
-    SmartDashboard.putNumber("IMU_TotalYaw", navX.getAngle());
-    SmartDashboard.putNumber("IMU_YawRateDPS", navX.getRate());
-
-    SmartDashboard.putNumber("IMU_Accel_X", navX.getWorldLinearAccelX());
-    SmartDashboard.putNumber("IMU_Accel_Y", navX.getWorldLinearAccelY());
-    SmartDashboard.putBoolean("IMU_IsMoving", navX.isMoving());
-    SmartDashboard.putBoolean("IMU_IsRotating", navX.isRotating());
-
-    SmartDashboard.putNumber("Velocity_X", navX.getVelocityX());
-    SmartDashboard.putNumber("Velocity_Y", navX.getVelocityY());
-    SmartDashboard.putNumber("Displacement_X", navX.getDisplacementX());
-    SmartDashboard.putNumber("Displacement_Y", navX.getDisplacementY());
-
-    SmartDashboard.putNumber("RawGyro_X", navX.getRawGyroX());
-    SmartDashboard.putNumber("RawGyro_Y", navX.getRawGyroY());
-    SmartDashboard.putNumber("RawGyro_Z", navX.getRawGyroZ());
-    SmartDashboard.putNumber("RawAccel_X", navX.getRawAccelX());
-    SmartDashboard.putNumber("RawAccel_Y", navX.getRawAccelY());
-    SmartDashboard.putNumber("RawAccel_Z", navX.getRawAccelZ());
-    SmartDashboard.putNumber("RawMag_X", navX.getRawMagX());
-    SmartDashboard.putNumber("RawMag_Y", navX.getRawMagY());
-    SmartDashboard.putNumber("RawMag_Z", navX.getRawMagZ());
-    SmartDashboard.putNumber("IMU_Temp_C", navX.getTempC());
-
-    AHRS.BoardYawAxis yawAxis = navX.getBoardYawAxis();
-    SmartDashboard.putString("YawAxisDirection", yawAxis.up ? "Up" : "Down");
-    SmartDashboard.putNumber("YawAxis", yawAxis.board_axis.getValue());
-
-    SmartDashboard.putString("FirmwareVersion", navX.getFirmwareVersion());
-
-
-    SmartDashboard.putNumber("QuaternionW", navX.getQuaternionW());
-    SmartDashboard.putNumber("QuaternionX", navX.getQuaternionX());
-    SmartDashboard.putNumber("QuaternionY", navX.getQuaternionY());
-    SmartDashboard.putNumber("QuaternionZ", navX.getQuaternionZ());
-
-    SmartDashboard.putNumber("IMU_Byte_Count", navX.getByteCount());
-    SmartDashboard.putNumber("IMU_Update_Count", navX.getUpdateCount());
+  private void registerNavxTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addBoolean("IMU_Connected", Rate.NORMAL, () -> navX.isConnected());
+    telemetry.addBoolean("IMU_IsCalibrating", Rate.NORMAL, () -> navX.isCalibrating());
+    telemetry.addNumber("IMU_Yaw", Rate.NORMAL, 0.1, () -> navX.getYaw());
+    telemetry.addNumber("IMU_Pitch", Rate.NORMAL, 0.1, () -> navX.getPitch());
+    telemetry.addNumber("IMU_Roll", Rate.NORMAL, 0.1, () -> navX.getRoll());
+
+    telemetry.addNumber("IMU_CompassHeading", Rate.SLOW, 1, () -> navX.getCompassHeading());
+
+    telemetry.addNumber("IMU_FusedHeading", Rate.SLOW, 1, () -> navX.getFusedHeading());
+
+    telemetry.addNumber("IMU_TotalYaw", Rate.NORMAL, 0.1, () -> navX.getAngle());
+    telemetry.addNumber("IMU_YawRateDPS", Rate.NORMAL, 0.5, () -> navX.getRate());
+
+    telemetry.addNumber("IMU_Accel_X", Rate.NORMAL, 0.01, () -> navX.getWorldLinearAccelX());
+    telemetry.addNumber("IMU_Accel_Y", Rate.NORMAL, 0.01, () -> navX.getWorldLinearAccelY());
+    telemetry.addBoolean("IMU_IsMoving", Rate.NORMAL, () -> navX.isMoving());
+    telemetry.addBoolean("IMU_IsRotating", Rate.NORMAL, () -> navX.isRotating());
+
+    // the navx's own dead reckoning is too noisy to drive with, it's only here for comparison
+    telemetry.addNumber("Velocity_X", Rate.SLOW, 0.1, () -> navX.getVelocityX());
+    telemetry.addNumber("Velocity_Y", Rate.SLOW, 0.1, () -> navX.getVelocityY());
+    telemetry.addNumber("Displacement_X", Rate.SLOW, 0.1, () -> navX.getDisplacementX());
+    telemetry.addNumber("Displacement_Y", Rate.SLOW, 0.1, () -> navX.getDisplacementY());
+
+    telemetry.addNumber("RawGyro_X", Rate.SLOW, 1, () -> navX.getRawGyroX());
+    telemetry.addNumber("RawGyro_Y", Rate.SLOW, 1, () -> navX.getRawGyroY());
+    telemetry.addNumber("RawGyro_Z", Rate.SLOW, 1, () -> navX.getRawGyroZ());
+    telemetry.addNumber("RawAccel_X", Rate.SLOW, 0.01, () -> navX.getRawAccelX());
+    telemetry.addNumber("RawAccel_Y", Rate.SLOW, 0.01, () -> navX.getRawAccelY());
+    telemetry.addNumber("RawAccel_Z", Rate.SLOW, 0.01, () -> navX.getRawAccelZ());
+    telemetry.addNumber("RawMag_X", Rate.SLOW, 1, () -> navX.getRawMagX());
+    telemetry.addNumber("RawMag_Y", Rate.SLOW, 1, () -> navX.getRawMagY());
+    telemetry.addNumber("RawMag_Z", Rate.SLOW, 1, () -> navX.getRawMagZ());
+    telemetry.addNumber("IMU_Temp_C", Rate.SLOW, 0.5, () -> navX.getTempC());
+
+    // these only change if the navx is reconfigured
+    telemetry.addString("YawAxisDirection", Rate.RARE,
+        () -> navX.getBoardYawAxis().up ? "Up" : "Down");
+    telemetry.addNumber("YawAxis", Rate.RARE, () -> navX.getBoardYawAxis().board_axis.getValue());
+
+    telemetry.addString("FirmwareVersion", Rate.RARE, () -> navX.getFirmwareVersion());
+
+
+    telemetry.addNumber("QuaternionW", Rate.SLOW, 0.001, () -> navX.getQuaternionW());
+    telemetry.addNumber("QuaternionX", Rate.SLOW, 0.001, () -> navX.getQuaternionX());
+    telemetry.addNumber("QuaternionY", Rate.SLOW, 0.001, () -> navX.getQuaternionY());
+    telemetry.addNumber("QuaternionZ", Rate.SLOW, 0.001, () -> navX.getQuaternionZ());
+
+    telemetry.addNumber("IMU_Byte_Count", Rate.SLOW, () -> navX.getByteCount());
+    telemetry.addNumber("IMU_Update_Count", Rate.SLOW, () -> navX.getUpdateCount());
   }
 
   /**
-   * Sends all navx and talon data to the dashboard.
+   * Registers all navx and talon data to send to the dashboard.
+   * 
+   * @param telemetry The registry to add it to
    */
-  public void sendDataToSmartDashboard() {
-    dumpNavxData();
+  public void registerTelemetry(TelemetryRegistry telemetry) {
+    registerNavxTelemetry(telemetry);
 
     // talon output power
-    SmartDashboard.putNumber("Left_Master_Power",
-        leftMaster.getOutputCurrent() * leftMaster.getOutputVoltage());
+    telemetry.addNumber("Left_Master_Power", Rate.NORMAL, 1,
+        () -> leftMaster.getOutputCurrent() * leftMaster.getOutputVoltage());
     if (!RobotMap.IS_ROADKILL) {
-      SmartDashboard.putNumber("Left_Slave_Power",
-          leftSlave.getOutputCurrent() * leftSlave.getOutputVoltage());
+      telemetry.addNumber("Left_Slave_Power", Rate.NORMAL, 1,
+          () -> leftSlave.getOutputCurrent() * leftSlave.getOutputVoltage());
     }
-    SmartDashboard.putNumber("Right_Master_Power",
-        rightMaster.getOutputCurrent() * rightMaster.getOutputVoltage());
+    telemetry.addNumber("Right_Master_Power", Rate.NORMAL, 1,
+        () -> rightMaster.getOutputCurrent() * rightMaster.getOutputVoltage());
     if (!RobotMap.IS_ROADKILL) {
-      SmartDashboard.putNumber("Right_Slave_Power",
-          rightSlave.getOutputCurrent() * rightSlave.getOutputVoltage());
+      telemetry.addNumber("Right_Slave_Power", Rate.NORMAL, 1,
+          () -> rightSlave.getOutputCurrent() * rightSlave.getOutputVoltage());
     }
     
     // talon fault diagnostics
     // we don't care about under voltage because it's already clear when brownouts happen
-    SmartDashboard.putBoolean("Left_Master_Present", leftMaster.isAlive());
-    SmartDashboard.putBoolean("Left_Master_Ok", leftMaster.getFaultHardwareFailure() == 0);
-    SmartDashboard.putBoolean("Left_Master_Temp_Ok", leftMaster.getStickyFaultOverTemp() == 0);
+    registerTalonFaults(telemetry, "Left_Master", leftMaster);
     if (!RobotMap.IS_ROADKILL) {
-      SmartDashboard.putBoolean("Left_Slave_Present", leftSlave.isAlive());
-      SmartDashboard.putBoolean("Left_Slave_Ok", leftSlave.getFaultHardwareFailure() == 0);
-      SmartDashboard.putBoolean("Left_Slave_Temp_Ok", leftSlave.getStickyFaultOverTemp() == 0);
+      registerTalonFaults(telemetry, "Left_Slave", leftSlave);
     }
-    SmartDashboard.putBoolean("Right_Master_Present", rightMaster.isAlive());
-    SmartDashboard.putBoolean("Right_Master_Ok", rightMaster.getFaultHardwareFailure() == 0);
-    SmartDashboard.putBoolean("Right_Master_Temp_Ok", rightMaster.getStickyFaultOverTemp() == 0);
+    registerTalonFaults(telemetry, "Right_Master", rightMaster);
     if (!RobotMap.IS_ROADKILL) {
-      SmartDashboard.putBoolean("Right_Slave_Present", rightSlave.isAlive());
-      SmartDashboard.putBoolean("Right_Slave_Ok", rightSlave.getFaultHardwareFailure() == 0);
-      SmartDashboard.putBoolean("Right_Slave_Temp_Ok", rightSlave.getStickyFaultOverTemp() == 0);
+      registerTalonFaults(telemetry, "Right_Slave", rightSlave);
     }
 
-    SmartDashboard.putNumber("Encoder_Left", getEncoderDistance(DriveTrainSide.LEFT));
-    SmartDashboard.putNumber("Encoder_Right", getEncoderDistance(DriveTrainSide.RIGHT));
+    telemetry.addNumber("Encoder_Left", Rate.NORMAL, 0.1,
+        () -> getEncoderDistance(DriveTrainSide.LEFT));
+    telemetry.addNumber("Encoder_Right", Rate.NORMAL, 0.1,
+        () -> getEncoderDistance(DriveTrainSide.RIGHT));
     
-    SmartDashboard.putNumber("Talon_6_Input", rightSlave.getBusVoltage());
-    SmartDashboard.putNumber("Talon_1_Input", leftMaster.getBusVoltage());
+    telemetry.addNumber("Talon_6_Input", Rate.NORMAL, 0.05, () -> rightSlave.getBusVoltage());
+    telemetry.addNumber("Talon_1_Input", Rate.NORMAL, 0.05, () -> leftMaster.getBusVoltage());
 
     // solenoid diagnostics
     if (pcmPresent) {
-      SmartDashboard.putString("PCM_Blacklist",
-          Integer.toString(shiftingSolenoid.getPCMSolenoidBlackList(), 2));
-      SmartDashboard.putBoolean("Shift_Voltage_Fault",
-          shiftingSolenoid.getPCMSolenoidVoltageFault());
-      SmartDashboard.putBoolean("Shift_Voltage_Sticky_Fault",
-          shiftingSolenoid.getPCMSolenoidVoltageStickyFault());
+      telemetry.addString("PCM_Blacklist", Rate.SLOW,
+          () -> Integer.toString(shiftingSolenoid.getPCMSolenoidBlackList(), 2));
+      telemetry.addBoolean("Shift_Voltage_Fault", Rate.SLOW,
+          () -> shiftingSolenoid.getPCMSolenoidVoltageFault());
+      telemetry.addBoolean("Shift_Voltage_Sticky_Fault", Rate.SLOW,
+          () -> shiftingSolenoid.getPCMSolenoidVoltageStickyFault());
     }
 
     // dead reckoning field display
     // tell the dashboard what this object is
-    swFieldDisplay.putBoolean("_swfield", true); 
-    // put in dead reckoning values
-    swFieldDisplay.putNumber("x", positionX);
-    swFieldDisplay.putNumber("y", positionY);
-    swFieldDisplay.putNumber("direction", rotation);
+    telemetry.addBoolean(swFieldDisplay, "_swfield", Rate.RARE, () -> true);
+    // put in dead reckoning values, all from the same snapshot
+    telemetry.addPeriodic(Rate.NORMAL, () -> getPose(dashboardPose));
+    telemetry.addNumber(swFieldDisplay, "x", Rate.NORMAL, 0.1, () -> dashboardPose.x);
+    telemetry.addNumber(swFieldDisplay, "y", Rate.NORMAL, 0.1, () -> dashboardPose.y);
+    telemetry.addNumber(swFieldDisplay, "direction", Rate.NORMAL, 0.1,
+        () -> dashboardPose.direction);
+
+    telemetry.addBoolean("Heading_Locked", Rate.NORMAL, () -> headingLocked);
+    telemetry.addNumber("Heading_Lock_Error", Rate.NORMAL, 0.1, () -> headingLockError);
+
+    localizer.registerTelemetry(telemetry);
+    odometry.registerTelemetry(telemetry);
+    poseEstimator.registerTelemetry(telemetry);
+    gyroBias.registerTelemetry(telemetry);
+  }
+
+  private static void registerTalonFaults(TelemetryRegistry telemetry, String name,
+      CANTalon talon) {
+    telemetry.addBoolean(name + "_Present", Rate.SLOW, () -> talon.isAlive());
+    telemetry.addBoolean(name + "_Ok", Rate.SLOW, () -> talon.getFaultHardwareFailure() == 0);
+    telemetry.addBoolean(name + "_Temp_Ok", Rate.SLOW, () -> talon.getStickyFaultOverTemp() == 0);
+  }
+
+  /**
+   * Gets a consistent copy of the current pose without allocating. Safe to call from any thread.
+   * 
+   * @param out Where to put it
+   */
+  public void getPose(Pose out) {
+    long seq;
+    do {
+      seq = poseLock.beginRead();
+      out.x = publishedX;
+      out.y = publishedY;
+      out.direction = publishedDirection;
+      out.nanos = publishedNanos;
+    } while (!poseLock.validate(seq));
   }
 
+  /**
+   * Same as getPose(), as a new RobotPosition for path planning. Use getPose() in anything that
+   * runs every cycle.
+   * 
+   * @return The current position
+   */
   public RobotPosition getRobotPosition() {
-    return new RobotPosition(positionX, positionY, rotation);
+    long seq;
+    double x;
+    double y;
+    double direction;
+    do {
+      seq = poseLock.beginRead();
+      x = publishedX;
+      y = publishedY;
+      direction = publishedDirection;
+    } while (!poseLock.validate(seq));
+    return new RobotPosition(x, y, direction);
   }
 
-  public void setPosition(FieldPosition fieldPos) {
+  private void publishPose(long nanos) {
+    poseLock.beginWrite();
+    publishedX = positionX;
+    publishedY = positionY;
+    publishedDirection = rotation;
+    publishedNanos = nanos;
+    poseLock.endWrite();
+  }
+
+  /**
+   * Gets where the robot was at some time in the last two seconds, for matching up vision frames
+   * with the robot's position when they were captured.
+   * 
+   * @param nanos The time, in System.nanoTime() nanoseconds
+   * @param out Where to put {x, y, direction}
+   * @return False if the time is too far in the past
+   */
+  boolean getPoseAt(long nanos, double[] out) {
+    return poseHistory.get(nanos, out);
+  }
+
+  /**
+   * Moves the dead reckoning to a known position, keeping the current heading.
+   * 
+   * @param fieldPos The position
+   */
+  public synchronized void setPosition(FieldPosition fieldPos) {
     positionX = fieldPos.getX();
     positionY = fieldPos.getY();
+    publishPose(System.nanoTime());
+    poseHistory.clear();
+    synchronized (correctionLock) {
+      pendingCorrectionX = 0;
+      pendingCorrectionY = 0;
+    }
+    localizer.reset();
+  }
+
+  /**
+   * Moves the dead reckoning position by a correction worked out from vision. It's applied on the
+   * next position update, on the odometry thread, so it doesn't race with the integration.
+   *
+   * @param deltaX How far to move in x
+   * @param deltaY How far to move in y
+   */
+  void addPositionCorrection(double deltaX, double deltaY) {
+    synchronized (correctionLock) {
+      pendingCorrectionX += deltaX;
+      pendingCorrectionY += deltaY;
+    }
   }
 
   /**
-   * Updates the dead reckoning for our current position.
+   * Updates the dead reckoning for our current position, without acceleration data.
    */
   public void updatePosition(double navXYaw) {
-    rotation = fixDegrees(navXYaw + rotationOffset);
+    updatePosition(System.nanoTime(), navXYaw, 0, 0);
+  }
 
+  /**
+   * Updates the dead reckoning for our current position. Normally only called by the odometry
+   * thread.
+   * 
+   * @param sampleNanos When the NavX sample was received, in System.nanoTime() nanoseconds. The
+   *        pose is stamped with this rather than with when it was integrated, which can be up to an
+   *        odometry period later.
+   * @param navXYaw The NavX yaw
+   * @param worldAccelX The NavX world frame linear acceleration x, g
+   * @param worldAccelY The NavX world frame linear acceleration y, g
+   */
+  public synchronized void updatePosition(long sampleNanos, double navXYaw, double worldAccelX,
+      double worldAccelY) {
+    long nanos = System.nanoTime();
     double encoderLeft = getEncoderDistance(DriveTrainSide.LEFT);
     double encoderRight = getEncoderDistance(DriveTrainSide.RIGHT);
 
     double deltaEncoderLeft = encoderLeft - prevEncoderLeft;
     double deltaEncoderRight = encoderRight - prevEncoderRight;
 
+    // the bias is always learned so it shows up on the dashboard, but only corrects the heading if
+    // it's turned on
+    double driftCorrection = gyroBias.update(nanos, navXYaw, deltaEncoderLeft, deltaEncoderRight,
+        navX.isMoving(), navX.isRotating());
+    if (!RobotMap.GYRO_BIAS_CORRECTION_ENABLED) {
+      driftCorrection = 0;
+    }
+
+    double previousRotation = rotation;
+    rotation = fixDegrees(navXYaw + rotationOffset + driftCorrection);
+
     double deltaInches = (deltaEncoderLeft + deltaEncoderRight) / 2;
 
     absoluteDistanceTraveled += Math.abs(deltaInches);
 
-    positionX = positionX + Math.cos(Math.toRadians(90 - rotation)) * deltaInches;
-    positionY = positionY + Math.sin(Math.toRadians(90 - rotation)) * deltaInches;
+    // the estimator always runs so slip shows up on the dashboard, but only moves the robot if
+    // it's turned on
+    poseEstimator.update(nanos, deltaInches, previousRotation, rotation, navXYaw, worldAccelX,
+        worldAccelY);
+    double lateralInches = 0;
+    if (RobotMap.ODOMETRY_FUSION_ENABLED && poseEstimator.isValid()) {
+      deltaInches = poseEstimator.getForwardStep();
+      lateralInches = poseEstimator.getLateralStep();
+    }
+
+    OdometryEngine.step(deltaInches, previousRotation, rotation,
+        RobotMap.ODOMETRY_ARC_INTEGRATION, odometryStep);
+    positionX += odometryStep[0] + lateralInches * Math.cos(Math.toRadians(rotation));
+    positionY += odometryStep[1] - lateralInches * Math.sin(Math.toRadians(rotation));
+    localizer.onOdometry(deltaInches);
+
+    double correctionX;
+    double correctionY;
+    synchronized (correctionLock) {
+      correctionX = pendingCorrectionX;
+      correctionY = pendingCorrectionY;
+      pendingCorrectionX = 0;
+      pendingCorrectionY = 0;
+    }
+    if (correctionX != 0 || correctionY != 0) {
+      positionX += correctionX;
+      positionY += correctionY;
+      // older poses were off by the same amount
+      poseHistory.shift(correctionX, correctionY);
+    }
 
     prevEncoderLeft = encoderLeft;
     prevEncoderRight = encoderRight;
+
+    publishPose(sampleNanos);
+    poseHistory.add(sampleNanos, positionX, positionY, rotation);
+
+    driveHeadingLock();
   }
 
   public double getAbsoluteDistanceTraveled() {
@@ -566,7 +948,7 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
   }
 
   public double getYaw() {
-    return rotation;
+    return publishedDirection;
   }
 
   /**
@@ -586,6 +968,7 @@ public class DriveTrain extends Subsystem implements SmartDashboardLogger {
   public void zeroSensors() {
     navX.reset();
     navX.resetDisplacement();
+    gyroBias.resetHeading();
 
     FieldPosition currentPosition =
         FieldMap.getAllianceMap().startingPositions[Robot.operatorInterface
@@ -0,0 +1,89 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.opencv.core.Core;
+
+/**
+ * Runs {@link FallbackTargetDetector} over saved camera frames, to check an HSV range before
+ * trusting the fallback with it. Split a {@link StreamRingExporter} video into JPEGs (for example
+ * with ffmpeg -i match_gear.mjpeg -c copy frames/%05d.jpg), then run
+ *
+ * <pre>
+ * java -Djava.library.path=path/to/opencv/lib -cp bin:opencv.jar \
+ *     org.ligerbots.steamworks.subsystems.FallbackDetectorReport frames gear 60,100,100 90,255,255
+ * </pre>
+ *
+ * <p>
+ * with the lower and upper HSV values from the phone's colorRange table. It prints what was found
+ * in every frame, then the hit rate and the average processing time.
+ * </p>
+ */
+class FallbackDetectorReport {
+  /**
+   * Runs the detector.
+   *
+   * @param args The directory of JPEGs, gear or boiler, and the lower and upper HSV values
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 4 || !(args[1].equals("gear") || args[1].equals("boiler"))) {
+      System.err.println(
+          "Usage: FallbackDetectorReport <directory> <gear|boiler> <lower h,s,v> <upper h,s,v>");
+      System.exit(1);
+    }
+    File[] files = new File(args[0]).listFiles((dir, name) -> name.toLowerCase().endsWith(".jpg")
+        || name.toLowerCase().endsWith(".jpeg"));
+    if (files == null || files.length == 0) {
+      System.err.println("No JPEGs in " + args[0]);
+      System.exit(1);
+    }
+    Arrays.sort(files);
+    boolean gear = args[1].equals("gear");
+    double[] lower = parseHsv(args[2]);
+    double[] upper = parseHsv(args[3]);
+    double targetWidth =
+        gear ? Vision.DEFAULT_GEAR_TARGET_WIDTH : Vision.DEFAULT_BOILER_TARGET_WIDTH;
+    double targetHeight =
+        gear ? Vision.DEFAULT_GEAR_TARGET_HEIGHT : Vision.DEFAULT_BOILER_TARGET_HEIGHT;
+
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    FallbackTargetDetector detector = new FallbackTargetDetector();
+
+    int found = 0;
+    long totalNanos = 0;
+    System.out.println("frame,found,center_x,center_y,x,y,z,yaw,ms");
+    for (File file : files) {
+      byte[] jpeg = Files.readAllBytes(file.toPath());
+      long start = System.nanoTime();
+      // the boiler phone is on its side, the same as Vision tells the detector
+      FallbackTargetDetector.Result result =
+          detector.detect(jpeg, lower, upper, targetWidth, targetHeight, !gear);
+      long nanos = System.nanoTime() - start;
+      totalNanos += nanos;
+      if (result.found) {
+        found++;
+        System.out.println(String.format("%s,1,%.3f,%.3f,%.1f,%.1f,%.1f,%.1f,%.2f",
+            file.getName(), result.centerX, result.centerY, result.tvecX, result.tvecY,
+            result.tvecZ, result.yaw, nanos / 1e6));
+      } else {
+        System.out.println(String.format("%s,0,,,,,,,%.2f", file.getName(), nanos / 1e6));
+      }
+    }
+    System.out.println(String.format("Found the target in %d of %d frames (%.1f%%), %.2f ms each",
+        found, files.length, 100.0 * found / files.length, totalNanos / 1e6 / files.length));
+  }
+
+  private static double[] parseHsv(String hsv) {
+    String[] parts = hsv.split(",");
+    if (parts.length != 3) {
+      throw new IllegalArgumentException("Expected h,s,v: " + hsv);
+    }
+    double[] values = new double[3];
+    for (int i = 0; i < 3; i++) {
+      values[i] = Double.parseDouble(parts[i]);
+    }
+    return values;
+  }
+}
@@ -0,0 +1,401 @@
+package org.ligerbots.steamworks.subsystems;
+
+import edu.wpi.first.wpilibj.tables.ITable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the gear or boiler target in the camera frames ourselves, for when a phone's processing
+ * has died but its camera stream still arrives. It uses the same HSV range and target size the
+ * phones get from NetworkTables, decodes the JPEG, thresholds it and looks for the two pieces of
+ * tape. The position comes from a pinhole camera model instead of solvePnP, so it's rougher than
+ * what the phone sends.
+ *
+ * <p>
+ * Frames are handed over from the vision network thread and processed on this detector's own
+ * thread. Only one frame is in flight at a time; the rest are skipped, and the time between frames
+ * is stretched so the detector stays under its share of the CPU. Results are handed back the same
+ * way, so the network thread stays the only writer of vision data.
+ * </p>
+ */
+class FallbackTargetDetector {
+  private static final Logger logger = LoggerFactory.getLogger(FallbackTargetDetector.class);
+
+  // don't try more often than this even when frames are cheap
+  private static final long MIN_INTERVAL_NANOS = 100_000_000L;
+  // fraction of one core the detector may use
+  private static final double CPU_BUDGET = 0.25;
+  // Nexus 5 half-FOV along the image's long side, same as getBoilerDistance() assumes
+  private static final double HALF_FOV_DEGREES = 30;
+  // ignore blobs smaller than this fraction of the frame
+  private static final double MIN_AREA_FRACTION = 0.0005;
+  // how far the found target's aspect ratio may be off the expected one, as a factor
+  private static final double ASPECT_TOLERANCE = 2;
+
+  /**
+   * One detection, handed to the network thread. Coordinates are in the camera frame: x to the
+   * right, y down and z forward, in inches. centerX and centerY are from 0 to 1 across the image.
+   * yaw is how far the target is turned, from -90 to 90 degrees.
+   */
+  static class Result {
+    int stream;
+    long receiveNanos;
+    long processingNanos;
+    boolean found;
+    double centerX;
+    double centerY;
+    double tvecX;
+    double tvecY;
+    double tvecZ;
+    double yaw;
+    // bounding box corners, clockwise from the top left, 0 to 1 across the image
+    final double[] corners = new double[8];
+  }
+
+  private final ITable[] tables;
+  private final boolean[] sideways;
+  private final Runnable resultListener;
+  private final Thread thread;
+
+  // handed over from the network thread
+  private final Object frameLock = new Object();
+  private byte[] frame = new byte[65536];
+  private int frameLength;
+  private int frameStream;
+  private long frameReceiveNanos;
+  private boolean framePending;
+  private volatile boolean busy;
+  // only written by the network thread, the dashboard doesn't mind a stale value
+  private final boolean[] active = new boolean[2];
+  private long lastOfferNanos;
+
+  // handed back to the network thread
+  private final Result result = new Result();
+  private volatile boolean resultReady;
+
+  // only touched by the detector thread, or whoever calls detect() when there isn't one
+  private Mat hsv;
+  private Mat mask;
+  private Mat hierarchy;
+  private final List<MatOfPoint> contours = new ArrayList<>();
+
+  private volatile double averageProcessingNanos;
+  private volatile boolean failed;
+  volatile long offered;
+  volatile long detections;
+  volatile long misses;
+
+  /**
+   * Creates the detector and starts its thread.
+   *
+   * @param tables The phone tables with colorRange and target, indexed by stream
+   * @param sideways Which streams come from a phone mounted on its side, so the target shows up
+   *        rotated by 90 degrees
+   * @param resultListener Called on the detector thread when a result is ready, to wake up the
+   *        network thread
+   */
+  FallbackTargetDetector(ITable[] tables, boolean[] sideways, Runnable resultListener) {
+    this.tables = tables;
+    this.sideways = sideways;
+    this.resultListener = resultListener;
+    thread = new Thread(this::run);
+    thread.setName("Vision Fallback Thread");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Creates a detector without a thread, for calling
+   * {@link #detect(byte[], double[], double[], double, double, boolean)} directly off the robot.
+   */
+  FallbackTargetDetector() {
+    tables = null;
+    sideways = null;
+    resultListener = null;
+    thread = null;
+    hsv = new Mat();
+    mask = new Mat();
+    hierarchy = new Mat();
+  }
+
+  /**
+   * Sets whether a stream should be searched, usually because its phone has stopped sending good
+   * data. Only called from the network thread.
+   *
+   * @param stream CameraStreamForwarder.STREAM_GEAR or STREAM_BOILER
+   * @param isActive True to search its frames
+   */
+  void setActive(int stream, boolean isActive) {
+    active[stream] = isActive;
+  }
+
+  /**
+   * Checks whether the detector would take a frame from a stream now. Only called from the network
+   * thread.
+   *
+   * @param stream The stream the frame is from
+   * @param nanos When it arrived
+   * @return True if {@link #offer} should be called with it
+   */
+  boolean wants(int stream, long nanos) {
+    if (failed || !active[stream] || busy || resultReady) {
+      return false;
+    }
+    long interval = Math.max(MIN_INTERVAL_NANOS, (long) (averageProcessingNanos / CPU_BUDGET));
+    return nanos - lastOfferNanos >= interval;
+  }
+
+  /**
+   * Copies a frame for the detector thread. Only called from the network thread, after
+   * {@link #wants} said yes.
+   *
+   * @param stream The stream the frame is from
+   * @param nanos When it arrived
+   * @param buffer The JPEG, between its position and limit; the position is left alone
+   */
+  void offer(int stream, long nanos, ByteBuffer buffer) {
+    int length = buffer.remaining();
+    synchronized (frameLock) {
+      if (frame.length < length) {
+        frame = new byte[length];
+      }
+      int position = buffer.position();
+      buffer.get(frame, 0, length);
+      buffer.position(position);
+      frameLength = length;
+      frameStream = stream;
+      frameReceiveNanos = nanos;
+      framePending = true;
+      busy = true;
+      frameLock.notify();
+    }
+    lastOfferNanos = nanos;
+    offered++;
+  }
+
+  /**
+   * Gets the latest detection if there is a new one. Only called from the network thread, which
+   * must call {@link #releaseResult()} when it's done with it.
+   *
+   * @return The result, or null if there's nothing new
+   */
+  Result pollResult() {
+    return resultReady ? result : null;
+  }
+
+  void releaseResult() {
+    resultReady = false;
+  }
+
+  private void run() {
+    try {
+      hsv = new Mat();
+      mask = new Mat();
+      hierarchy = new Mat();
+    } catch (Throwable ex) {
+      logger.error("OpenCV isn't available, no fallback vision", ex);
+      failed = true;
+      return;
+    }
+
+    byte[] jpeg = null;
+    while (true) {
+      int stream;
+      long receiveNanos;
+      synchronized (frameLock) {
+        while (!framePending) {
+          try {
+            frameLock.wait();
+          } catch (InterruptedException ex) {
+            return;
+          }
+        }
+        // imdecode wants an array that is exactly the JPEG
+        if (jpeg == null || jpeg.length != frameLength) {
+          jpeg = new byte[frameLength];
+        }
+        System.arraycopy(frame, 0, jpeg, 0, frameLength);
+        stream = frameStream;
+        receiveNanos = frameReceiveNanos;
+        framePending = false;
+      }
+
+      long start = System.nanoTime();
+      try {
+        detect(jpeg, stream);
+      } catch (Throwable ex) {
+        // something is badly wrong with OpenCV, so don't keep trying
+        logger.error("Fallback vision failed, turning it off", ex);
+        failed = true;
+        busy = false;
+        return;
+      }
+      long processingNanos = System.nanoTime() - start;
+      averageProcessingNanos += (processingNanos - averageProcessingNanos) * 0.25;
+
+      result.stream = stream;
+      result.receiveNanos = receiveNanos;
+      result.processingNanos = processingNanos;
+      if (result.found) {
+        detections++;
+      } else {
+        misses++;
+      }
+      resultReady = true;
+      busy = false;
+      resultListener.run();
+    }
+  }
+
+  private void detect(byte[] jpeg, int stream) {
+    ITable range = tables[stream].getSubTable("colorRange");
+    double[] lower = range.getNumberArray("lower", new double[] {0, 0, 0});
+    double[] upper = range.getNumberArray("upper", new double[] {0, 0, 0});
+    ITable target = tables[stream].getSubTable("target");
+    detect(jpeg, lower, upper, target.getNumber("width", 1), target.getNumber("height", 1),
+        sideways[stream]);
+  }
+
+  /**
+   * Looks for the target in one frame. Only the detector thread may call this, unless the detector
+   * was made without one.
+   *
+   * @param jpeg The frame, exactly the JPEG
+   * @param lower The lower end of the HSV range
+   * @param upper The upper end of the HSV range
+   * @param targetWidth The width of the target, in inches
+   * @param targetHeight The height of the target, in inches
+   * @param rotated True if the phone is on its side
+   * @return The result, which is reused by the next call
+   */
+  Result detect(byte[] jpeg, double[] lower, double[] upper, double targetWidth,
+      double targetHeight, boolean rotated) {
+    result.found = false;
+    MatOfByte encoded = new MatOfByte(jpeg);
+    Mat image = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR);
+    encoded.release();
+    if (image.empty()) {
+      image.release();
+      return result;
+    }
+    int width = image.cols();
+    int height = image.rows();
+
+    Imgproc.cvtColor(image, hsv, Imgproc.COLOR_BGR2HSV);
+    image.release();
+    Core.inRange(hsv, new Scalar(lower[0], lower[1], lower[2]),
+        new Scalar(upper[0], upper[1], upper[2]), mask);
+
+    for (MatOfPoint contour : contours) {
+      contour.release();
+    }
+    contours.clear();
+    Imgproc.findContours(mask, contours, hierarchy, Imgproc.RETR_EXTERNAL,
+        Imgproc.CHAIN_APPROX_SIMPLE);
+
+    // the two biggest blobs should be the two pieces of tape
+    double minArea = MIN_AREA_FRACTION * width * height;
+    Rect first = null;
+    Rect second = null;
+    double firstArea = 0;
+    double secondArea = 0;
+    for (MatOfPoint contour : contours) {
+      double area = Imgproc.contourArea(contour);
+      if (area < minArea) {
+        continue;
+      }
+      if (area > firstArea) {
+        second = first;
+        secondArea = firstArea;
+        first = Imgproc.boundingRect(contour);
+        firstArea = area;
+      } else if (area > secondArea) {
+        second = Imgproc.boundingRect(contour);
+        secondArea = area;
+      }
+    }
+    if (first == null) {
+      return result;
+    }
+
+    int left = first.x;
+    int top = first.y;
+    int right = first.x + first.width;
+    int bottom = first.y + first.height;
+    if (second != null) {
+      left = Math.min(left, second.x);
+      top = Math.min(top, second.y);
+      right = Math.max(right, second.x + second.width);
+      bottom = Math.max(bottom, second.y + second.height);
+    }
+    // how many pixels the target's own width and height take up; with the phone on its side, the
+    // target's height runs along the image's x axis
+    double pixelWidth = rotated ? bottom - top : right - left;
+    double pixelHeight = rotated ? right - left : bottom - top;
+    double aspectError = (pixelWidth / pixelHeight) / (targetWidth / targetHeight);
+    if (aspectError > ASPECT_TOLERANCE || aspectError < 1 / ASPECT_TOLERANCE) {
+      return result;
+    }
+
+    // pinhole model: the focal length in pixels comes from the FOV along the long side
+    double focal = Math.max(width, height) / 2 / Math.tan(Math.toRadians(HALF_FOV_DEGREES));
+    double centerPixelX = (left + right) / 2.0;
+    double centerPixelY = (top + bottom) / 2.0;
+    // the tape's height doesn't shrink when the target is turned, unlike its width
+    double distance = focal * targetHeight / pixelHeight;
+    result.tvecZ = distance;
+    result.tvecX = (centerPixelX - width / 2.0) * distance / focal;
+    result.tvecY = (centerPixelY - height / 2.0) * distance / focal;
+
+    // the width shrinks with the cosine of the yaw, and the nearer piece of tape looks taller
+    double apparentWidth = pixelWidth * distance / focal;
+    double yaw = Math.toDegrees(Math.acos(Math.min(1, apparentWidth / targetWidth)));
+    if (second != null) {
+      // sideways, the pieces are side by side along the image's y axis instead, with larger y
+      // taken as the target's right
+      boolean firstIsRight = rotated ? first.y > second.y : first.x > second.x;
+      Rect rightPiece = firstIsRight ? first : second;
+      Rect leftPiece = firstIsRight ? second : first;
+      double rightPieceHeight = rotated ? rightPiece.width : rightPiece.height;
+      double leftPieceHeight = rotated ? leftPiece.width : leftPiece.height;
+      if (rightPieceHeight < leftPieceHeight) {
+        yaw = -yaw;
+      }
+    }
+    result.yaw = yaw;
+
+    result.centerX = centerPixelX / width;
+    result.centerY = centerPixelY / height;
+    double[] corners = {left, top, right, top, right, bottom, left, bottom};
+    for (int i = 0; i < 8; i += 2) {
+      result.corners[i] = corners[i] / width;
+      result.corners[i + 1] = corners[i + 1] / height;
+    }
+    result.found = true;
+    return result;
+  }
+
+  boolean isActive(int stream) {
+    return active[stream];
+  }
+
+  boolean isFailed() {
+    return failed;
+  }
+
+  double getAverageProcessingNanos() {
+    return averageProcessingNanos;
+  }
+}
@@ -5,6 +5,7 @@ import edu.wpi.first.wpilibj.command.Subsystem;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,16 +47,19 @@ public class Feeder extends Subsystem implements SmartDashboardLogger {
   public void initDefaultCommand() {}
 
   /**
-   * Sends diagnostics to SmartDashboard.
+   * Registers diagnostics to send to SmartDashboard.
    */
-  public void sendDataToSmartDashboard() {
-    SmartDashboard.putBoolean("Feeder_Present", feederTalon != null && feederTalon.isAlive());
+  public void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addBoolean("Feeder_Present", Rate.SLOW,
+        () -> feederTalon != null && feederTalon.isAlive());
     if (feederTalon != null) {
-      SmartDashboard.putNumber("Feeder_Power",
-          feederTalon.getOutputCurrent() * feederTalon.getOutputVoltage());
+      telemetry.addNumber("Feeder_Power", Rate.NORMAL, 1,
+          () -> feederTalon.getOutputCurrent() * feederTalon.getOutputVoltage());
       
-      SmartDashboard.putBoolean("Feeder_Ok", feederTalon.getFaultHardwareFailure() == 0);
-      SmartDashboard.putBoolean("Feeder_Temp_Ok", feederTalon.getStickyFaultOverTemp() == 0);
+      telemetry.addBoolean("Feeder_Ok", Rate.SLOW,
+          () -> feederTalon.getFaultHardwareFailure() == 0);
+      telemetry.addBoolean("Feeder_Temp_Ok", Rate.SLOW,
+          () -> feederTalon.getStickyFaultOverTemp() == 0);
     }
   }
 }
@@ -4,8 +4,8 @@ import edu.wpi.first.wpilibj.AnalogInput;
 import edu.wpi.first.wpilibj.PWM.PeriodMultiplier;
 import edu.wpi.first.wpilibj.Servo;
 import edu.wpi.first.wpilibj.command.Subsystem;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -110,14 +110,16 @@ public class GearManipulator extends Subsystem implements SmartDashboardLogger {
   }
 
   /**
-   * Sends all diagnostics.
+   * Registers all diagnostics.
    */
-  public void sendDataToSmartDashboard() {
-    SmartDashboard.putString("Gear_Mechanism_Position", position.toString());
+  public void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addString("Gear_Mechanism_Position", Rate.NORMAL, () -> position.toString());
     
-    SmartDashboard.putNumber("Light_Spoke_Down", lsSpokeDown.getAverageVoltage());
-    SmartDashboard.putNumber("Light_Wedge_Down", lsWedgeDown.getAverageVoltage());
-    SmartDashboard.putString("Gear_Orientation", getGearOrientation().toString());
-    SmartDashboard.putBoolean("Pressure_Plate", isPressurePlatePressed());
+    telemetry.addNumber("Light_Spoke_Down", Rate.NORMAL, 0.05,
+        () -> lsSpokeDown.getAverageVoltage());
+    telemetry.addNumber("Light_Wedge_Down", Rate.NORMAL, 0.05,
+        () -> lsWedgeDown.getAverageVoltage());
+    telemetry.addString("Gear_Orientation", Rate.NORMAL, () -> getGearOrientation().toString());
+    telemetry.addBoolean("Pressure_Plate", Rate.NORMAL, this::isPressurePlatePressed);
   }
 }
@@ -0,0 +1,116 @@
+package org.ligerbots.steamworks.subsystems;
+
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * Learns how fast the NavX yaw drifts and takes the drift back out. Whenever the robot has been
+ * sitting still for a moment (the encoders aren't moving and the NavX doesn't think it's moving or
+ * rotating either), any change in yaw is drift: it's thrown away, and it's used to refine an
+ * estimate of the drift rate with a one-dimensional Kalman filter. While the robot moves, the
+ * estimated drift rate is taken out instead.
+ *
+ * <p>
+ * All methods are synchronized: {@link #update} runs on the odometry thread, and
+ * {@link #resetHeading()} and the dashboard on the main thread.
+ * </p>
+ */
+class GyroBiasEstimator {
+  // encoder movement per update below this is sitting still
+  private static final double STILL_INCHES = 0.005;
+  // wait this long after stopping, so the robot has stopped rocking
+  private static final long SETTLE_NANOS = 500_000_000L;
+  // the rate measured in one update is mostly yaw quantization, about 1 deg/s at 100Hz
+  private static final double RATE_VARIANCE = 1;
+  // how fast the drift rate itself changes, (deg/s)^2 per second
+  private static final double BIAS_DRIFT = 1e-6;
+  // the NavX spec is about 1 degree per minute
+  private static final double INITIAL_VARIANCE = 0.02 * 0.02;
+  private static final double MAX_DT = 0.1;
+
+  private double bias;
+  private double variance = INITIAL_VARIANCE;
+  private double correction;
+  private double lastYaw = Double.NaN;
+  private long lastNanos;
+  private long stillSinceNanos;
+  private boolean stationary;
+
+  /**
+   * Works out the correction for one update.
+   *
+   * @param nanos Now
+   * @param navxYaw The NavX yaw
+   * @param leftInches How far the left encoder went since the last update
+   * @param rightInches How far the right encoder went since the last update
+   * @param navxMoving What the NavX thinks
+   * @param navxRotating What the NavX thinks
+   * @return How many degrees to add to the NavX yaw
+   */
+  synchronized double update(long nanos, double navxYaw, double leftInches, double rightInches,
+      boolean navxMoving, boolean navxRotating) {
+    double dt = (nanos - lastNanos) / 1e9;
+    double turn = navxYaw - lastYaw;
+    lastNanos = nanos;
+    lastYaw = navxYaw;
+    if (Double.isNaN(turn) || dt <= 0 || dt > MAX_DT) {
+      stillSinceNanos = nanos;
+      stationary = false;
+      return correction;
+    }
+    if (turn > 180) {
+      turn -= 360;
+    } else if (turn < -180) {
+      turn += 360;
+    }
+
+    variance += BIAS_DRIFT * dt;
+
+    boolean still = Math.abs(leftInches) < STILL_INCHES && Math.abs(rightInches) < STILL_INCHES
+        && !navxMoving && !navxRotating;
+    if (!still) {
+      stillSinceNanos = nanos;
+    }
+    stationary = still && nanos - stillSinceNanos > SETTLE_NANOS;
+
+    if (stationary) {
+      double gain = variance / (variance + RATE_VARIANCE);
+      bias += gain * (turn / dt - bias);
+      variance *= 1 - gain;
+      correction -= turn;
+    } else {
+      correction -= bias * dt;
+    }
+    return correction;
+  }
+
+  /**
+   * Forgets the accumulated correction after the NavX yaw has been zeroed. The drift rate is kept.
+   */
+  synchronized void resetHeading() {
+    correction = 0;
+    lastYaw = Double.NaN;
+  }
+
+  synchronized double getBias() {
+    return bias;
+  }
+
+  synchronized double getBiasSigma() {
+    return Math.sqrt(variance);
+  }
+
+  synchronized double getCorrection() {
+    return correction;
+  }
+
+  synchronized boolean isStationary() {
+    return stationary;
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber("Gyro_Bias_Dps", Rate.SLOW, 0.0001, this::getBias);
+    telemetry.addNumber("Gyro_Bias_Sigma_Dps", Rate.SLOW, 0.0001, this::getBiasSigma);
+    telemetry.addNumber("Gyro_Drift_Correction", Rate.NORMAL, 0.01, this::getCorrection);
+    telemetry.addBoolean("Gyro_Stationary", Rate.NORMAL, this::isStationary);
+  }
+}
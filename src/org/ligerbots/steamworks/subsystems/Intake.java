@@ -5,6 +5,7 @@ import edu.wpi.first.wpilibj.command.Subsystem;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,17 +60,20 @@ public class Intake extends Subsystem implements SmartDashboardLogger {
   }
 
   /**
-   * Sends intake data to SmartDashboard.
+   * Registers intake data to send to SmartDashboard.
    */
-  public void sendDataToSmartDashboard() {
-    SmartDashboard.putBoolean("Intake_Present", intakeTalon != null && intakeTalon.isAlive());
+  public void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addBoolean("Intake_Present", Rate.SLOW,
+        () -> intakeTalon != null && intakeTalon.isAlive());
     if (intakeTalon != null) {
-      SmartDashboard.putNumber("Intake_Power",
-          intakeTalon.getOutputCurrent() * intakeTalon.getOutputVoltage());
-      SmartDashboard.putBoolean("Intake_On", intakeOn);
+      telemetry.addNumber("Intake_Power", Rate.NORMAL, 1,
+          () -> intakeTalon.getOutputCurrent() * intakeTalon.getOutputVoltage());
+      telemetry.addBoolean("Intake_On", Rate.NORMAL, () -> intakeOn);
       
-      SmartDashboard.putBoolean("Intake_Ok", intakeTalon.getFaultHardwareFailure() == 0);
-      SmartDashboard.putBoolean("Intake_Temp_Ok", intakeTalon.getStickyFaultOverTemp() == 0);
+      telemetry.addBoolean("Intake_Ok", Rate.SLOW,
+          () -> intakeTalon.getFaultHardwareFailure() == 0);
+      telemetry.addBoolean("Intake_Temp_Ok", Rate.SLOW,
+          () -> intakeTalon.getStickyFaultOverTemp() == 0);
     }
   }
 }
@@ -110,7 +110,7 @@ public class Lights extends Subsystem implements SmartDashboardLogger {
   }
 
   @Override
-  public void sendDataToSmartDashboard() {
+  public void registerTelemetry(TelemetryRegistry telemetry) {
   }
 }
 
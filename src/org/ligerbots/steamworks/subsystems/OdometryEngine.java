@@ -0,0 +1,180 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.util.concurrent.locks.LockSupport;
+import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the dead reckoning on its own thread at a fixed rate. The NavX callback only hands over its
+ * newest yaw, and the encoder positions come from the Talons' feedback status frames, which the
+ * Talons send on their own, so neither the NavX thread nor the main loop pays for the integration.
+ * How long each update takes is tracked for the dashboard.
+ */
+class OdometryEngine {
+  private static final Logger logger = LoggerFactory.getLogger(OdometryEngine.class);
+
+  private final DriveTrain driveTrain;
+
+  // written by the NavX thread
+  private final SequenceLock sampleLock = new SequenceLock();
+  private volatile long navxNanos;
+  private volatile double navxYaw;
+  private volatile double navxAccelX;
+  private volatile double navxAccelY;
+
+  // written by the odometry thread
+  volatile long updates;
+  volatile long staleUpdates;
+  volatile long overruns;
+  private volatile double meanCostNanos;
+  private volatile long maxCostNanos;
+
+  // main thread only
+  private long lastDashboardNanos;
+  private long lastDashboardUpdates;
+
+  OdometryEngine(DriveTrain driveTrain) {
+    this.driveTrain = driveTrain;
+  }
+
+  /**
+   * Works out how far the robot moved in one odometry step. Straight line integration moves the
+   * whole distance along the new heading, which cuts inside every curve. Arc integration assumes
+   * the robot drove a constant curvature arc from the old heading to the new one, so it moves along
+   * the chord of that arc instead, which is exact for arcs and still exact for straight lines.
+   *
+   * @param distance How far the wheels went, inches
+   * @param startDirection The heading at the start of the step, NavX convention
+   * @param endDirection The heading at the end of the step
+   * @param arc True for arc integration, false for straight line
+   * @param out Where to put {delta x, delta y}
+   */
+  static void step(double distance, double startDirection, double endDirection, boolean arc,
+      double[] out) {
+    double direction;
+    double chord;
+    if (arc) {
+      double turn = endDirection - startDirection;
+      if (turn > 180) {
+        turn -= 360;
+      } else if (turn < -180) {
+        turn += 360;
+      }
+      double halfTurn = Math.toRadians(turn) / 2;
+      direction = Math.toRadians(startDirection) + halfTurn;
+      chord = Math.abs(halfTurn) < 1e-6 ? distance : distance * Math.sin(halfTurn) / halfTurn;
+    } else {
+      direction = Math.toRadians(endDirection);
+      chord = distance;
+    }
+    out[0] = chord * Math.sin(direction);
+    out[1] = chord * Math.cos(direction);
+  }
+
+  void start() {
+    Thread thread = new Thread(this::odometryThread);
+    thread.setDaemon(true);
+    thread.setName("Odometry Thread");
+    // the heading lock runs on this thread too, so it shouldn't wait behind the main loop
+    thread.setPriority(Thread.MAX_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Hands over a new NavX sample. Called on the NavX thread, so it only stores it.
+   *
+   * @param nanos When the NavX sample was received, in System.nanoTime() nanoseconds
+   * @param yaw The NavX yaw
+   * @param worldAccelX The NavX world frame linear acceleration x, g
+   * @param worldAccelY The NavX world frame linear acceleration y, g
+   */
+  void onNavxSample(long nanos, double yaw, double worldAccelX, double worldAccelY) {
+    sampleLock.beginWrite();
+    navxNanos = nanos;
+    navxYaw = yaw;
+    navxAccelX = worldAccelX;
+    navxAccelY = worldAccelY;
+    sampleLock.endWrite();
+  }
+
+  private void odometryThread() {
+    logger.info("Starting odometry thread");
+    long lastSamples = 0;
+    long next = System.nanoTime();
+    while (true) {
+      long period = (long) (RobotMap.NANOS_PER_SECOND / Math.max(1, RobotMap.ODOMETRY_RATE_HZ));
+      next += period;
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      } else if (wait < -period) {
+        // fell more than a whole update behind, start counting again from now instead of running
+        // a burst of updates to catch up
+        overruns++;
+        next = System.nanoTime();
+      }
+
+      long samples;
+      long sampleNanos;
+      double yaw;
+      double accelX;
+      double accelY;
+      do {
+        samples = sampleLock.beginRead();
+        sampleNanos = navxNanos;
+        yaw = navxYaw;
+        accelX = navxAccelX;
+        accelY = navxAccelY;
+      } while (!sampleLock.validate(samples));
+      if (samples == 0) {
+        continue;
+      }
+      if (samples == lastSamples) {
+        staleUpdates++;
+      }
+      lastSamples = samples;
+
+      long start = System.nanoTime();
+      try {
+        driveTrain.updatePosition(sampleNanos, yaw, accelX, accelY);
+      } catch (RuntimeException ex) {
+        logger.error("Odometry update failed", ex);
+      }
+      long cost = System.nanoTime() - start;
+
+      meanCostNanos += (cost - meanCostNanos) * 0.01;
+      if (cost > maxCostNanos) {
+        maxCostNanos = cost;
+      }
+      updates++;
+    }
+  }
+
+  /**
+   * Works out how many updates ran per second since the last call.
+   *
+   * @return The update rate, or NaN the first time
+   */
+  private double measureRate() {
+    long now = System.nanoTime();
+    long currentUpdates = updates;
+    double rate = Double.NaN;
+    if (lastDashboardNanos != 0) {
+      rate = (currentUpdates - lastDashboardUpdates) * RobotMap.NANOS_PER_SECOND
+          / (now - lastDashboardNanos);
+    }
+    lastDashboardNanos = now;
+    lastDashboardUpdates = currentUpdates;
+    return rate;
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber("Odometry_Rate_Hz", Rate.SLOW, 1, this::measureRate);
+    telemetry.addNumber("Odometry_Cost_Us", Rate.SLOW, 1, () -> meanCostNanos / 1000);
+    telemetry.addNumber("Odometry_Cost_Max_Us", Rate.SLOW, 1, () -> maxCostNanos / 1000.0);
+    telemetry.addNumber("Odometry_Stale_Updates", Rate.SLOW, () -> staleUpdates);
+    telemetry.addNumber("Odometry_Overruns", Rate.SLOW, () -> overruns);
+  }
+}
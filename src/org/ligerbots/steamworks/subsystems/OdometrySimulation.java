@@ -0,0 +1,166 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.ligerbots.steamworks.FieldMap;
+import org.ligerbots.steamworks.FieldPosition;
+
+/**
+ * Compares straight line and arc odometry integration on the kinds of spline paths FieldMap makes,
+ * without a robot. The robot follows each path at a constant speed, the encoders and NavX are
+ * sampled perfectly at the odometry rate, and the only error left is the integration's own. Run
+ *
+ * <pre>
+ * java -cp bin org.ligerbots.steamworks.subsystems.OdometrySimulation
+ * </pre>
+ *
+ * <p>
+ * and it prints the final and worst position error of each integrator for every path, speed and
+ * rate.
+ * </p>
+ */
+class OdometrySimulation {
+  // fine enough that the true path is effectively exact
+  private static final double TRUTH_STEP = 0.01;
+  private static final double[] SPEEDS = {60, 150};
+  private static final double[] RATES = {50, 100, 200};
+
+  /**
+   * A path with a heading that changes smoothly with distance along it.
+   */
+  private static class Path {
+    final String name;
+    final double[] distances;
+    final double[] directions;
+    final double startX;
+    final double startY;
+
+    Path(String name, List<FieldPosition> points) {
+      this.name = name;
+      startX = points.get(0).getX();
+      startY = points.get(0).getY();
+      distances = new double[points.size()];
+      directions = new double[points.size()];
+      for (int i = 0; i < points.size(); i++) {
+        if (i > 0) {
+          distances[i] = distances[i - 1] + points.get(i).distanceTo(points.get(i - 1));
+        }
+        // central difference, so the heading at each point is the tangent there
+        FieldPosition before = points.get(Math.max(0, i - 1));
+        FieldPosition after = points.get(Math.min(points.size() - 1, i + 1));
+        directions[i] = Math.toDegrees(
+            Math.atan2(after.getX() - before.getX(), after.getY() - before.getY()));
+      }
+    }
+
+    double length() {
+      return distances[distances.length - 1];
+    }
+
+    double directionAt(double distance) {
+      int index = Arrays.binarySearch(distances, distance);
+      if (index >= 0) {
+        return directions[index];
+      }
+      int after = Math.min(-index - 1, distances.length - 1);
+      int before = Math.max(after - 1, 0);
+      if (after == before) {
+        return directions[after];
+      }
+      double turn = directions[after] - directions[before];
+      if (turn > 180) {
+        turn -= 360;
+      } else if (turn < -180) {
+        turn += 360;
+      }
+      double fraction = (distance - distances[before]) / (distances[after] - distances[before]);
+      return directions[before] + turn * fraction;
+    }
+  }
+
+  /**
+   * Runs the comparison.
+   *
+   * @param args Not used
+   */
+  public static void main(String[] args) {
+    FieldMap map = FieldMap.getRed();
+    List<Path> paths = new ArrayList<>();
+    paths.add(new Path("start to boiler side lift",
+        spline(new FieldPosition(map.startingPositions[0].getX() - 12, -108),
+            map.startingPositions[0], new FieldPosition(-290, -108), new FieldPosition(-250, -90),
+            new FieldPosition(-238, -72), new FieldPosition(-229.685, -87.158),
+            map.gearLiftPositions[0])));
+    paths.add(new Path("start to boiler",
+        spline(map.startingPositions[2].add(-12, 0), map.startingPositions[2],
+            map.startingPositions[2].add(24, 0), new FieldPosition(-297.545, -66),
+            new FieldPosition(-225.977, -94.018), new FieldPosition(-200, -94.018))));
+    paths.add(new Path("feeder side lift to boiler",
+        spline(map.gearLiftPositions[2].add(1, 0), map.gearLiftPositions[2],
+            new FieldPosition(-FieldPosition.CLEAR_DIVIDERS_TO_CENTER, 30),
+            new FieldPosition(-300, -100), map.boiler)));
+
+    double[] straight = new double[2];
+    double[] arc = new double[2];
+    for (Path path : paths) {
+      System.out.println(String.format("%s, %.0f in", path.name, path.length()));
+      for (double speed : SPEEDS) {
+        for (double rate : RATES) {
+          simulate(path, speed / rate, false, straight);
+          simulate(path, speed / rate, true, arc);
+          System.out.println(String.format(
+              "  %3.0f in/s %3.0f Hz: straight line %.3f in final %.3f in worst,"
+                  + " arc %.4f in final %.4f in worst",
+              speed, rate, straight[0], straight[1], arc[0], arc[1]));
+        }
+      }
+    }
+  }
+
+  private static List<FieldPosition> spline(FieldPosition... controlPoints) {
+    return FieldMap.generateCatmullRomSpline(Arrays.asList(controlPoints));
+  }
+
+  /**
+   * Drives one path, comparing the odometry with the true position after every step.
+   *
+   * @param path The path
+   * @param stepDistance How far the robot goes between odometry updates
+   * @param arcIntegration Which integrator to use
+   * @param out Where to put {final error, worst error}
+   */
+  private static void simulate(Path path, double stepDistance, boolean arcIntegration,
+      double[] out) {
+    double[] step = new double[2];
+    double trueX = path.startX;
+    double trueY = path.startY;
+    double trueDistance = 0;
+    double odometryX = path.startX;
+    double odometryY = path.startY;
+    double previousDirection = path.directionAt(0);
+    double worst = 0;
+    double error = 0;
+
+    for (double distance = stepDistance; distance <= path.length(); distance += stepDistance) {
+      while (trueDistance < distance) {
+        double fine = Math.min(TRUTH_STEP, distance - trueDistance);
+        double direction = Math.toRadians(path.directionAt(trueDistance + fine / 2));
+        trueX += fine * Math.sin(direction);
+        trueY += fine * Math.cos(direction);
+        trueDistance += fine;
+      }
+
+      double direction = path.directionAt(distance);
+      OdometryEngine.step(stepDistance, previousDirection, direction, arcIntegration, step);
+      odometryX += step[0];
+      odometryY += step[1];
+      previousDirection = direction;
+
+      error = Math.hypot(odometryX - trueX, odometryY - trueY);
+      worst = Math.max(worst, error);
+    }
+    out[0] = error;
+    out[1] = worst;
+  }
+}
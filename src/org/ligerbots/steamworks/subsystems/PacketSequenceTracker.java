@@ -0,0 +1,117 @@
+package org.ligerbots.steamworks.subsystems;
+
+/**
+ * Tracks the frame sequence numbers one phone puts in its v2 data packets, and counts lost,
+ * reordered and duplicate frames. Remembers the last 64 sequence numbers, so a frame that shows up
+ * late is counted as reordered instead of lost.
+ *
+ * <p>
+ * The phone app starts counting from zero again when it restarts. That's noticed when the number
+ * jumps far back, when it drops to the first few frames, or when several frames in a row are older
+ * than the newest one and count up one after another like a live phone's, which catches a restart
+ * soon after the last one too. Repeats, and late frames that fill a gap, break such a run, so a
+ * burst of duplicates or a delayed batch isn't mistaken for a restart.
+ * </p>
+ *
+ * <p>
+ * Only the vision network thread calls {@link #accept(long)}. The counters are volatile so the
+ * dashboard can read them.
+ * </p>
+ */
+class PacketSequenceTracker {
+  private static final int WINDOW = 64;
+  // if the sequence number jumps back this far, the phone app restarted
+  private static final long RESTART_THRESHOLD = 1000;
+  // a live phone doesn't send this many old frames in a row
+  private static final int STALE_BEFORE_RESTART = 5;
+  // how far apart frames in such a run can be, allowing for a couple of lost ones
+  private static final long STALE_RUN_MAX_STEP = 3;
+
+  volatile long lost;
+  volatile long reordered;
+  volatile long duplicates;
+  volatile long restarts;
+
+  private boolean started;
+  private long highest;
+  // bit i is set if frame (highest - i) has been seen
+  private long seen;
+  // how many old frames in a row have counted up like a restarted phone, and the last of them
+  private int staleInARow;
+  private long lastStale;
+
+  /**
+   * Records a received sequence number.
+   *
+   * @param sequence The phone's frame sequence number
+   * @return True if this is the newest frame so far and should be used, false if it is late or a
+   *         duplicate
+   */
+  boolean accept(long sequence) {
+    if (!started || isRestart(sequence)) {
+      if (started) {
+        restarts++;
+      }
+      started = true;
+      highest = sequence;
+      seen = 1;
+      staleInARow = 0;
+      return true;
+    }
+
+    if (sequence > highest) {
+      staleInARow = 0;
+      long gap = sequence - highest;
+      // frames we skipped over count as lost until they turn up
+      lost += gap - 1;
+      seen = gap >= WINDOW ? 1 : (seen << gap) | 1;
+      highest = sequence;
+      return true;
+    }
+
+    staleInARow = continuesStaleRun(sequence) ? staleInARow + 1 : isLate(sequence) ? 0 : 1;
+    lastStale = sequence;
+    long age = highest - sequence;
+    if (age >= WINDOW) {
+      // too old to tell apart from a duplicate, and we don't want it anyway
+      reordered++;
+      return false;
+    }
+
+    long bit = 1L << age;
+    if ((seen & bit) != 0) {
+      duplicates++;
+    } else {
+      seen |= bit;
+      reordered++;
+      lost--;
+    }
+    return false;
+  }
+
+  private boolean isRestart(long sequence) {
+    if (sequence > highest) {
+      return false;
+    }
+    long age = highest - sequence;
+    return age > RESTART_THRESHOLD || (sequence < WINDOW && age >= WINDOW)
+        || (continuesStaleRun(sequence) && staleInARow + 1 >= STALE_BEFORE_RESTART);
+  }
+
+  /**
+   * Checks whether an old frame carries on the current run of old frames: a little after the last
+   * one, and not a late frame we were missing.
+   */
+  private boolean continuesStaleRun(long sequence) {
+    return staleInARow > 0 && sequence > lastStale
+        && sequence - lastStale <= STALE_RUN_MAX_STEP && !isLate(sequence);
+  }
+
+  /**
+   * Checks whether an old frame is one that was skipped over and hasn't turned up yet.
+   */
+  private boolean isLate(long sequence) {
+    long age = highest - sequence;
+    return age < WINDOW && (seen & (1L << age)) == 0;
+  }
+}
@@ -2,8 +2,8 @@ package org.ligerbots.steamworks.subsystems;
 
 import edu.wpi.first.wpilibj.PowerDistributionPanel;
 import edu.wpi.first.wpilibj.command.Subsystem;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import org.ligerbots.steamworks.Robot;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 
 /**
  * Contains the PDP and sends diagnostics to the dashboard.
@@ -23,10 +23,10 @@ public class PdpSubsystem extends Subsystem implements SmartDashboardLogger {
   public void initDefaultCommand() {}
 
   @Override
-  public void sendDataToSmartDashboard() {
+  public void registerTelemetry(TelemetryRegistry telemetry) {
     if (pdp != null) {
-      SmartDashboard.putNumber("Temperature", pdp.getTemperature());
-      //SmartDashboard.putNumber("TotalPower", pdp.getTotalPower());
+      telemetry.addNumber("Temperature", Rate.SLOW, 0.5, () -> pdp.getTemperature());
+      //telemetry.addNumber("TotalPower", Rate.NORMAL, 1, pdp::getTotalPower);
 
       // in the past, this has tended to screw up the CAN bus
       // for (int i = 0; i < 16; i++) {
@@ -0,0 +1,205 @@
+package org.ligerbots.steamworks.subsystems;
+
+/**
+ * Works out how one phone's clock relates to System.nanoTime() on the robot, the same way NTP does.
+ * The robot puts its time t1 in the feedback packet; the phone answers with t1, the time t2 it got
+ * the feedback packet and the time t3 it sent the answer; the robot gets the answer at t4. Then
+ *
+ * <pre>
+ * offset = ((t2 - t1) + (t3 - t4)) / 2
+ * delay  = (t4 - t1) - (t3 - t2)
+ * </pre>
+ *
+ * <p>
+ * and the real offset is within delay / 2 of the measured one. WiFi delay jumps around a lot, so
+ * the offset comes from the lowest-delay sample of the last 128, and the drift from the change in
+ * offset between the lowest-delay samples of the older and newer halves of those.
+ * </p>
+ *
+ * <p>
+ * Only the vision network thread may call {@link #addSample(long, long, long, long)}. Everything
+ * else can be called from any thread.
+ * </p>
+ */
+class PhoneClockSync {
+  private static final int WINDOW = 128;
+  // WiFi round trips longer than this say nothing useful about the offset
+  private static final long MAX_DELAY_NANOS = 50_000_000L;
+  // samples this far off the current estimate mean the phone app restarted
+  private static final long RESET_THRESHOLD_NANOS = 100_000_000L;
+  // need this much time between samples before trusting a drift estimate
+  private static final long MIN_DRIFT_SPAN_NANOS = 10_000_000_000L;
+  // phone crystals are good to about this, so use it as the drift uncertainty
+  private static final double DRIFT_UNCERTAINTY = 20e-6;
+
+  private final long[] sampleRobotNanos = new long[WINDOW];
+  private final long[] sampleOffsetNanos = new long[WINDOW];
+  private final long[] sampleDelayNanos = new long[WINDOW];
+  private int sampleCount;
+  private int nextSample;
+
+  private final SequenceLock lock = new SequenceLock();
+  private volatile boolean synced;
+  private volatile long anchorRobotNanos;
+  private volatile long anchorOffsetNanos;
+  private volatile double drift;
+  private volatile long anchorErrorNanos;
+
+  volatile long samples;
+  volatile long rejectedSamples;
+  volatile long resets;
+
+  /**
+   * Adds one round trip.
+   *
+   * @param t1 Robot time the feedback packet was sent
+   * @param t2 Phone time the feedback packet was received
+   * @param t3 Phone time the answer was sent
+   * @param t4 Robot time the answer was received
+   */
+  void addSample(long t1, long t2, long t3, long t4) {
+    long delay = (t4 - t1) - (t3 - t2);
+    if (delay < 0 || delay > MAX_DELAY_NANOS) {
+      rejectedSamples++;
+      return;
+    }
+    long offset = ((t2 - t1) + (t3 - t4)) / 2;
+    long robotNanos = t1 + (t4 - t1) / 2;
+
+    if (synced && Math.abs(offset - predictOffset(robotNanos)) > RESET_THRESHOLD_NANOS) {
+      resets++;
+      sampleCount = 0;
+      nextSample = 0;
+    }
+
+    sampleRobotNanos[nextSample] = robotNanos;
+    sampleOffsetNanos[nextSample] = offset;
+    sampleDelayNanos[nextSample] = delay;
+    nextSample = (nextSample + 1) % WINDOW;
+    if (sampleCount < WINDOW) {
+      sampleCount++;
+    }
+    samples++;
+
+    update();
+  }
+
+  private long predictOffset(long robotNanos) {
+    return anchorOffsetNanos + (long) (drift * (robotNanos - anchorRobotNanos));
+  }
+
+  private void update() {
+    int best = -1;
+    for (int i = 0; i < sampleCount; i++) {
+      if (best < 0 || sampleDelayNanos[i] < sampleDelayNanos[best]) {
+        best = i;
+      }
+    }
+    long minDelay = sampleDelayNanos[best];
+
+    // the drift comes from the best sample in the older half of the window against the best in the
+    // newer half, since fitting a line through noisy samples does much worse
+    long earliest = Long.MAX_VALUE;
+    long latest = Long.MIN_VALUE;
+    for (int i = 0; i < sampleCount; i++) {
+      earliest = Math.min(earliest, sampleRobotNanos[i]);
+      latest = Math.max(latest, sampleRobotNanos[i]);
+    }
+    long middle = earliest + (latest - earliest) / 2;
+    int bestOld = -1;
+    int bestNew = -1;
+    for (int i = 0; i < sampleCount; i++) {
+      if (sampleRobotNanos[i] < middle) {
+        if (bestOld < 0 || sampleDelayNanos[i] < sampleDelayNanos[bestOld]) {
+          bestOld = i;
+        }
+      } else if (bestNew < 0 || sampleDelayNanos[i] < sampleDelayNanos[bestNew]) {
+        bestNew = i;
+      }
+    }
+
+    double newDrift = 0;
+    if (bestOld >= 0 && bestNew >= 0
+        && sampleRobotNanos[bestNew] - sampleRobotNanos[bestOld] >= MIN_DRIFT_SPAN_NANOS) {
+      newDrift = (double) (sampleOffsetNanos[bestNew] - sampleOffsetNanos[bestOld])
+          / (sampleRobotNanos[bestNew] - sampleRobotNanos[bestOld]);
+    }
+
+    lock.beginWrite();
+    anchorRobotNanos = sampleRobotNanos[best];
+    anchorOffsetNanos = sampleOffsetNanos[best];
+    drift = newDrift;
+    anchorErrorNanos = minDelay / 2;
+    synced = true;
+    lock.endWrite();
+  }
+
+  /**
+   * Checks whether there has been at least one usable round trip.
+   *
+   * @return True if {@link #toRobotNanos(long)} can be used
+   */
+  boolean isSynchronized() {
+    return synced;
+  }
+
+  /**
+   * Converts a phone timestamp to System.nanoTime() on the robot.
+   *
+   * @param phoneNanos A time on the phone's clock
+   * @return The same moment on the robot's clock
+   */
+  long toRobotNanos(long phoneNanos) {
+    long seq;
+    long robotNanos;
+    do {
+      seq = lock.beginRead();
+      long offset = anchorOffsetNanos;
+      // close enough to use as the time the drift is evaluated at
+      long approxRobotNanos = phoneNanos - offset;
+      robotNanos = approxRobotNanos - (long) (drift * (approxRobotNanos - anchorRobotNanos));
+    } while (!lock.validate(seq));
+    return robotNanos;
+  }
+
+  /**
+   * Gets how far off {@link #toRobotNanos(long)} could be for a time near robotNanos.
+   *
+   * @param robotNanos The time being converted, on the robot's clock
+   * @return The error bound in nanoseconds, or Long.MAX_VALUE if not synchronized
+   */
+  long getErrorBoundNanos(long robotNanos) {
+    long seq;
+    long bound;
+    do {
+      seq = lock.beginRead();
+      bound = synced ? anchorErrorNanos
+          + (long) (DRIFT_UNCERTAINTY * Math.abs(robotNanos - anchorRobotNanos)) : Long.MAX_VALUE;
+    } while (!lock.validate(seq));
+    return bound;
+  }
+
+  /**
+   * Gets the current offset estimate.
+   *
+   * @return Phone time minus robot time, in nanoseconds, as of now
+   */
+  long getOffsetNanos() {
+    long seq;
+    long offset;
+    do {
+      seq = lock.beginRead();
+      offset = predictOffset(System.nanoTime());
+    } while (!lock.validate(seq));
+    return offset;
+  }
+
+  /**
+   * Gets the current drift estimate.
+   *
+   * @return How fast the phone clock runs relative to the robot's, in parts per million
+   */
+  double getDriftPpm() {
+    return drift * 1e6;
+  }
+}
@@ -2,10 +2,10 @@ package org.ligerbots.steamworks.subsystems;
 
 import edu.wpi.first.wpilibj.Compressor;
 import edu.wpi.first.wpilibj.command.Subsystem;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,10 +59,11 @@ public class Pneumatics extends Subsystem implements SmartDashboardLogger {
   }
 
   @Override
-  public void sendDataToSmartDashboard() {
+  public void registerTelemetry(TelemetryRegistry telemetry) {
     if (compressor != null) {
-      SmartDashboard.putBoolean("Compressor_Closed_Loop", isCompressorOn());
-      SmartDashboard.putBoolean("Compressor_Pressure_Switch", compressor.getPressureSwitchValue());
+      telemetry.addBoolean("Compressor_Closed_Loop", Rate.NORMAL, this::isCompressorOn);
+      telemetry.addBoolean("Compressor_Pressure_Switch", Rate.NORMAL,
+          () -> compressor.getPressureSwitchValue());
     }
   }
 }
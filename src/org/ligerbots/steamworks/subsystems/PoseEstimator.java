@@ -0,0 +1,262 @@
+package org.ligerbots.steamworks.subsystems;
+
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * Fuses the encoders with the NavX to work out how fast the robot is really moving, so getting
+ * pushed or spinning the wheels doesn't throw the dead reckoning off. An extended Kalman filter
+ * tracks the forward and sideways speed in the robot frame and the accelerometer bias on each axis.
+ * The NavX acceleration and yaw rate predict the speeds, and the encoder speed and the fact that a
+ * tank drive doesn't move sideways correct them.
+ *
+ * <p>
+ * When a correction is far outside what the filter expects, the wheels aren't gripping: the
+ * encoders are spinning faster than the robot moves, or the robot is moving without them. That's
+ * flagged as slip, and the encoders are trusted much less until it has been over for a while.
+ * </p>
+ *
+ * <p>
+ * The NavX world frame is assumed to have +y forward and +x to the right at zero yaw, the same as
+ * the field heading convention. Only the odometry thread may call {@link #update}.
+ * </p>
+ */
+class PoseEstimator {
+  private static final double INCHES_PER_SECOND_SQUARED_PER_G = 386.09;
+
+  // about 0.05g of accelerometer noise
+  private static final double ACCEL_NOISE = 20;
+  private static final double BIAS_NOISE = 2;
+  // encoder speed noise, mostly the status frame timing
+  private static final double ENCODER_SPEED_NOISE = 5;
+  // how hard a tank drive resists moving sideways
+  private static final double LATERAL_NOISE = 2;
+  // 4 sigma
+  private static final double SLIP_GATE = 16;
+  private static final double SLIP_ENCODER_WEIGHT = 10000;
+  private static final long SLIP_HOLD_NANOS = 250_000_000L;
+
+  // give up on the filter for a while if it keeps taking longer than this
+  private static final long BUDGET_NANOS = 200_000L;
+  private static final int OVER_BUDGET_BEFORE_BYPASS = 5;
+  private static final long BYPASS_NANOS = 1_000_000_000L;
+
+  // a longer step means the thread stalled, so start over instead of predicting across it
+  private static final double MAX_DT = 0.1;
+
+  // state: forward speed, rightward speed (in/s), forward and rightward accelerometer bias (in/s^2)
+  private final double[] state = new double[4];
+  private final double[][] covariance = new double[4][4];
+  private final double[][] jacobian = new double[4][4];
+  private final double[][] scratch = new double[4][4];
+  private final double[] gain = new double[4];
+
+  private long lastNanos;
+  private long slipUntilNanos;
+  private int overBudget;
+  private long bypassUntilNanos;
+
+  private double forwardStep;
+  private double lateralStep;
+  private boolean valid;
+
+  volatile boolean slipping;
+  volatile long slipEvents;
+  volatile long bypasses;
+  volatile double forwardSpeed;
+  volatile double lateralSpeed;
+
+  PoseEstimator() {
+    reset();
+  }
+
+  private void reset() {
+    for (int i = 0; i < 4; i++) {
+      state[i] = 0;
+      for (int j = 0; j < 4; j++) {
+        covariance[i][j] = 0;
+      }
+    }
+    covariance[0][0] = ENCODER_SPEED_NOISE * ENCODER_SPEED_NOISE;
+    covariance[1][1] = LATERAL_NOISE * LATERAL_NOISE;
+    covariance[2][2] = ACCEL_NOISE * ACCEL_NOISE;
+    covariance[3][3] = ACCEL_NOISE * ACCEL_NOISE;
+  }
+
+  /**
+   * Runs one step of the filter.
+   *
+   * @param nanos Now
+   * @param encoderInches How far the encoders say the robot went since the last step
+   * @param startDirection The heading at the last step, NavX convention
+   * @param endDirection The heading now
+   * @param navxYaw The NavX's own yaw, for turning its acceleration into the robot frame
+   * @param worldAccelX NavX world frame linear acceleration x, g
+   * @param worldAccelY NavX world frame linear acceleration y, g
+   */
+  void update(long nanos, double encoderInches, double startDirection, double endDirection,
+      double navxYaw, double worldAccelX, double worldAccelY) {
+    double dt = (nanos - lastNanos) / 1e9;
+    lastNanos = nanos;
+    valid = false;
+    if (dt <= 0 || dt > MAX_DT) {
+      reset();
+      return;
+    }
+    if (nanos - bypassUntilNanos < 0) {
+      return;
+    }
+
+    long start = System.nanoTime();
+
+    double turn = endDirection - startDirection;
+    if (turn > 180) {
+      turn -= 360;
+    } else if (turn < -180) {
+      turn += 360;
+    }
+    double yawRate = Math.toRadians(turn) / dt;
+
+    double yaw = Math.toRadians(navxYaw);
+    double forwardAccel = (worldAccelX * Math.sin(yaw) + worldAccelY * Math.cos(yaw))
+        * INCHES_PER_SECOND_SQUARED_PER_G;
+    double lateralAccel = (worldAccelX * Math.cos(yaw) - worldAccelY * Math.sin(yaw))
+        * INCHES_PER_SECOND_SQUARED_PER_G;
+
+    predict(dt, yawRate, forwardAccel, lateralAccel);
+
+    boolean slipNow = nanos - slipUntilNanos < 0;
+    boolean forwardSlip =
+        correct(0, encoderInches / dt, ENCODER_SPEED_NOISE * ENCODER_SPEED_NOISE, slipNow);
+    boolean lateralSlip = correct(1, 0, LATERAL_NOISE * LATERAL_NOISE, slipNow);
+    if (forwardSlip || lateralSlip) {
+      if (!slipNow) {
+        slipEvents++;
+      }
+      slipUntilNanos = nanos + SLIP_HOLD_NANOS;
+    }
+    slipping = nanos - slipUntilNanos < 0;
+
+    forwardStep = state[0] * dt;
+    lateralStep = state[1] * dt;
+    forwardSpeed = state[0];
+    lateralSpeed = state[1];
+    valid = true;
+
+    if (System.nanoTime() - start > BUDGET_NANOS) {
+      if (++overBudget >= OVER_BUDGET_BEFORE_BYPASS) {
+        overBudget = 0;
+        bypasses++;
+        bypassUntilNanos = nanos + BYPASS_NANOS;
+      }
+    } else {
+      overBudget = 0;
+    }
+  }
+
+  /**
+   * Moves the speeds forward by one step. The speeds are in the turning robot frame, so turning
+   * moves speed between the axes.
+   */
+  private void predict(double dt, double yawRate, double forwardAccel, double lateralAccel) {
+    double forward = state[0];
+    double lateral = state[1];
+    state[0] = forward + (forwardAccel - state[2] + yawRate * lateral) * dt;
+    state[1] = lateral + (lateralAccel - state[3] - yawRate * forward) * dt;
+
+    // P = F P F^T + Q, with F the Jacobian of the step above
+    double[][] f = jacobian;
+    f[0][0] = 1;
+    f[0][1] = yawRate * dt;
+    f[0][2] = -dt;
+    f[1][0] = -yawRate * dt;
+    f[1][1] = 1;
+    f[1][3] = -dt;
+    f[2][2] = 1;
+    f[3][3] = 1;
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < 4; j++) {
+        double sum = 0;
+        for (int k = 0; k < 4; k++) {
+          sum += f[i][k] * covariance[k][j];
+        }
+        scratch[i][j] = sum;
+      }
+    }
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < 4; j++) {
+        double sum = 0;
+        for (int k = 0; k < 4; k++) {
+          sum += scratch[i][k] * f[j][k];
+        }
+        covariance[i][j] = sum;
+      }
+    }
+    double accelVariance = ACCEL_NOISE * ACCEL_NOISE * dt * dt;
+    covariance[0][0] += accelVariance;
+    covariance[1][1] += accelVariance;
+    covariance[2][2] += BIAS_NOISE * BIAS_NOISE * dt;
+    covariance[3][3] += BIAS_NOISE * BIAS_NOISE * dt;
+  }
+
+  /**
+   * Corrects one of the speeds with a measurement of it. A measurement far outside what was
+   * expected, or any measurement while slipping, is trusted much less.
+   *
+   * @param index 0 for forward, 1 for sideways
+   * @param measurement The measured speed
+   * @param variance The measurement variance when the wheels are gripping
+   * @param slipping Whether the wheels were already slipping
+   * @return True if the measurement was far outside what was expected
+   */
+  private boolean correct(int index, double measurement, double variance, boolean slipping) {
+    double innovation = measurement - state[index];
+    double innovationVariance = covariance[index][index] + variance;
+    boolean outlier = innovation * innovation / innovationVariance > SLIP_GATE;
+    if (outlier || slipping) {
+      innovationVariance = covariance[index][index] + variance * SLIP_ENCODER_WEIGHT;
+    }
+    for (int i = 0; i < 4; i++) {
+      gain[i] = covariance[i][index] / innovationVariance;
+    }
+    for (int i = 0; i < 4; i++) {
+      state[i] += gain[i] * innovation;
+    }
+    // P = (I - K H) P, where H picks out index
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < 4; j++) {
+        scratch[i][j] = covariance[i][j] - gain[i] * covariance[index][j];
+      }
+    }
+    for (int i = 0; i < 4; i++) {
+      System.arraycopy(scratch[i], 0, covariance[i], 0, 4);
+    }
+    return outlier;
+  }
+
+  /**
+   * Checks whether the last update produced a step. It doesn't right after a stall or while the
+   * filter is bypassed for going over its time budget.
+   *
+   * @return True if getForwardStep() and getLateralStep() can be used
+   */
+  boolean isValid() {
+    return valid;
+  }
+
+  double getForwardStep() {
+    return forwardStep;
+  }
+
+  double getLateralStep() {
+    return lateralStep;
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    // slip only lasts a moment, so look for it every cycle
+    telemetry.addBoolean("Wheel_Slip", Rate.FAST, () -> slipping);
+    telemetry.addNumber("Wheel_Slip_Events", Rate.NORMAL, () -> slipEvents);
+    telemetry.addNumber("Fused_Forward_Speed", Rate.NORMAL, 0.5, () -> forwardSpeed);
+    telemetry.addNumber("Fused_Lateral_Speed", Rate.NORMAL, 0.5, () -> lateralSpeed);
+    telemetry.addNumber("Fusion_Bypasses", Rate.SLOW, () -> bypasses);
+  }
+}
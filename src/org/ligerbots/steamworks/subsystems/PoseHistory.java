@@ -0,0 +1,124 @@
+package org.ligerbots.steamworks.subsystems;
+
+/**
+ * The last couple of seconds of dead reckoning poses, so vision frames can be matched up with where
+ * the robot was when the picture was taken. Stored in primitive arrays used as a ring buffer, so
+ * adding a pose at 200Hz doesn't allocate.
+ */
+class PoseHistory {
+  private final long[] times;
+  private final double[] xs;
+  private final double[] ys;
+  private final double[] directions;
+  private int next;
+  private int count;
+
+  /**
+   * Creates an empty history.
+   *
+   * @param capacity How many poses to keep
+   */
+  PoseHistory(int capacity) {
+    times = new long[capacity];
+    xs = new double[capacity];
+    ys = new double[capacity];
+    directions = new double[capacity];
+  }
+
+  /**
+   * Adds the newest pose. If two threads race to add poses and the times come in slightly out of
+   * order, the late one is stamped with the previous time so the history stays sorted.
+   *
+   * @param nanos When the robot was here, in System.nanoTime() nanoseconds
+   * @param x Field x
+   * @param y Field y
+   * @param direction Direction in degrees, NavX convention
+   */
+  synchronized void add(long nanos, double x, double y, double direction) {
+    if (count > 0 && nanos - times[index(count - 1)] < 0) {
+      nanos = times[index(count - 1)];
+    }
+    times[next] = nanos;
+    xs[next] = x;
+    ys[next] = y;
+    directions[next] = direction;
+    next = (next + 1) % times.length;
+    if (count < times.length) {
+      count++;
+    }
+  }
+
+  /**
+   * Forgets every pose, for when the position is reset and the old poses no longer line up.
+   */
+  synchronized void clear() {
+    count = 0;
+  }
+
+  /**
+   * Moves every pose, for when the position is corrected and the old poses should move with it.
+   *
+   * @param deltaX How far to move in x
+   * @param deltaY How far to move in y
+   */
+  synchronized void shift(double deltaX, double deltaY) {
+    for (int age = 0; age < count; age++) {
+      xs[index(age)] += deltaX;
+      ys[index(age)] += deltaY;
+    }
+  }
+
+  /**
+   * Finds where the robot was at a given time, interpolating between the poses on either side.
+   * Times after the newest pose get the newest pose.
+   *
+   * @param nanos The time, in System.nanoTime() nanoseconds
+   * @param out Where to put {x, y, direction}
+   * @return False if the time is older than anything in the history
+   */
+  synchronized boolean get(long nanos, double[] out) {
+    if (count == 0 || nanos - times[index(0)] < 0) {
+      return false;
+    }
+
+    int newest = index(count - 1);
+    if (nanos - times[newest] >= 0) {
+      out[0] = xs[newest];
+      out[1] = ys[newest];
+      out[2] = directions[newest];
+      return true;
+    }
+
+    // find the last pose at or before nanos
+    int low = 0;
+    int high = count - 1;
+    while (high - low > 1) {
+      int middle = (low + high) >>> 1;
+      if (nanos - times[index(middle)] >= 0) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+
+    int before = index(low);
+    int after = index(high);
+    double fraction = (double) (nanos - times[before]) / (times[after] - times[before]);
+    out[0] = xs[before] + (xs[after] - xs[before]) * fraction;
+    out[1] = ys[before] + (ys[after] - ys[before]) * fraction;
+
+    // go the short way around
+    double deltaDirection = directions[after] - directions[before];
+    if (deltaDirection > 180) {
+      deltaDirection -= 360;
+    } else if (deltaDirection < -180) {
+      deltaDirection += 360;
+    }
+    out[2] = DriveTrain.fixDegrees(directions[before] + deltaDirection * fraction);
+    return true;
+  }
+
+  private int index(int age) {
+    return (next - count + age + times.length) % times.length;
+  }
+}
@@ -2,9 +2,9 @@ package org.ligerbots.steamworks.subsystems;
 
 import edu.wpi.first.wpilibj.Ultrasonic;
 import edu.wpi.first.wpilibj.command.Subsystem;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import java.util.Arrays;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -136,11 +136,11 @@ public class ProximitySensor extends Subsystem implements SmartDashboardLogger {
   public void initDefaultCommand() {}
 
   /**
-   * Sends sensor data to the dashboard.
+   * Registers sensor data to send to the dashboard.
    */
-  public void sendDataToSmartDashboard() {
-    SmartDashboard.putNumber("Ultrasonic_Left", getDistanceLeft());
-    SmartDashboard.putNumber("Ultrasonic_Right", getDistanceRight());
+  public void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber("Ultrasonic_Left", Rate.NORMAL, 0.5, this::getDistanceLeft);
+    telemetry.addNumber("Ultrasonic_Right", Rate.NORMAL, 0.5, this::getDistanceRight);
   }
 }
 
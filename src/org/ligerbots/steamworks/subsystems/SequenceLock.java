@@ -0,0 +1,62 @@
+package org.ligerbots.steamworks.subsystems;
+
+/**
+ * A single-writer sequence lock. The writer bumps the sequence to an odd number, writes its fields,
+ * then bumps it back to even. Readers copy the fields out and retry if the sequence was odd or
+ * changed while they were copying, so they always see one complete write without blocking the
+ * writer or allocating.
+ *
+ * <p>
+ * Java 8 has no standalone load fence, so the guarded fields must be volatile. Otherwise the JIT is
+ * free to move the field reads past the second sequence read.
+ * </p>
+ */
+final class SequenceLock {
+  private volatile long sequence;
+
+  /**
+   * Marks the start of a write. Only one thread may ever write.
+   */
+  void beginWrite() {
+    sequence++;
+  }
+
+  /**
+   * Marks the end of a write.
+   */
+  void endWrite() {
+    sequence++;
+  }
+
+  /**
+   * Waits for any in-progress write to finish.
+   *
+   * @return The sequence to pass to {@link #validate(long)} after reading
+   */
+  long beginRead() {
+    long seq;
+    while (((seq = sequence) & 1) != 0) {
+      Thread.yield();
+    }
+    return seq;
+  }
+
+  /**
+   * Checks whether the fields read since {@link #beginRead()} are consistent.
+   *
+   * @param seq The value returned by beginRead()
+   * @return True if no write happened during the read
+   */
+  boolean validate(long seq) {
+    return sequence == seq;
+  }
+
+  /**
+   * Gets the number of completed writes.
+   *
+   * @return The write count
+   */
+  long getWriteCount() {
+    return sequence >>> 1;
+  }
+}
@@ -7,6 +7,7 @@ import edu.wpi.first.wpilibj.livewindow.LiveWindow;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -198,28 +199,32 @@ public class Shooter extends Subsystem implements SmartDashboardLogger {
   }
 
   /**
-   * Sends shooter data to smart dashboard.
+   * Registers shooter data to send to smart dashboard.
    */
-  public void sendDataToSmartDashboard() {
+  public void registerTelemetry(TelemetryRegistry telemetry) {
     if (RobotMap.IS_ROADKILL) {
       return;
     }
-    SmartDashboard.putNumber("Shooter_Master_Talon_Power",
-        shooterMaster.getOutputCurrent() * shooterMaster.getOutputVoltage());
-    SmartDashboard.putNumber("Shooter_Slave_Talon_Power",
-        shooterSlave.getOutputCurrent() * shooterSlave.getOutputVoltage());
-    SmartDashboard.putNumber("Shooter_RPM_Requested", requestedRpm);
-    SmartDashboard.putNumber("Shooter_RPM_Real", getShooterRpm());
-    SmartDashboard.putNumber("Shooter_PID_error", shooterMaster.getClosedLoopError());
+    telemetry.addNumber("Shooter_Master_Talon_Power", Rate.NORMAL, 1,
+        () -> shooterMaster.getOutputCurrent() * shooterMaster.getOutputVoltage());
+    telemetry.addNumber("Shooter_Slave_Talon_Power", Rate.NORMAL, 1,
+        () -> shooterSlave.getOutputCurrent() * shooterSlave.getOutputVoltage());
+    telemetry.addNumber("Shooter_RPM_Requested", Rate.NORMAL, () -> requestedRpm);
+    telemetry.addNumber("Shooter_RPM_Real", Rate.NORMAL, 10, this::getShooterRpm);
+    telemetry.addNumber("Shooter_PID_error", Rate.NORMAL, 5,
+        () -> shooterMaster.getClosedLoopError());
     
-    SmartDashboard.putBoolean("Shooter_Fault", shooterFault);
-    SmartDashboard.putBoolean("Shooter_Master_Ok", shooterMaster.getFaultHardwareFailure() == 0);
-    SmartDashboard.putBoolean("Shooter_Master_Temp_Ok",
-        shooterMaster.getStickyFaultOverTemp() == 0);
-    SmartDashboard.putBoolean("Shooter_Slave_Ok", shooterSlave.getFaultHardwareFailure() == 0);
-    SmartDashboard.putBoolean("Shooter_Slave_Temp_Ok", shooterSlave.getStickyFaultOverTemp() == 0);
+    telemetry.addBoolean("Shooter_Fault", Rate.NORMAL, () -> shooterFault);
+    telemetry.addBoolean("Shooter_Master_Ok", Rate.SLOW,
+        () -> shooterMaster.getFaultHardwareFailure() == 0);
+    telemetry.addBoolean("Shooter_Master_Temp_Ok", Rate.SLOW,
+        () -> shooterMaster.getStickyFaultOverTemp() == 0);
+    telemetry.addBoolean("Shooter_Slave_Ok", Rate.SLOW,
+        () -> shooterSlave.getFaultHardwareFailure() == 0);
+    telemetry.addBoolean("Shooter_Slave_Temp_Ok", Rate.SLOW,
+        () -> shooterSlave.getStickyFaultOverTemp() == 0);
     
-    SmartDashboard.putBoolean("Shooter_Master_Present", shooterMaster.isAlive());
-    SmartDashboard.putBoolean("Shooter_Slave_Present", shooterSlave.isAlive());
+    telemetry.addBoolean("Shooter_Master_Present", Rate.SLOW, () -> shooterMaster.isAlive());
+    telemetry.addBoolean("Shooter_Slave_Present", Rate.SLOW, () -> shooterSlave.isAlive());
   }
 }
@@ -8,7 +8,11 @@ package org.ligerbots.steamworks.subsystems;
  */
 public interface SmartDashboardLogger {
   /**
-   * Sends diagnostics to smartdashboard.
+   * Registers diagnostics to send to smartdashboard. Called once, after all the subsystems exist.
+   * Only the signals may read devices, so a device that's missing or not ready yet can't stop the
+   * rest of the diagnostics from being registered.
+   * 
+   * @param telemetry The registry to add them to
    */
-  public void sendDataToSmartDashboard();
+  public void registerTelemetry(TelemetryRegistry telemetry);
 }
@@ -5,6 +5,7 @@ import edu.wpi.first.wpilibj.Servo;
 import edu.wpi.first.wpilibj.command.Subsystem;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import org.ligerbots.steamworks.RobotMap;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,11 +47,11 @@ public class Stirrer extends Subsystem implements SmartDashboardLogger {
   public void initDefaultCommand() {}
 
   /**
-   * Sends diagnostics to SmartDashboard.
+   * Registers diagnostics to send to SmartDashboard.
    */
-  public void sendDataToSmartDashboard() {
-    SmartDashboard.putBoolean("Stirrer_On",
-        stirrerServo.get() != RobotMap.STIRRER_SERVO_VALUE_STOP);
+  public void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addBoolean("Stirrer_On", Rate.NORMAL,
+        () -> stirrerServo.get() != RobotMap.STIRRER_SERVO_VALUE_STOP);
   }
 }
 
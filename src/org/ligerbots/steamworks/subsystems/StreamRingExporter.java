@@ -0,0 +1,123 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gets the last few seconds of video out of a {@link StreamRingRecorder} file. Copy the file off
+ * the roboRIO first, then run
+ *
+ * <pre>
+ * java -cp bin org.ligerbots.steamworks.subsystems.StreamRingExporter stream_ring.bin 30 match
+ * </pre>
+ *
+ * <p>
+ * to get match_gear.mjpeg and match_boiler.mjpeg, which VLC and ffmpeg can play, and match.csv with
+ * the frame number, camera, wall clock time and receive time of every frame.
+ * </p>
+ */
+class StreamRingExporter {
+  private static final String[] STREAM_NAMES = {"gear", "boiler"};
+
+  private static class Frame {
+    long index;
+    long position;
+    long receiveNanos;
+    long wallMillis;
+    int length;
+    int stream;
+  }
+
+  /**
+   * Exports frames.
+   *
+   * @param args The ring file, how many seconds back from the newest frame to export, and the
+   *        output file prefix
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("Usage: StreamRingExporter <ring file> <seconds> <output prefix>");
+      System.exit(1);
+    }
+    File ringFile = new File(args[0]);
+    long windowMillis = (long) (Double.parseDouble(args[1]) * 1000);
+    String prefix = args[2];
+
+    ByteBuffer map;
+    try (FileChannel channel = FileChannel.open(ringFile.toPath(), StandardOpenOption.READ)) {
+      map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (map.getInt(0) != StreamRingRecorder.FILE_MAGIC
+        || map.getInt(4) != StreamRingRecorder.FILE_VERSION) {
+      throw new IOException("Not a stream ring file: " + ringFile);
+    }
+    int indexEntries = map.getInt(8);
+    int dataCapacity = map.getInt(12);
+    long frameCount = map.getLong(StreamRingRecorder.OFFSET_FRAME_COUNT);
+    long writePosition = map.getLong(StreamRingRecorder.OFFSET_WRITE_POSITION);
+    int dataStart = StreamRingRecorder.FILE_HEADER_LENGTH
+        + indexEntries * StreamRingRecorder.INDEX_ENTRY_LENGTH;
+
+    // oldest first, skipping anything whose index entry or data has been overwritten
+    List<Frame> frames = new ArrayList<>();
+    long newestMillis = Long.MIN_VALUE;
+    for (long index = Math.max(0, frameCount - indexEntries); index < frameCount; index++) {
+      int entry = StreamRingRecorder.FILE_HEADER_LENGTH
+          + (int) (index % indexEntries) * StreamRingRecorder.INDEX_ENTRY_LENGTH;
+      Frame frame = new Frame();
+      frame.index = map.getLong(entry);
+      frame.position = map.getLong(entry + 8);
+      frame.receiveNanos = map.getLong(entry + 16);
+      frame.wallMillis = map.getLong(entry + 24);
+      frame.length = map.getInt(entry + 32);
+      frame.stream = map.get(entry + 36);
+      if (frame.index != index || frame.position < writePosition - dataCapacity
+          || frame.stream < 0 || frame.stream >= STREAM_NAMES.length) {
+        continue;
+      }
+      frames.add(frame);
+      newestMillis = Math.max(newestMillis, frame.wallMillis);
+    }
+
+    OutputStream[] videos = new OutputStream[STREAM_NAMES.length];
+    byte[] bytes = new byte[0];
+    int exported = 0;
+    try (PrintWriter csv = new PrintWriter(prefix + ".csv")) {
+      csv.println("frame,camera,wall_millis,receive_nanos,bytes");
+      for (Frame frame : frames) {
+        if (frame.wallMillis < newestMillis - windowMillis) {
+          continue;
+        }
+        if (videos[frame.stream] == null) {
+          videos[frame.stream] = new BufferedOutputStream(
+              new FileOutputStream(prefix + "_" + STREAM_NAMES[frame.stream] + ".mjpeg"));
+        }
+        if (bytes.length < frame.length) {
+          bytes = new byte[frame.length];
+        }
+        map.position(dataStart + (int) (frame.position % dataCapacity));
+        map.get(bytes, 0, frame.length);
+        videos[frame.stream].write(bytes, 0, frame.length);
+        csv.println(String.format("%d,%s,%d,%d,%d", frame.index, STREAM_NAMES[frame.stream],
+            frame.wallMillis, frame.receiveNanos, frame.length));
+        exported++;
+      }
+    } finally {
+      for (OutputStream video : videos) {
+        if (video != null) {
+          video.close();
+        }
+      }
+    }
+    System.out.println(String.format("Exported %d of %d frames", exported, frames.size()));
+  }
+}
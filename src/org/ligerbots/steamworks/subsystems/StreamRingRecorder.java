@@ -0,0 +1,146 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the last few minutes of camera frames in a fixed size memory-mapped file, so there's video
+ * to look at after a match. New frames overwrite the oldest ones, so the file never grows. The file
+ * survives the robot code restarting, and recording carries on where it left off. Use
+ * {@link StreamRingExporter} to get the frames out.
+ *
+ * <p>
+ * Layout: a 64 byte header (magic int, version int, index entries int, data capacity int, frame
+ * count long, write position long), then the index, then the data. Each index entry is frame index
+ * long, write position long, receive nanos long, wall clock millis long, length int and stream
+ * byte, padded to 40 bytes; frame n is in entry n % index entries. The write position counts every
+ * byte ever written, so a frame's data is at write position % data capacity and is still intact if
+ * its write position is within data capacity of the header's. A frame never wraps around the end of
+ * the data; the rest of the data is skipped instead.
+ * </p>
+ *
+ * <p>
+ * Recording a frame is a copy into the page cache. The kernel writes it back in its own time, so
+ * nothing ever waits on the disk. Only the vision network thread may call
+ * {@link #record(int, long, ByteBuffer)}.
+ * </p>
+ */
+class StreamRingRecorder {
+  private static final Logger logger = LoggerFactory.getLogger(StreamRingRecorder.class);
+
+  static final int FILE_MAGIC = 0x4C535231; // "LSR1"
+  static final int FILE_VERSION = 1;
+  static final int FILE_HEADER_LENGTH = 64;
+  static final int INDEX_ENTRY_LENGTH = 40;
+  // about four minutes of both cameras at 15fps
+  static final int INDEX_ENTRIES = 8192;
+
+  static final int OFFSET_FRAME_COUNT = 16;
+  static final int OFFSET_WRITE_POSITION = 24;
+
+  volatile long recordedFrames;
+  volatile long droppedFrames;
+
+  private final MappedByteBuffer map;
+  private final int dataCapacity;
+  private final int dataStart;
+  private long frameCount;
+  private long writePosition;
+
+  /**
+   * Opens the ring file, carrying on from an existing one if it has the same size.
+   *
+   * @param file The file
+   * @param size The file size in bytes, including the header and index
+   */
+  StreamRingRecorder(File file, int size) throws IOException {
+    dataStart = FILE_HEADER_LENGTH + INDEX_ENTRIES * INDEX_ENTRY_LENGTH;
+    dataCapacity = size - dataStart;
+    if (dataCapacity <= 0) {
+      throw new IllegalArgumentException("Ring file too small: " + size);
+    }
+
+    // writing to a mapped page the disk has no room for crashes the JVM, so check up front
+    long needed = Math.max(0, size - file.length());
+    long usable = file.getAbsoluteFile().getParentFile().getUsableSpace();
+    logger.info(String.format("Stream ring %s needs %d MB more, %d MB free", file,
+        needed / 1000000, usable / 1000000));
+    if (usable < needed) {
+      throw new IOException("Not enough space for the stream ring file");
+    }
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      boolean resume = channel.size() == size;
+      // the mapping stays valid after the channel is closed
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (resume && map.getInt(0) == FILE_MAGIC && map.getInt(4) == FILE_VERSION
+          && map.getInt(8) == INDEX_ENTRIES && map.getInt(12) == dataCapacity) {
+        frameCount = map.getLong(OFFSET_FRAME_COUNT);
+        writePosition = map.getLong(OFFSET_WRITE_POSITION);
+        logger.info(String.format("Continuing stream ring %s at frame %d", file, frameCount));
+      } else {
+        map.putInt(0, FILE_MAGIC);
+        map.putInt(4, FILE_VERSION);
+        map.putInt(8, INDEX_ENTRIES);
+        map.putInt(12, dataCapacity);
+        map.putLong(OFFSET_FRAME_COUNT, 0);
+        map.putLong(OFFSET_WRITE_POSITION, 0);
+        logger.info(String.format("Started stream ring %s", file));
+      }
+    }
+  }
+
+  /**
+   * Adds a frame, overwriting the oldest ones if needed. The frame's position and limit are left
+   * as they were.
+   *
+   * @param stream CameraStreamForwarder.STREAM_GEAR or STREAM_BOILER
+   * @param receiveNanos When the frame was received
+   * @param frame The frame, from its position to its limit
+   */
+  void record(int stream, long receiveNanos, ByteBuffer frame) {
+    int length = frame.remaining();
+    // one frame taking over most of the ring would wipe out everything else
+    if (length > dataCapacity / 8) {
+      droppedFrames++;
+      return;
+    }
+
+    int offset = (int) (writePosition % dataCapacity);
+    if (offset + length > dataCapacity) {
+      writePosition += dataCapacity - offset;
+      offset = 0;
+    }
+    long framePosition = writePosition;
+
+    // move the write position first, so frames about to be overwritten stop being valid before
+    // their data changes
+    writePosition += length;
+    map.putLong(OFFSET_WRITE_POSITION, writePosition);
+
+    int position = frame.position();
+    map.position(dataStart + offset);
+    map.put(frame);
+    frame.position(position);
+
+    int entry = FILE_HEADER_LENGTH + (int) (frameCount % INDEX_ENTRIES) * INDEX_ENTRY_LENGTH;
+    map.putLong(entry, frameCount);
+    map.putLong(entry + 8, framePosition);
+    map.putLong(entry + 16, receiveNanos);
+    map.putLong(entry + 24, System.currentTimeMillis());
+    map.putInt(entry + 32, length);
+    map.put(entry + 36, (byte) stream);
+
+    // the frame only counts once everything about it is written
+    frameCount++;
+    map.putLong(OFFSET_FRAME_COUNT, frameCount);
+    recordedFrames++;
+  }
+}
@@ -0,0 +1,128 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.nio.ByteBuffer;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * Picks the resolution, frame rate and JPEG quality one phone should stream at, based on how many
+ * of its frames the forwarder has to throw away and how long they wait before going out. When
+ * frames are being lost it steps down to the next cheaper setting; once things have been clean for
+ * a while it tries the next better one. The setting goes to the phone in the feedback packet.
+ *
+ * <p>
+ * Only the vision network thread may call {@link #update} and {@link #writeHint}.
+ * </p>
+ */
+class StreamSettingsController {
+  // width, height, fps, JPEG quality, best first
+  private static final int[][] LEVELS = {
+      {320, 240, 30, 60},
+      {320, 240, 20, 50},
+      {320, 240, 15, 40},
+      {240, 180, 15, 35},
+      {176, 144, 10, 30}};
+  private static final String[] LEVEL_NAMES = new String[LEVELS.length];
+
+  static {
+    for (int i = 0; i < LEVELS.length; i++) {
+      LEVEL_NAMES[i] = String.format("%dx%d %dfps q%d", LEVELS[i][0], LEVELS[i][1], LEVELS[i][2],
+          LEVELS[i][3]);
+    }
+  }
+
+  // width short, height short, fps byte, quality byte
+  static final int HINT_LENGTH = 6;
+
+  private static final double SMOOTHING = 0.25;
+  private static final double MAX_LOSS = 0.15;
+  private static final double GOOD_LOSS = 0.02;
+  private static final long MAX_LATENCY_NANOS = 40_000_000L;
+  private static final long GOOD_LATENCY_NANOS = 15_000_000L;
+  // wait this long after a change to see what it did before stepping down again
+  private static final long STEP_DOWN_HOLD_NANOS = 1_000_000_000L;
+  // and this long with everything fine before trying a better setting
+  private static final long STEP_UP_HOLD_NANOS = 4_000_000_000L;
+
+  final String name;
+  volatile int level;
+  volatile double loss;
+  volatile double latencyNanos;
+  volatile long changes;
+
+  private long lastReceived;
+  private long lastLost;
+  private long lastChangeNanos;
+  private long goodSinceNanos;
+
+  StreamSettingsController(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Looks at what happened to the stream's frames since the last call and changes the setting if
+   * needed. Frames that were dropped or throttled count as lost. Should only be called while the
+   * stream is being forwarded, since skipped frames say nothing about the link.
+   *
+   * @param counters The stream's frame counters
+   * @param nanos The current time
+   */
+  void update(CameraStreamForwarder.StreamCounters counters, long nanos) {
+    long received = counters.received;
+    // a frame is only dropped when a newer frame from the same camera replaces it, so frames from
+    // the other camera going out first don't count against this one
+    long lost = counters.dropped + counters.throttled;
+    long newFrames = received - lastReceived;
+    long newLost = lost - lastLost;
+    lastReceived = received;
+    lastLost = lost;
+    if (newFrames <= 0) {
+      return;
+    }
+
+    loss += (Math.min(1, (double) newLost / newFrames) - loss) * SMOOTHING;
+    latencyNanos += (counters.lastLatencyNanos - latencyNanos) * SMOOTHING;
+
+    boolean bad = loss > MAX_LOSS || latencyNanos > MAX_LATENCY_NANOS;
+    boolean good = loss < GOOD_LOSS && latencyNanos < GOOD_LATENCY_NANOS;
+    if (!good) {
+      goodSinceNanos = nanos;
+    }
+
+    if (bad && level < LEVELS.length - 1 && nanos - lastChangeNanos > STEP_DOWN_HOLD_NANOS) {
+      setLevel(level + 1, nanos);
+    } else if (good && level > 0 && nanos - goodSinceNanos > STEP_UP_HOLD_NANOS
+        && nanos - lastChangeNanos > STEP_UP_HOLD_NANOS) {
+      setLevel(level - 1, nanos);
+    }
+  }
+
+  private void setLevel(int newLevel, long nanos) {
+    level = newLevel;
+    lastChangeNanos = nanos;
+    goodSinceNanos = nanos;
+    changes++;
+  }
+
+  /**
+   * Puts the current setting into the feedback packet.
+   *
+   * @param packet The feedback packet
+   * @param offset Where the hint goes
+   */
+  void writeHint(ByteBuffer packet, int offset) {
+    int[] setting = LEVELS[level];
+    packet.putShort(offset, (short) setting[0]);
+    packet.putShort(offset + 2, (short) setting[1]);
+    packet.put(offset + 4, (byte) setting[2]);
+    packet.put(offset + 5, (byte) setting[3]);
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber(name + "_Level", Rate.NORMAL, () -> level);
+    telemetry.addString(name + "_Setting", Rate.NORMAL, () -> LEVEL_NAMES[level]);
+    telemetry.addNumber(name + "_Loss_Percent", Rate.NORMAL, 0.5, () -> loss * 100);
+    telemetry.addNumber(name + "_Smoothed_Latency_Ms", Rate.NORMAL, 0.1,
+        () -> latencyNanos / 1e6);
+    telemetry.addNumber(name + "_Setting_Changes", Rate.NORMAL, () -> changes);
+  }
+}
@@ -0,0 +1,159 @@
+package org.ligerbots.steamworks.subsystems;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * The dashboards that get the camera stream. Anything that connects to NetworkTables and isn't a
+ * phone is added, and removed again when it disconnects. Dashboards are told apart by their
+ * NetworkTables identity and IP address together, since every copy of the same dashboard program
+ * connects with the same identity.
+ *
+ * <p>
+ * The table is changed from the NetworkTables listener thread and read from the vision network
+ * thread. Changes copy the array, so the network thread can loop over a snapshot without locking.
+ * </p>
+ */
+class StreamSubscribers {
+  // back off from 100ms up to 5s while sends to a dashboard keep failing
+  private static final long MIN_BACKOFF_NANOS = 100_000_000L;
+  private static final long MAX_BACKOFF_NANOS = 5_000_000_000L;
+
+  /**
+   * One dashboard. The counters are only written by the vision network thread.
+   */
+  static class Subscriber {
+    final String remoteId;
+    final String ip;
+    final InetSocketAddress address;
+    // dashboard keys, made once so sending them doesn't allocate
+    final String framesKey;
+    final String megabytesKey;
+    final String errorsKey;
+    final String backedOffKey;
+    volatile long frames;
+    volatile long bytes;
+    volatile long errors;
+    volatile long backedOff;
+    private int failuresInARow;
+    private long retryNanos;
+
+    Subscriber(String remoteId, String ip, int port) {
+      this.remoteId = remoteId;
+      this.ip = ip;
+      this.address = new InetSocketAddress(ip, port);
+      String prefix = "Vision_Stream_Client_" + remoteId + "_" + ip;
+      framesKey = prefix + "_Frames";
+      megabytesKey = prefix + "_Megabytes";
+      errorsKey = prefix + "_Errors";
+      backedOffKey = prefix + "_Backed_Off";
+    }
+
+    boolean is(String remoteId, String ip) {
+      return this.remoteId.equals(remoteId) && this.ip.equals(ip);
+    }
+
+    /**
+     * Checks whether a failing dashboard has waited out its back-off.
+     *
+     * @param nanos The current time
+     * @return True if a frame should be sent to it
+     */
+    boolean isReady(long nanos) {
+      return failuresInARow == 0 || nanos - retryNanos >= 0;
+    }
+
+    void onSent(int length) {
+      frames++;
+      bytes += length;
+      failuresInARow = 0;
+    }
+
+    void onError(long nanos) {
+      errors++;
+      long backoff = Math.min(MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << Math.min(failuresInARow, 6));
+      failuresInARow++;
+      retryNanos = nanos + backoff;
+    }
+  }
+
+  private final int port;
+  private volatile Subscriber[] subscribers = new Subscriber[0];
+
+  /**
+   * Creates an empty table.
+   *
+   * @param port The port dashboards listen for the stream on
+   */
+  StreamSubscribers(int port) {
+    this.port = port;
+  }
+
+  /**
+   * Adds a dashboard, or starts it over if it's already there.
+   *
+   * @param remoteId The dashboard's NetworkTables identity
+   * @param ip Its IP address
+   */
+  synchronized void connected(String remoteId, String ip) {
+    remove(remoteId, ip);
+    Subscriber[] current = subscribers;
+    Subscriber[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = new Subscriber(remoteId, ip, port);
+    subscribers = updated;
+  }
+
+  /**
+   * Removes a dashboard.
+   *
+   * @param remoteId The dashboard's NetworkTables identity
+   * @param ip Its IP address
+   */
+  synchronized void disconnected(String remoteId, String ip) {
+    remove(remoteId, ip);
+  }
+
+  private void remove(String remoteId, String ip) {
+    Subscriber[] current = subscribers;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].is(remoteId, ip)) {
+        Subscriber[] updated = new Subscriber[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+        subscribers = updated;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Gets the current dashboards. The array must not be modified.
+   *
+   * @return A snapshot of the table
+   */
+  Subscriber[] get() {
+    return subscribers;
+  }
+
+  /**
+   * Registers the subscriber count, and a task for the per-dashboard numbers, whose keys come and
+   * go with the dashboards.
+   *
+   * @param telemetry The registry to add them to
+   */
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber("Vision_Stream_Subscribers", Rate.NORMAL, () -> subscribers.length);
+    telemetry.addPeriodic(Rate.NORMAL, this::sendClientsToSmartDashboard);
+  }
+
+  private void sendClientsToSmartDashboard() {
+    for (Subscriber subscriber : subscribers) {
+      SmartDashboard.putNumber(subscriber.framesKey, subscriber.frames);
+      SmartDashboard.putNumber(subscriber.megabytesKey, subscriber.bytes / 1e6);
+      SmartDashboard.putNumber(subscriber.errorsKey, subscriber.errors);
+      SmartDashboard.putNumber(subscriber.backedOffKey, subscriber.backedOff);
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package org.ligerbots.steamworks.subsystems;
+
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * Fuses vision frames of one target into a field position estimate with a constant-position Kalman
+ * filter. Each frame is turned into a field position using where the robot was when the frame was
+ * captured, so frames taken while driving or turning all agree. The gear lift's facing direction is
+ * filtered separately, since the boiler has none.
+ *
+ * <p>
+ * Frames far outside the current estimate are thrown out, unless several in a row agree with each
+ * other, which means the phone is looking at a different target now and the track starts over.
+ * </p>
+ *
+ * <p>
+ * Only the vision network thread may call {@link #update}. {@link #read} can be called from any
+ * thread.
+ * </p>
+ */
+class TargetTrack {
+  // 99.9% point of chi-squared with 2 degrees of freedom
+  private static final double GATE = 13.8;
+  private static final int OUTLIERS_BEFORE_RESET = 3;
+  // after this long without a frame, start over instead of gating
+  private static final long STALE_NANOS = 2_000_000_000L;
+  // estimates older than this aren't confident any more
+  private static final long MAX_CONFIDENT_AGE_NANOS = 1_000_000_000L;
+  private static final int MIN_CONFIDENT_UPDATES = 3;
+
+  final String name;
+  private final double positionNoise;
+  private final double headingNoise;
+  private final double confidentSigma;
+
+  // filter state, network thread only
+  private boolean started;
+  private double x;
+  private double y;
+  private double pxx;
+  private double pxy;
+  private double pyy;
+  private double heading;
+  private double headingVariance;
+  private long lastNanos;
+  private int outliers;
+  private long updates;
+
+  // published copy
+  private final SequenceLock lock = new SequenceLock();
+  private volatile double publishedX;
+  private volatile double publishedY;
+  private volatile double publishedPxx;
+  private volatile double publishedPxy;
+  private volatile double publishedPyy;
+  private volatile double publishedHeading;
+  private volatile double publishedHeadingVariance;
+  private volatile long publishedUpdates;
+  private volatile long publishedNanos;
+
+  volatile long rejected;
+  volatile long resets;
+
+  // main thread only, for the dashboard
+  private final Vision.TargetEstimate dashboardEstimate = new Vision.TargetEstimate();
+
+  /**
+   * Creates an empty track.
+   *
+   * @param name The dashboard prefix
+   * @param positionNoise How fast the position estimate gets less certain, in in^2/s, to cover dead
+   *        reckoning drift
+   * @param headingNoise How fast the heading estimate gets less certain, in deg^2/s
+   * @param confidentSigma The position standard deviation, in inches, below which the estimate is
+   *        good enough to act on
+   */
+  TargetTrack(String name, double positionNoise, double headingNoise, double confidentSigma) {
+    this.name = name;
+    this.positionNoise = positionNoise;
+    this.headingNoise = headingNoise;
+    this.confidentSigma = confidentSigma;
+  }
+
+  /**
+   * Adds one frame.
+   *
+   * @param nanos When the frame was captured, in robot nanoseconds
+   * @param robotX Robot field x at capture time
+   * @param robotY Robot field y at capture time
+   * @param bearing Field direction from the robot to the target, NavX convention
+   * @param range Distance from the robot to the target
+   * @param targetHeading Field direction the target faces, NavX convention, or NaN if unknown
+   * @param rangeSigma Standard deviation of the range, inches
+   * @param bearingSigma Standard deviation of the bearing, degrees
+   * @param headingSigma Standard deviation of the target heading, degrees
+   */
+  void update(long nanos, double robotX, double robotY, double bearing, double range,
+      double targetHeading, double rangeSigma, double bearingSigma, double headingSigma) {
+    double ux = Math.sin(Math.toRadians(bearing));
+    double uy = Math.cos(Math.toRadians(bearing));
+    double mx = robotX + range * ux;
+    double my = robotY + range * uy;
+
+    // measurement covariance: range error along the bearing, bearing error across it
+    double radial = rangeSigma * rangeSigma;
+    double tangentialSigma = range * Math.toRadians(bearingSigma);
+    double tangential = tangentialSigma * tangentialSigma;
+    double rxx = radial * ux * ux + tangential * uy * uy;
+    double ryy = radial * uy * uy + tangential * ux * ux;
+    double rxy = (radial - tangential) * ux * uy;
+    double rh = headingSigma * headingSigma;
+
+    if (!started || nanos - lastNanos > STALE_NANOS) {
+      if (started) {
+        resets++;
+      }
+      reset(nanos, mx, my, rxx, rxy, ryy, targetHeading, rh);
+      return;
+    }
+
+    double dt = Math.max(0, (nanos - lastNanos) / 1e9);
+    pxx += positionNoise * dt;
+    pyy += positionNoise * dt;
+    headingVariance += headingNoise * dt;
+
+    double sxx = pxx + rxx;
+    double sxy = pxy + rxy;
+    double syy = pyy + ryy;
+    double det = sxx * syy - sxy * sxy;
+    double ixx = syy / det;
+    double ixy = -sxy / det;
+    double iyy = sxx / det;
+
+    double vx = mx - x;
+    double vy = my - y;
+    double distance = vx * vx * ixx + 2 * vx * vy * ixy + vy * vy * iyy;
+    if (distance > GATE) {
+      rejected++;
+      if (++outliers >= OUTLIERS_BEFORE_RESET) {
+        resets++;
+        reset(nanos, mx, my, rxx, rxy, ryy, targetHeading, rh);
+      }
+      return;
+    }
+    outliers = 0;
+
+    // K = P * S^-1
+    double kxx = pxx * ixx + pxy * ixy;
+    double kxy = pxx * ixy + pxy * iyy;
+    double kyx = pxy * ixx + pyy * ixy;
+    double kyy = pxy * ixy + pyy * iyy;
+    x += kxx * vx + kxy * vy;
+    y += kyx * vx + kyy * vy;
+
+    // P = (I - K) * P
+    double newPxx = (1 - kxx) * pxx - kxy * pxy;
+    double newPxy = (1 - kxx) * pxy - kxy * pyy;
+    double newPyy = -kyx * pxy + (1 - kyy) * pyy;
+    pxx = newPxx;
+    pxy = newPxy;
+    pyy = newPyy;
+
+    if (!Double.isNaN(targetHeading)) {
+      if (Double.isNaN(heading)) {
+        heading = targetHeading;
+        headingVariance = rh;
+      } else {
+        double innovation = targetHeading - heading;
+        if (innovation > 180) {
+          innovation -= 360;
+        } else if (innovation < -180) {
+          innovation += 360;
+        }
+        double gain = headingVariance / (headingVariance + rh);
+        heading = DriveTrain.fixDegrees(heading + gain * innovation);
+        headingVariance *= 1 - gain;
+      }
+    }
+
+    lastNanos = nanos;
+    updates++;
+    publish();
+  }
+
+  /**
+   * Moves the estimate along with a correction to the robot's position, so frames taken after the
+   * correction still line up with it.
+   *
+   * @param deltaX How far the robot's position moved in x
+   * @param deltaY How far the robot's position moved in y
+   */
+  void shift(double deltaX, double deltaY) {
+    if (!started) {
+      return;
+    }
+    x += deltaX;
+    y += deltaY;
+    publish();
+  }
+
+  private void reset(long nanos, double mx, double my, double rxx, double rxy, double ryy,
+      double targetHeading, double rh) {
+    started = true;
+    x = mx;
+    y = my;
+    pxx = rxx;
+    pxy = rxy;
+    pyy = ryy;
+    heading = targetHeading;
+    headingVariance = rh;
+    lastNanos = nanos;
+    outliers = 0;
+    updates = 1;
+    publish();
+  }
+
+  private void publish() {
+    lock.beginWrite();
+    publishedX = x;
+    publishedY = y;
+    publishedPxx = pxx;
+    publishedPxy = pxy;
+    publishedPyy = pyy;
+    publishedHeading = heading;
+    publishedHeadingVariance = headingVariance;
+    publishedUpdates = updates;
+    publishedNanos = lastNanos;
+    lock.endWrite();
+  }
+
+  /**
+   * Copies the latest estimate.
+   *
+   * @param out Where to put it
+   */
+  void read(Vision.TargetEstimate out) {
+    long seq;
+    do {
+      seq = lock.beginRead();
+      out.x = publishedX;
+      out.y = publishedY;
+      out.varianceX = publishedPxx;
+      out.covarianceXy = publishedPxy;
+      out.varianceY = publishedPyy;
+      out.heading = publishedHeading;
+      out.headingVariance = publishedHeadingVariance;
+      out.updateCount = publishedUpdates;
+      out.lastUpdateNanos = publishedNanos;
+    } while (!lock.validate(seq));
+
+    out.confident = out.updateCount >= MIN_CONFIDENT_UPDATES
+        && System.nanoTime() - out.lastUpdateNanos < MAX_CONFIDENT_AGE_NANOS
+        && out.varianceX + out.varianceY < confidentSigma * confidentSigma;
+  }
+
+  private Vision.TargetEstimate readForDashboard() {
+    read(dashboardEstimate);
+    return dashboardEstimate;
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber(name + "_X", Rate.NORMAL, 0.1, () -> readForDashboard().x);
+    telemetry.addNumber(name + "_Y", Rate.NORMAL, 0.1, () -> readForDashboard().y);
+    telemetry.addNumber(name + "_Heading", Rate.NORMAL, 0.1, () -> readForDashboard().heading);
+    telemetry.addNumber(name + "_Sigma", Rate.NORMAL, 0.1, () -> {
+      Vision.TargetEstimate estimate = readForDashboard();
+      return Math.sqrt(estimate.varianceX + estimate.varianceY);
+    });
+    telemetry.addNumber(name + "_Heading_Sigma", Rate.NORMAL, 0.1,
+        () -> Math.sqrt(readForDashboard().headingVariance));
+    telemetry.addNumber(name + "_Updates", Rate.NORMAL, () -> readForDashboard().updateCount);
+    telemetry.addBoolean(name + "_Confident", Rate.NORMAL, () -> readForDashboard().confident);
+    telemetry.addNumber(name + "_Rejected", Rate.NORMAL, () -> rejected);
+    telemetry.addNumber(name + "_Resets", Rate.NORMAL, () -> resets);
+  }
+}
@@ -0,0 +1,409 @@
+package org.ligerbots.steamworks.subsystems;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import edu.wpi.first.wpilibj.tables.ITable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.ligerbots.steamworks.RobotMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends diagnostics to the dashboard without flooding NetworkTables. Subsystems register each value
+ * once, with how often it's worth looking at and how much it has to change before the dashboard
+ * needs to hear about it. Every robot cycle, {@link #flush(long)} reads whatever is due, writes
+ * only the values that changed, and then flushes NetworkTables once so they go out together.
+ *
+ * <p>
+ * Only the main thread may use this. Values read by the signals have to be safe to read from it.
+ * </p>
+ */
+public class TelemetryRegistry {
+  private static final Logger logger = LoggerFactory.getLogger(TelemetryRegistry.class);
+
+  /**
+   * How often a signal is read.
+   */
+  public enum Rate {
+    /** Every robot cycle. */
+    FAST,
+    /** Every {@link RobotMap#SMARTDASHBOARD_UPDATE_RATE} seconds. */
+    NORMAL,
+    /** Every second, for things that are slow to read or change slowly. */
+    SLOW,
+    /** Every ten seconds, for things that only change if a device reboots. */
+    RARE;
+
+    long getPeriodNanos() {
+      switch (this) {
+        case FAST:
+          return 0;
+        case NORMAL:
+          return (long) (RobotMap.SMARTDASHBOARD_UPDATE_RATE * RobotMap.NANOS_PER_SECOND);
+        case SLOW:
+          return (long) RobotMap.NANOS_PER_SECOND;
+        default:
+          return (long) (10 * RobotMap.NANOS_PER_SECOND);
+      }
+    }
+  }
+
+  private abstract static class Entry {
+    final Rate rate;
+
+    Entry(Rate rate) {
+      this.rate = rate;
+    }
+
+    /**
+     * Reads the entry and writes it if it needs to be.
+     *
+     * @return True if something was written
+     */
+    abstract boolean publish();
+  }
+
+  private abstract static class Signal extends Entry {
+    final ITable table;
+    final String key;
+    boolean published;
+
+    Signal(ITable table, String key, Rate rate) {
+      super(rate);
+      this.table = table;
+      this.key = key;
+    }
+  }
+
+  private static class NumberSignal extends Signal {
+    final double deadband;
+    final DoubleSupplier source;
+    double last;
+
+    NumberSignal(ITable table, String key, Rate rate, double deadband, DoubleSupplier source) {
+      super(table, key, rate);
+      this.deadband = deadband;
+      this.source = source;
+    }
+
+    double read() {
+      return source.getAsDouble();
+    }
+
+    @Override
+    boolean publish() {
+      double value = read();
+      if (published && Double.isNaN(value) == Double.isNaN(last)
+          && !(Math.abs(value - last) > deadband)) {
+        return false;
+      }
+      table.putNumber(key, value);
+      last = value;
+      published = true;
+      return true;
+    }
+  }
+
+  private static class RateSignal extends NumberSignal {
+    final double scale;
+    final LongSupplier counter;
+    long lastCount;
+    long lastNanos;
+
+    RateSignal(ITable table, String key, Rate rate, double deadband, double scale,
+        LongSupplier counter) {
+      super(table, key, rate, deadband, null);
+      this.scale = scale;
+      this.counter = counter;
+    }
+
+    @Override
+    double read() {
+      long count = counter.getAsLong();
+      long nanos = System.nanoTime();
+      double value = Double.NaN;
+      if (lastNanos != 0 && nanos > lastNanos) {
+        value = (count - lastCount) * scale * RobotMap.NANOS_PER_SECOND / (nanos - lastNanos);
+      }
+      lastCount = count;
+      lastNanos = nanos;
+      return value;
+    }
+  }
+
+  private static class CountsSignal extends Signal {
+    final int[] source;
+    // NetworkTables copies the array, so both can be reused
+    final double[] value;
+    final double[] last;
+
+    CountsSignal(ITable table, String key, Rate rate, int[] source) {
+      super(table, key, rate);
+      this.source = source;
+      value = new double[source.length];
+      last = new double[source.length];
+    }
+
+    @Override
+    boolean publish() {
+      boolean changed = !published;
+      for (int i = 0; i < source.length; i++) {
+        value[i] = source[i];
+        changed |= value[i] != last[i];
+      }
+      if (!changed) {
+        return false;
+      }
+      table.putNumberArray(key, value);
+      System.arraycopy(value, 0, last, 0, value.length);
+      published = true;
+      return true;
+    }
+  }
+
+  private static class BooleanSignal extends Signal {
+    final BooleanSupplier source;
+    boolean last;
+
+    BooleanSignal(ITable table, String key, Rate rate, BooleanSupplier source) {
+      super(table, key, rate);
+      this.source = source;
+    }
+
+    @Override
+    boolean publish() {
+      boolean value = source.getAsBoolean();
+      if (published && value == last) {
+        return false;
+      }
+      table.putBoolean(key, value);
+      last = value;
+      published = true;
+      return true;
+    }
+  }
+
+  private static class StringSignal extends Signal {
+    final Supplier<String> source;
+    String last;
+
+    StringSignal(ITable table, String key, Rate rate, Supplier<String> source) {
+      super(table, key, rate);
+      this.source = source;
+    }
+
+    @Override
+    boolean publish() {
+      String value = source.get();
+      if (value == null) {
+        value = "";
+      }
+      if (published && value.equals(last)) {
+        return false;
+      }
+      table.putString(key, value);
+      last = value;
+      published = true;
+      return true;
+    }
+  }
+
+  private static class PeriodicEntry extends Entry {
+    final Runnable task;
+
+    PeriodicEntry(Rate rate, Runnable task) {
+      super(rate);
+      this.task = task;
+    }
+
+    @Override
+    boolean publish() {
+      task.run();
+      return true;
+    }
+  }
+
+  private final ITable smartDashboard = NetworkTable.getTable("SmartDashboard");
+  private final List<Entry> entries = new ArrayList<>();
+  private final long[] lastDueNanos = new long[Rate.values().length];
+  private final boolean[] due = new boolean[Rate.values().length];
+
+  private long published;
+  private long suppressed;
+  private long errors;
+  private double flushMicros;
+
+  /**
+   * Creates the registry and registers its own statistics.
+   */
+  public TelemetryRegistry() {
+    addNumber("Telemetry_Signals", Rate.RARE, entries::size);
+    addNumber("Telemetry_Published", Rate.SLOW, () -> published);
+    addNumber("Telemetry_Suppressed", Rate.SLOW, () -> suppressed);
+    addNumber("Telemetry_Errors", Rate.SLOW, () -> errors);
+    addNumber("Telemetry_Flush_Us", Rate.SLOW, 10, () -> flushMicros);
+  }
+
+  /**
+   * Registers a number that's written whenever it changes.
+   *
+   * @param key The SmartDashboard key
+   * @param rate How often to read it
+   * @param source Where to read it from
+   */
+  public void addNumber(String key, Rate rate, DoubleSupplier source) {
+    addNumber(smartDashboard, key, rate, 0, source);
+  }
+
+  /**
+   * Registers a number that's written when it moves further than the deadband from what the
+   * dashboard last saw.
+   *
+   * @param key The SmartDashboard key
+   * @param rate How often to read it
+   * @param deadband How far it has to move
+   * @param source Where to read it from
+   */
+  public void addNumber(String key, Rate rate, double deadband, DoubleSupplier source) {
+    addNumber(smartDashboard, key, rate, deadband, source);
+  }
+
+  /**
+   * Registers a number in some other table.
+   *
+   * @param table The table to write to
+   * @param key The key in that table
+   * @param rate How often to read it
+   * @param deadband How far it has to move
+   * @param source Where to read it from
+   */
+  public void addNumber(ITable table, String key, Rate rate, double deadband,
+      DoubleSupplier source) {
+    entries.add(new NumberSignal(table, key, rate, deadband, source));
+  }
+
+  /**
+   * Registers a counter that's shown as how fast it went up since it was last read. The first
+   * reading is NaN.
+   *
+   * @param key The SmartDashboard key
+   * @param rate How often to read it
+   * @param deadband How far the rate has to move
+   * @param scale What to multiply counts per second by
+   * @param counter Where to read the counter from
+   */
+  public void addRate(String key, Rate rate, double deadband, double scale,
+      LongSupplier counter) {
+    entries.add(new RateSignal(smartDashboard, key, rate, deadband, scale, counter));
+  }
+
+  /**
+   * Registers an array of counts, such as histogram buckets, that's written as a number array
+   * whenever any of them changes. The array is read in place, so it must not be replaced.
+   *
+   * @param key The SmartDashboard key
+   * @param rate How often to read it
+   * @param counts The counts
+   */
+  public void addCounts(String key, Rate rate, int[] counts) {
+    entries.add(new CountsSignal(smartDashboard, key, rate, counts));
+  }
+
+  /**
+   * Registers a boolean that's written whenever it changes.
+   *
+   * @param key The SmartDashboard key
+   * @param rate How often to read it
+   * @param source Where to read it from
+   */
+  public void addBoolean(String key, Rate rate, BooleanSupplier source) {
+    addBoolean(smartDashboard, key, rate, source);
+  }
+
+  /**
+   * Registers a boolean in some other table.
+   *
+   * @param table The table to write to
+   * @param key The key in that table
+   * @param rate How often to read it
+   * @param source Where to read it from
+   */
+  public void addBoolean(ITable table, String key, Rate rate, BooleanSupplier source) {
+    entries.add(new BooleanSignal(table, key, rate, source));
+  }
+
+  /**
+   * Registers a string that's written whenever it changes.
+   *
+   * @param key The SmartDashboard key
+   * @param rate How often to read it
+   * @param source Where to read it from
+   */
+  public void addString(String key, Rate rate, Supplier<String> source) {
+    entries.add(new StringSignal(smartDashboard, key, rate, source));
+  }
+
+  /**
+   * Registers code that runs at a rate and writes to the dashboard itself, for diagnostics whose
+   * keys aren't known up front. Its writes go out in the same flush but aren't checked for
+   * changes. It can also read something once for the signals registered after it, so they all see
+   * the same sample.
+   *
+   * @param rate How often to run it
+   * @param task What to run
+   */
+  public void addPeriodic(Rate rate, Runnable task) {
+    entries.add(new PeriodicEntry(rate, task));
+  }
+
+  /**
+   * Reads every signal that's due, writes the ones that changed and flushes NetworkTables. Call
+   * once per robot cycle.
+   *
+   * @param nanos Now
+   */
+  public void flush(long nanos) {
+    long start = System.nanoTime();
+    for (Rate rate : Rate.values()) {
+      int index = rate.ordinal();
+      due[index] = lastDueNanos[index] == 0 || nanos - lastDueNanos[index] >= rate.getPeriodNanos();
+      if (due[index]) {
+        lastDueNanos[index] = nanos;
+      }
+    }
+
+    boolean wrote = false;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      if (!due[entry.rate.ordinal()]) {
+        continue;
+      }
+      try {
+        if (entry.publish()) {
+          wrote = true;
+          if (entry instanceof Signal) {
+            published++;
+          }
+        } else {
+          suppressed++;
+        }
+      } catch (Throwable ex) {
+        errors++;
+        logger.debug("Error in telemetry " + describe(entry), ex);
+      }
+    }
+
+    if (wrote) {
+      NetworkTable.flush();
+    }
+    flushMicros += ((System.nanoTime() - start) / 1000.0 - flushMicros) * 0.05;
+  }
+
+  private static String describe(Entry entry) {
+    return entry instanceof Signal ? ((Signal) entry).key : "task at " + entry.rate;
+  }
+}
@@ -4,18 +4,31 @@ import edu.wpi.first.wpilibj.Relay;
 import edu.wpi.first.wpilibj.command.Subsystem;
 import edu.wpi.first.wpilibj.networktables.ConnectionInfo;
 import edu.wpi.first.wpilibj.networktables.NetworkTable;
-import edu.wpi.first.wpilibj.networktables.NetworkTablesJNI;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import edu.wpi.first.wpilibj.tables.IRemote;
+import edu.wpi.first.wpilibj.tables.IRemoteConnectionListener;
 import edu.wpi.first.wpilibj.tables.ITable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.zip.CRC32;
+import org.ligerbots.steamworks.FieldPosition;
+import org.ligerbots.steamworks.Robot;
 import org.ligerbots.steamworks.RobotMap;
-import org.opencv.calib3d.Calib3d;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,13 +37,22 @@ import org.slf4j.LoggerFactory;
  */
 public class Vision extends Subsystem implements SmartDashboardLogger {
   private static final Logger logger = LoggerFactory.getLogger(Vision.class);
-  
-  private static final Mat nullMat = new Mat();
 
   /**
-   * This is a container for vision data.
+   * This is a container for vision data. Commands keep their own instance and refill it with
+   * {@link Vision#getGearVisionData(VisionData)} or {@link Vision#getBoilerVisionData(VisionData)},
+   * so every field always comes from the same frame.
    */
   public static class VisionData {
+    long sequenceNumber;
+    long receiveNanos;
+    int protocolVersion;
+    long phoneSequence;
+    long captureNanos;
+    long captureRobotNanos;
+    long clockErrorNanos;
+    long processingNanos;
+    final double[] corners = new double[8];
     double rvecPitch;
     double rvecYaw;
     double rvecRoll;
@@ -40,6 +62,103 @@ public class Vision extends Subsystem implements SmartDashboardLogger {
     double centerX;
     double centerY;
 
+    /**
+     * Gets the frame number, counting up from 1 for each frame received from the phone.
+     * 
+     * @return The sequence number, or 0 if no frame has been received yet
+     */
+    public long getSequenceNumber() {
+      return sequenceNumber;
+    }
+
+    /**
+     * Gets when this frame was received.
+     * 
+     * @return The System.nanoTime() at which the packet was received
+     */
+    public long getReceiveNanos() {
+      return receiveNanos;
+    }
+
+    /**
+     * Gets the packet format version the phone used for this frame. Version 1 frames don't have a
+     * phone sequence number, capture time, processing latency or corners.
+     * 
+     * @return 1 or 2, or 0 if the robot found the target in the camera stream itself
+     */
+    public int getProtocolVersion() {
+      return protocolVersion;
+    }
+
+    /**
+     * Gets the phone's own frame counter.
+     * 
+     * @return The phone sequence number, or -1 for version 1 frames
+     */
+    public long getPhoneSequence() {
+      return phoneSequence;
+    }
+
+    /**
+     * Gets when the phone captured this frame, on the phone's clock. This is not comparable to
+     * System.nanoTime() on the robot.
+     * 
+     * @return The capture time in phone nanoseconds, or 0 for version 1 frames
+     */
+    public long getCaptureNanos() {
+      return captureNanos;
+    }
+
+    /**
+     * Gets when the phone captured this frame, on the robot's clock. Once the phone's clock has been
+     * synchronized this is the converted capture time; before that, and for version 1 frames, it is
+     * the receive time minus the phone's processing time, which ignores WiFi latency.
+     * 
+     * @return The capture time in System.nanoTime() nanoseconds
+     */
+    public long getCaptureRobotNanos() {
+      return captureRobotNanos;
+    }
+
+    /**
+     * Gets how far off {@link #getCaptureRobotNanos()} could be.
+     * 
+     * @return The error bound in nanoseconds, or Long.MAX_VALUE if the phone's clock isn't
+     *         synchronized yet
+     */
+    public long getClockErrorNanos() {
+      return clockErrorNanos;
+    }
+
+    /**
+     * Gets how long the phone spent between capturing the frame and sending the result.
+     * 
+     * @return The processing latency in nanoseconds, or 0 for version 1 frames
+     */
+    public long getProcessingNanos() {
+      return processingNanos;
+    }
+
+    /**
+     * Gets the x coordinate of a corner of the target in the image.
+     * 
+     * @param corner The corner, 0 to 3
+     * @return The x coordinate, or 0 for version 1 frames
+     */
+    public double getCornerX(int corner) {
+      return corners[corner * 2];
+    }
+
+    /**
+     * Gets the y coordinate of a corner of the target in the image.
+     * 
+     * @param corner The corner, 0 to 3
+     * @return The y coordinate, or 0 for version 1 frames
+     */
+    public double getCornerY(int corner) {
+      return corners[corner * 2 + 1];
+    }
+
     public double getCenterX() {
       return centerX;
     }
@@ -73,8 +192,114 @@ public class Vision extends Subsystem implements SmartDashboardLogger {
     }
 
     public String toString() {
-      return String.format("%f,%f,%f | %f,%f,%f | %f,%f", tvecX, tvecY, tvecZ, rvecPitch, rvecYaw,
-          rvecRoll, centerX, centerY);
+      return String.format("#%d %f,%f,%f | %f,%f,%f | %f,%f", sequenceNumber, tvecX, tvecY, tvecZ,
+          rvecPitch, rvecYaw, rvecRoll, centerX, centerY);
+    }
+  }
+
+  /**
+   * A filtered estimate of where a vision target is on the field. See {@link TargetTrack}.
+   */
+  public static class TargetEstimate {
+    double x;
+    double y;
+    double varianceX;
+    double covarianceXy;
+    double varianceY;
+    double heading;
+    double headingVariance;
+    long updateCount;
+    long lastUpdateNanos;
+    boolean confident;
+
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    public double getVarianceX() {
+      return varianceX;
+    }
+
+    public double getCovarianceXy() {
+      return covarianceXy;
+    }
+
+    public double getVarianceY() {
+      return varianceY;
+    }
+
+    /**
+     * Gets the direction the target faces, NavX convention.
+     * 
+     * @return The heading in degrees, or NaN for targets without one (the boiler)
+     */
+    public double getHeading() {
+      return heading;
+    }
+
+    public double getHeadingVariance() {
+      return headingVariance;
+    }
+
+    public long getUpdateCount() {
+      return updateCount;
+    }
+
+    public long getLastUpdateNanos() {
+      return lastUpdateNanos;
+    }
+
+    /**
+     * Checks whether the estimate is good enough to act on: it has several frames behind it, it's
+     * recent, and its uncertainty is small.
+     * 
+     * @return True if the estimate is confident
+     */
+    public boolean isConfident() {
+      return confident;
+    }
+
+    /**
+     * Gets how far to the right of the robot the target is, in the robot frame the gear camera
+     * uses but measured from the turn center.
+     * 
+     * @param robot Where the robot is now
+     * @return The x coordinate in inches, right positive
+     */
+    public double getRobotFrameX(DriveTrain.Pose robot) {
+      double direction = Math.toRadians(robot.getDirection());
+      return (x - robot.getX()) * Math.cos(direction) - (y - robot.getY()) * Math.sin(direction);
+    }
+
+    /**
+     * Gets how far in front of the robot the target is, in the same frame as
+     * {@link #getRobotFrameX(DriveTrain.Pose)}.
+     * 
+     * @param robot Where the robot is now
+     * @return The z coordinate in inches, forward positive
+     */
+    public double getRobotFrameZ(DriveTrain.Pose robot) {
+      double direction = Math.toRadians(robot.getDirection());
+      return (x - robot.getX()) * Math.sin(direction) + (y - robot.getY()) * Math.cos(direction);
+    }
+
+    /**
+     * Gets the direction the target faces relative to the robot.
+     * 
+     * @param robot Where the robot is now
+     * @return The yaw in degrees, 0 to 360 like the phones send, or NaN for the boiler
+     */
+    public double getRobotFrameYaw(DriveTrain.Pose robot) {
+      return DriveTrain.fixDegrees(heading - robot.getDirection());
+    }
+
+    public String toString() {
+      return String.format("%f,%f (%f,%f,%f) | %f (%f) | %d%s", x, y, varianceX, covarianceXy,
+          varianceY, heading, headingVariance, updateCount, confident ? " confident" : "");
     }
   }
 
@@ -84,30 +309,189 @@ public class Vision extends Subsystem implements SmartDashboardLogger {
 
   private static final int CS_STREAM_PORT = 5810;
   private static final int DATA_PORT = 5808;
-  private static final int CS_FEEDBACK_INTERVAL = 1000;
+  // also how often each phone's clock is synchronized
+  private static final int CS_FEEDBACK_INTERVAL = 250;
   private static final int CS_MAGIC_NUMBER = 16777216;
   private static final byte DATA_CODE_GEAR = (byte) 0x93;
   private static final byte DATA_CODE_BOILER = (byte) 0xB0;
-
-  private static final double DEFAULT_GEAR_TARGET_WIDTH = 10.25; // in
-  private static final double DEFAULT_GEAR_TARGET_HEIGHT = 5.0; // in
-  private static final double DEFAULT_BOILER_TARGET_WIDTH = 0.82 * 15; // in
-  private static final double DEFAULT_BOILER_TARGET_HEIGHT = 6.0; // in
+  // code byte + 8 doubles
+  private static final int DATA_PACKET_LENGTH = 1 + 8 * 8;
+  // v2: code byte, version byte, int sequence, long capture nanos, int processing micros, 8 doubles,
+  // 8 corner doubles, then a CRC32 of everything before it
+  private static final byte DATA_VERSION_2 = 2;
+  private static final int DATA_PACKET_V2_LENGTH = 1 + 1 + 4 + 8 + 4 + 8 * 8 + 8 * 8 + 4;
+  // answer to the clock sync in a feedback packet: code byte, phone's data code, then longs t1 (our
+  // time from the feedback packet), t2 (phone receive time) and t3 (phone send time)
+  private static final byte DATA_CODE_CLOCK_SYNC = (byte) 0xC5;
+  private static final int CLOCK_SYNC_PACKET_LENGTH = 1 + 1 + 8 * 3;
+
+  // a phone that lost the target about 750ms ago drops below this
+  private static final double MIN_LINK_QUALITY = 0.3;
+  // keep a phone processing this long after the last command lets go of it
+  private static final long VISION_LINGER_NANOS = 3_000_000_000L;
+  // how long a phone takes from being enabled to sending usable targets
+  private static final long VISION_WARM_UP_NANOS = 1_000_000_000L;
+  // onboard detections are good for this long, they come in slower than the phone's
+  private static final long FALLBACK_MAX_AGE_NANOS = 500_000_000L;
+  // and they're rougher, so the tracks trust them less
+  private static final double FALLBACK_SIGMA_SCALE = 3;
+
+  static final double DEFAULT_GEAR_TARGET_WIDTH = 10.25; // in
+  static final double DEFAULT_GEAR_TARGET_HEIGHT = 5.0; // in
+  static final double DEFAULT_BOILER_TARGET_WIDTH = 0.82 * 15; // in
+  static final double DEFAULT_BOILER_TARGET_HEIGHT = 6.0; // in
 
   Relay ledRing0;
   Relay ledRing1;
 
-  // buffer vision data for multithreaded access
+  // latest vision data for multithreaded access. Only the data thread writes, under the sequence
+  // lock; the fields are volatile so readers can't have their reads reordered past the lock check
 
   class VisionContainer {
-    VisionData[] visionData = {new VisionData(), new VisionData()};
-    long lastPhoneDataTimestamp;
-    volatile int currentVisionDataIndex = 0;
+    final SequenceLock lock = new SequenceLock();
+    final PacketSequenceTracker sequenceTracker = new PacketSequenceTracker();
+    final PhoneClockSync clockSync = new PhoneClockSync();
+    volatile long checksumErrors;
+    volatile long receiveNanos;
+    volatile int protocolVersion;
+    volatile long phoneSequence;
+    volatile long captureNanos;
+    volatile long captureRobotNanos;
+    volatile long clockErrorNanos;
+    volatile long processingNanos;
+    volatile long decodedNanos;
+    volatile double p0x;
+    volatile double p0y;
+    volatile double p1x;
+    volatile double p1y;
+    volatile double p2x;
+    volatile double p2y;
+    volatile double p3x;
+    volatile double p3y;
+    volatile double rvecPitch;
+    volatile double rvecYaw;
+    volatile double rvecRoll;
+    volatile double tvecX;
+    volatile double tvecY;
+    volatile double tvecZ;
+    volatile double centerX;
+    volatile double centerY;
+    String name;
+    VisionLinkMonitor link;
     ITable table;
+    ITable resultTable;
+    // who wants this phone processing images, guarded by the Vision instance
+    final Set<Object> visionUsers = new HashSet<>();
+    volatile boolean visionEnabled;
+    boolean visionEnabledSent;
+    long visionEnabledNanos;
+    long visionReleasedNanos = System.nanoTime() - VISION_LINGER_NANOS;
+    // the last frame a command read, main thread only
+    long lastConsumedSeq;
+    // the last frame the robot found the target in itself
+    volatile long fallbackFrames;
+    volatile long fallbackFrameNanos;
+
+    /**
+     * Copies the latest frame into data.
+     * 
+     * @param data The object to fill in
+     * @return The frame's sequence number, or 0 if nothing has been received yet
+     */
+    long read(VisionData data) {
+      long seq;
+      do {
+        seq = lock.beginRead();
+        data.receiveNanos = receiveNanos;
+        data.protocolVersion = protocolVersion;
+        data.phoneSequence = phoneSequence;
+        data.captureNanos = captureNanos;
+        data.captureRobotNanos = captureRobotNanos;
+        data.clockErrorNanos = clockErrorNanos;
+        data.processingNanos = processingNanos;
+        data.corners[0] = p0x;
+        data.corners[1] = p0y;
+        data.corners[2] = p1x;
+        data.corners[3] = p1y;
+        data.corners[4] = p2x;
+        data.corners[5] = p2y;
+        data.corners[6] = p3x;
+        data.corners[7] = p3y;
+        data.rvecPitch = rvecPitch;
+        data.rvecYaw = rvecYaw;
+        data.rvecRoll = rvecRoll;
+        data.tvecX = tvecX;
+        data.tvecY = tvecY;
+        data.tvecZ = tvecZ;
+        data.centerX = centerX;
+        data.centerY = centerY;
+      } while (!lock.validate(seq));
+      data.sequenceNumber = seq >>> 1;
+      return data.sequenceNumber;
+    }
   }
 
   VisionContainer gearVision = new VisionContainer();
   VisionContainer boilerVision = new VisionContainer();
+  // both phones, for loops that run every cycle
+  private final VisionContainer[] visionContainers = {gearVision, boilerVision};
+
+  // the lift and boiler don't move, so the noise only covers dead reckoning drift
+  TargetTrack gearTrack = new TargetTrack("Vision_Gear_Track", 4, 1, 3);
+  TargetTrack boilerTrack = new TargetTrack("Vision_Boiler_Track", 4, 1, 6);
+  // scratch space for the network thread
+  private final double[] capturePose = new double[3];
+  private final double[] poseCorrection = new double[2];
+
+  /**
+   * Packet and CPU time counters for one UDP port. Only the network thread writes them.
+   */
+  static class PortStats {
+    final String name;
+    volatile long packets;
+    volatile long cpuNanos;
+
+    PortStats(String name) {
+      this.name = name;
+    }
+
+    void registerTelemetry(TelemetryRegistry telemetry) {
+      telemetry.addRate(name + "_Packets_Per_Sec", Rate.NORMAL, 0.1, 1, () -> packets);
+      telemetry.addRate(name + "_Cpu_Percent", Rate.NORMAL, 0.1, 100 / RobotMap.NANOS_PER_SECOND,
+          () -> cpuNanos);
+    }
+  }
+
+  Thread networkThread;
+  final PortStats dataStats = new PortStats("Vision_Data");
+  final PortStats streamStats = new PortStats("Vision_Stream");
+  final ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+  final boolean cpuTimeSupported = threadMxBean.isThreadCpuTimeSupported();
+
+  // network thread state for forwarding the camera stream
+  volatile CameraStreamForwarder streamForwarder;
+  volatile VisionPacketRecorder recorder;
+  volatile FallbackTargetDetector fallbackDetector;
+  volatile StreamRingRecorder ringRecorder;
+  final VisionLatencyTracker latency = new VisionLatencyTracker();
+  final StreamSubscribers streamSubscribers = new StreamSubscribers(CS_STREAM_PORT);
+  final CameraStreamForwarder.StreamCounters[] streamCounters =
+      {new CameraStreamForwarder.StreamCounters("Vision_Stream_Gear"),
+          new CameraStreamForwarder.StreamCounters("Vision_Stream_Boiler")};
+  ByteBuffer feedbackPacket;
+  int feedbackClockSyncOffset;
+  int feedbackHintOffset;
+  long lastFeedbackTime = System.currentTimeMillis();
+  final StreamSettingsController[] streamSettings =
+      {new StreamSettingsController("Vision_Stream_Gear_Settings"),
+          new StreamSettingsController("Vision_Stream_Boiler_Settings")};
+
+  // scratch space for the network thread so decoding a packet doesn't allocate
+  private final double[] rotationMatrix = new double[9];
+  private final double[] tiltedRotationMatrix = new double[9];
+  private final double[] translation = new double[3];
+  private final double[] eulers = new double[3];
+  private final CRC32 checksum = new CRC32();
 
   public static enum StreamType {
     GEAR_CAM, BOILER_CAM, BOILER_CAM_FRONT, TOGGLE
@@ -115,6 +499,10 @@ public class Vision extends Subsystem implements SmartDashboardLogger {
 
   StreamType streamType = StreamType.GEAR_CAM;
 
+  public static enum Phone {
+    GEAR, BOILER
+  }
+
   /**
    * Creates the instance of VisionSubsystem.
    */
@@ -124,21 +512,78 @@ public class Vision extends Subsystem implements SmartDashboardLogger {
     ledRing0 = new Relay(RobotMap.RELAY_LED_RING_0);
     ledRing1 = new Relay(RobotMap.RELAY_LED_RING_1);
 
-    gearVision.table = NetworkTable.getTable("Vision_Gear");
-    boilerVision.table = NetworkTable.getTable("Vision_Boiler");
+    gearVision.name = "Vision_Gear";
+    boilerVision.name = "Vision_Boiler";
+    gearVision.table = NetworkTable.getTable(gearVision.name);
+    boilerVision.table = NetworkTable.getTable(boilerVision.name);
+    gearVision.resultTable = gearVision.table.getSubTable("result");
+    boilerVision.resultTable = boilerVision.table.getSubTable("result");
+    gearVision.link = new VisionLinkMonitor(gearVision.name, "Android_GEAR_LIFT");
+    boilerVision.link = new VisionLinkMonitor(boilerVision.name, "Android_BOILER");
+
+    // keep track of who's connected as it happens instead of polling NT for it
+    NetworkTable.getTable(gearVision.name).addConnectionListener(new IRemoteConnectionListener() {
+      @Override
+      public void connected(IRemote remote) {}
+
+      @Override
+      public void disconnected(IRemote remote) {}
+
+      @Override
+      public void connectedEx(IRemote remote, ConnectionInfo info) {
+        handleConnectionChange(info, true);
+      }
+
+      @Override
+      public void disconnectedEx(IRemote remote, ConnectionInfo info) {
+        handleConnectionChange(info, false);
+      }
+    }, true);
 
     initPhoneVars(gearVision, DEFAULT_GEAR_TARGET_WIDTH, DEFAULT_GEAR_TARGET_HEIGHT);
     initPhoneVars(boilerVision, DEFAULT_BOILER_TARGET_WIDTH, DEFAULT_BOILER_TARGET_HEIGHT);
 
-    Thread forwardThread = new Thread(this::packetForwardingThread);
-    forwardThread.setDaemon(true);
-    forwardThread.setName("Packet Forwarding Thread");
-    forwardThread.start();
+    // the ack, then the phone's data code and our time for the clock sync, then the stream setting
+    // we'd like the phone to use
+    byte[] feedbackMessage = "👌".getBytes();
+    feedbackPacket = ByteBuffer.allocateDirect(
+        feedbackMessage.length + 1 + 8 + StreamSettingsController.HINT_LENGTH);
+    feedbackPacket.put(feedbackMessage);
+    feedbackClockSyncOffset = feedbackMessage.length;
+    feedbackHintOffset = feedbackClockSyncOffset + 1 + 8;
+
+    // -Dvision.replay=<recording> plays back a recording instead of listening to the phones
+    String replayFile = System.getProperty("vision.replay");
+    if (replayFile != null) {
+      double speed = Double.parseDouble(System.getProperty("vision.replaySpeed", "1"));
+      networkThread = new Thread(() -> replayThread(new File(replayFile), speed));
+      networkThread.setName("Vision Replay Thread");
+    } else {
+      networkThread = new Thread(this::networkThread);
+      networkThread.setName("Vision Network Thread");
+    }
+    networkThread.setDaemon(true);
+    networkThread.start();
+  }
 
-    Thread dataThread = new Thread(this::dataThread);
-    dataThread.setDaemon(true);
-    dataThread.setName("Vision Data Thread");
-    dataThread.start();
+  /**
+   * Runs on the NetworkTables thread whenever something connects or disconnects.
+   */
+  private void handleConnectionChange(ConnectionInfo info, boolean connected) {
+    logger.info(String.format("NT %s %s (%s)", info.remote_id,
+        connected ? "connected" : "disconnected", info.remote_ip));
+    if (info.remote_id.equals(gearVision.link.remoteId)) {
+      gearVision.link.connected = connected;
+    } else if (info.remote_id.equals(boilerVision.link.remoteId)) {
+      boilerVision.link.connected = connected;
+    } else if (!info.remote_id.startsWith("Android")) {
+      // steal the dashboards' IPs from networktables
+      if (connected) {
+        streamSubscribers.connected(info.remote_id, info.remote_ip);
+      } else {
+        streamSubscribers.disconnected(info.remote_id, info.remote_ip);
+      }
+    }
   }
 
   private void initPhoneVars(VisionContainer container, double defaultTargetWidth,
@@ -189,14 +634,81 @@ public class Vision extends Subsystem implements SmartDashboardLogger {
   }
 
   /**
-   * Sends an enable flag to the phone to enable or disable image processing. Helpful for making
-   * sure the phone doesn't eat power when it doesn't need to.
+   * Asks for a phone to process images until {@link #releaseVision(Phone, Object)} is called with
+   * the same user. Processing heats the phones up until they slow down, so they only do it while
+   * something needs the data. Asking twice with the same user is the same as asking once.
+   * 
+   * @param phone The phone
+   * @param user Whoever is asking, usually the command
+   */
+  public synchronized void requestVision(Phone phone, Object user) {
+    getContainer(phone).visionUsers.add(user);
+    updateVisionEnabled();
+  }
+
+  /**
+   * Says that a user doesn't need a phone's data any more. The phone keeps processing for a few
+   * seconds in case another command wants it right away.
    * 
-   * @param enabled Whether image processing should be enabled or not
+   * @param phone The phone
+   * @param user Whoever asked for it
    */
-  public void setVisionEnabled(boolean enabled) {
-    gearVision.table.putBoolean("enabled", enabled);
-    boilerVision.table.putBoolean("enabled", enabled);
+  public synchronized void releaseVision(Phone phone, Object user) {
+    VisionContainer container = getContainer(phone);
+    if (container.visionUsers.remove(user) && container.visionUsers.isEmpty()) {
+      container.visionReleasedNanos = System.nanoTime();
+    }
+    updateVisionEnabled();
+  }
+
+  /**
+   * Turns processing off on both phones right away, whoever asked for it. Helpful for making sure
+   * the phones don't eat power when the robot is disabled.
+   */
+  public synchronized void releaseAllVision() {
+    for (VisionContainer container : visionContainers) {
+      container.visionUsers.clear();
+      container.visionReleasedNanos = System.nanoTime() - VISION_LINGER_NANOS;
+    }
+    updateVisionEnabled();
+  }
+
+  /**
+   * Checks whether a phone has been processing long enough to have sent a target if it can see
+   * one, so commands don't give up on a phone that was just turned on.
+   * 
+   * @param phone The phone
+   * @return True if it's been enabled for at least a second
+   */
+  public synchronized boolean isVisionWarmedUp(Phone phone) {
+    VisionContainer container = getContainer(phone);
+    return container.visionEnabled
+        && System.nanoTime() - container.visionEnabledNanos >= VISION_WARM_UP_NANOS;
+  }
+
+  /**
+   * Turns the phones' processing on or off as needed. Must be called periodically so the linger
+   * time runs out. Only writes to NetworkTables when something changes.
+   */
+  public synchronized void updateVisionEnabled() {
+    long now = System.nanoTime();
+    for (VisionContainer container : visionContainers) {
+      boolean enabled = !container.visionUsers.isEmpty()
+          || now - container.visionReleasedNanos < VISION_LINGER_NANOS;
+      if (enabled && !container.visionEnabled) {
+        container.visionEnabledNanos = now;
+      }
+      if (enabled != container.visionEnabled || !container.visionEnabledSent) {
+        logger.info(String.format("%s processing %s", container.name, enabled ? "on" : "off"));
+        container.table.putBoolean("enabled", enabled);
+        container.visionEnabled = enabled;
+        container.visionEnabledSent = true;
+      }
+    }
+  }
+
+  private VisionContainer getContainer(Phone phone) {
+    return phone == Phone.GEAR ? gearVision : boilerVision;
   }
 
   /**
@@ -228,280 +740,761 @@ public class Vision extends Subsystem implements SmartDashboardLogger {
     return ledRing0.get() != Relay.Value.kOff;
   }
 
-  public VisionData getGearVisionData() {
-    return gearVision.visionData[gearVision.currentVisionDataIndex];
+  /**
+   * Copies the latest gear frame into data. Allocates nothing and never sees a half-written frame.
+   * 
+   * @param data The object to fill in
+   * @return The frame's sequence number, or 0 if no frame has been received yet
+   */
+  public long getGearVisionData(VisionData data) {
+    noteConsumed(gearVision);
+    return gearVision.read(data);
   }
 
-  public VisionData getBoilerVisionData() {
-    return boilerVision.visionData[boilerVision.currentVisionDataIndex];
+  /**
+   * Copies the latest boiler frame into data. Allocates nothing and never sees a half-written
+   * frame.
+   * 
+   * @param data The object to fill in
+   * @return The frame's sequence number, or 0 if no frame has been received yet
+   */
+  public long getBoilerVisionData(VisionData data) {
+    noteConsumed(boilerVision);
+    return boilerVision.read(data);
   }
 
   /**
-   * Checks to make sure the phone is currently active.
+   * Checks to make sure the gear phone is currently sending usable data, or the robot recently
+   * found the target in the gear camera stream itself.
    * 
-   * @return True if the phone has sent us data in the last 500 ms
+   * @return True if the gear phone's link quality is good enough
    */
   public boolean isGearVisionDataValid() {
-    return System.nanoTime() - gearVision.lastPhoneDataTimestamp < 500_000_000;
+    return getGearLinkQuality() >= MIN_LINK_QUALITY || isFallbackFresh(gearVision);
   }
 
   public boolean isBoilerVisionDataValid() {
-    return System.nanoTime() - boilerVision.lastPhoneDataTimestamp < 500_000_000;
+    return getBoilerLinkQuality() >= MIN_LINK_QUALITY || isFallbackFresh(boilerVision);
+  }
+
+  private boolean isFallbackFresh(VisionContainer container) {
+    return container.fallbackFrames > 0
+        && System.nanoTime() - container.fallbackFrameNanos < FALLBACK_MAX_AGE_NANOS;
+  }
+
+  /**
+   * Gets how well the gear phone's data is getting through. See {@link VisionLinkMonitor}.
+   * 
+   * @return The link quality from 0 to 1
+   */
+  public double getGearLinkQuality() {
+    return gearVision.link.getQuality(System.nanoTime());
+  }
+
+  public double getBoilerLinkQuality() {
+    return boilerVision.link.getQuality(System.nanoTime());
+  }
+
+  /**
+   * Gets the filtered field position and facing of the gear lift (or feeder) the gear camera sees.
+   * 
+   * @param estimate The object to copy the estimate into
+   */
+  public void getGearTarget(TargetEstimate estimate) {
+    noteConsumed(gearVision);
+    gearTrack.read(estimate);
+  }
+
+  /**
+   * Gets the filtered field position of the boiler.
+   * 
+   * @param estimate The object to copy the estimate into
+   */
+  public void getBoilerTarget(TargetEstimate estimate) {
+    noteConsumed(boilerVision);
+    boilerTrack.read(estimate);
+  }
+
+  /**
+   * Records the first time a command reads each frame, for the latency stats. Commands only run on
+   * the main robot thread, so lastConsumedSeq needs no locking.
+   */
+  private void noteConsumed(VisionContainer container) {
+    long seq;
+    long captureRobotNanos;
+    long decodedNanos;
+    do {
+      seq = container.lock.beginRead();
+      captureRobotNanos = container.captureRobotNanos;
+      decodedNanos = container.decodedNanos;
+    } while (!container.lock.validate(seq));
+    if (seq == 0 || seq == container.lastConsumedSeq) {
+      return;
+    }
+    container.lastConsumedSeq = seq;
+    latency.onConsumed(captureRobotNanos, decodedNanos, System.nanoTime());
+  }
+
+  /**
+   * Works out how far away the boiler is from where its target shows up on the boiler camera. The
+   * phone is rotated, so it's the x coordinate that changes with distance.
+   * 
+   * @param centerX The target's centerX
+   * @return The distance from the camera to the boiler, in inches
+   */
+  public static double getBoilerDistance(double centerX) {
+    double boilerCenterHeight =
+        (FieldPosition.BOILER_LOW_VISION_TARGET_BOTTOM + 5.0) - RobotMap.BOILER_CAMERA_HEIGHT;
+    // use small angle approximation to turn image position into angle from the camera's
+    // center of frame. Nexus 5 half-vertical-FOV is 60deg/2 = 30deg
+    double angleOnCamera = (centerX - 0.5) * 30 / 0.5;
+    double angleFromGround = angleOnCamera + RobotMap.VISION_BOILER_CAMERA_ANGLE;
+    return boilerCenterHeight / Math.tan(Math.toRadians(angleFromGround));
+  }
+
+  /**
+   * Works out which way the boiler is from where its target shows up on the boiler camera.
+   * 
+   * @param centerY The target's centerY
+   * @return The angle to turn to face the boiler, clockwise positive, in degrees
+   */
+  public static double getBoilerAngle(double centerY) {
+    return -((centerY - 0.5) * 24 / 0.5);
   }
 
   public void initDefaultCommand() {}
 
   /**
-   * This method runs in a separate thread and receives data from the phone.
+   * This runs in a separate thread and serves both vision UDP ports: gear/boiler data from the
+   * phones, and camera frames that get forwarded to the DS. It blocks in select() until a packet
+   * arrives, so it doesn't eat a roboRIO core while the phones are quiet.
    */
-  public void dataThread() {
-    // the phone sends processing data over UDP faster than NetworkTables
-    // 10fps refresh rate, so here we set up a receiver for the data
-    logger.info("Data thread init");
-    DatagramChannel udpChannel = null;
-    ByteBuffer dataPacket = null;
+  public void networkThread() {
+    logger.info("Network thread init");
+
+    Selector selector;
+    DatagramChannel dataChannel;
+    DatagramChannel streamChannel;
+    SelectionKey dataKey;
+    SelectionKey streamKey;
+    ByteBuffer dataPacket;
 
     try {
-      udpChannel = DatagramChannel.open();
-      udpChannel.socket().setReuseAddress(true);
-      udpChannel.socket().bind(new InetSocketAddress(DATA_PORT));
-      udpChannel.configureBlocking(true);
-      
-      dataPacket = ByteBuffer.allocateDirect(udpChannel.socket().getReceiveBufferSize());
+      selector = Selector.open();
+
+      dataChannel = openChannel(DATA_PORT);
+      dataKey = dataChannel.register(selector, SelectionKey.OP_READ);
+      dataPacket = ByteBuffer.allocateDirect(dataChannel.socket().getReceiveBufferSize());
+
+      streamChannel = openChannel(CS_STREAM_PORT);
+      streamKey = streamChannel.register(selector, SelectionKey.OP_READ);
+      streamForwarder = new CameraStreamForwarder(streamStats, streamCounters,
+          streamChannel.socket().getReceiveBufferSize(), DATA_CODE_GEAR, DATA_CODE_BOILER,
+          CS_MAGIC_NUMBER);
+      streamForwarder.setSelectionKey(streamKey);
+
+      if (RobotMap.VISION_FALLBACK_ENABLED) {
+        // the boiler phone is on its side, see getBoilerDistance()
+        fallbackDetector = new FallbackTargetDetector(
+            new ITable[] {gearVision.table, boilerVision.table}, new boolean[] {false, true},
+            selector::wakeup);
+        streamForwarder.setFallbackDetector(fallbackDetector);
+      }
     } catch (Exception ex) {
-      logger.error("Data thread init error", ex);
+      logger.error("Network thread init error", ex);
       ex.printStackTrace();
+      return;
     }
 
-    while (true) {
+    if (RobotMap.VISION_RECORD) {
       try {
-        dataPacket.position(0);
-        SocketAddress from = udpChannel.receive(dataPacket);
-        if (from == null) {
-          continue;
-        }
-
-        dataPacket.position(0);
+        recorder = new VisionPacketRecorder(
+            new File(String.format("/home/lvuser/vision_%d.rec", System.currentTimeMillis())),
+            RobotMap.VISION_RECORD_MAX_BYTES);
+        streamForwarder.setRecorder(recorder);
+      } catch (IOException ex) {
+        // not worth losing vision over
+        logger.error("Could not start vision recording", ex);
+      }
+    }
+    if (RobotMap.VISION_STREAM_RING) {
+      try {
+        ringRecorder = new StreamRingRecorder(new File("/home/lvuser/stream_ring.bin"),
+            RobotMap.VISION_STREAM_RING_BYTES);
+        streamForwarder.setRingRecorder(ringRecorder);
+      } catch (IOException ex) {
+        logger.error("Could not open the camera stream ring file", ex);
+      }
+    }
 
-        byte code = dataPacket.get();
+    Set<SelectionKey> selectedKeys = selector.selectedKeys();
+    while (true) {
+      try {
+        selector.select();
 
-        VisionContainer container;
-        if (code == DATA_CODE_BOILER) {
-          container = boilerVision;
-        } else if (code == DATA_CODE_GEAR) {
-          container = gearVision;
-        } else {
-          logger.error(String.format("Invalid data code: %x", code));
-          continue;
+        if (selectedKeys.contains(dataKey)) {
+          long cpuStart = getNetworkThreadCpuNanos();
+          receiveDataPackets(dataChannel, dataPacket);
+          dataStats.cpuNanos += getNetworkThreadCpuNanos() - cpuStart;
         }
-
-        final VisionData notCurrentData =
-            container.visionData[1 - container.currentVisionDataIndex];
-        double rvec0 = dataPacket.getDouble();
-        double rvec1 = dataPacket.getDouble();
-        double rvec2 = dataPacket.getDouble();
-        double tvecX = dataPacket.getDouble();
-        double tvecY = dataPacket.getDouble();
-        double tvecZ = dataPacket.getDouble();
-        double centerX = dataPacket.getDouble();
-        double centerY = dataPacket.getDouble();
-        // double p0x = dataPacket.getDouble();
-        // double p0y = dataPacket.getDouble();
-        // double p1x = dataPacket.getDouble();
-        // double p1y = dataPacket.getDouble();
-        // double p2x = dataPacket.getDouble();
-        // double p2y = dataPacket.getDouble();
-        // double p3x = dataPacket.getDouble();
-        // double p3y = dataPacket.getDouble();
-
-        // if the data is garbage or no target was located, keep the old data
-        if (Double.isNaN(rvec0) || Double.isNaN(rvec1) || Double.isNaN(rvec2)
-            || Double.isNaN(tvecX) || Double.isNaN(tvecY) || Double.isNaN(tvecZ)
-            || Double.isNaN(centerX) || Double.isNaN(centerY)) {
-          logger.warn("NaN in data");
-          continue;
+        if (selectedKeys.contains(streamKey)) {
+          long cpuStart = getNetworkThreadCpuNanos();
+          handleStreamPackets(streamChannel);
+          streamStats.cpuNanos += getNetworkThreadCpuNanos() - cpuStart;
         }
-        
-        Mat rvec = new Mat(1, 3, CvType.CV_64F);
-        rvec.put(0, 0, rvec0, rvec1, rvec2);
-        Mat rotationMatrix = new Mat();
-        // turn condensed axis-angle representation into useful rotation matrix
-        Calib3d.Rodrigues(rvec, rotationMatrix);
-        
-        if (code == DATA_CODE_GEAR) {
-          Mat transform = Mat.eye(3, 3, CvType.CV_64F);
-          double alpha = Math.toRadians(15);
-          // @formatter:off
-          transform.put(0, 0,
-              1,     0,                0,
-              0,     Math.cos(alpha), -Math.sin(alpha),
-              0,     Math.sin(alpha),  Math.cos(alpha));
-          // @formatter:on
-          
-          Core.gemm(rotationMatrix, transform, 1, nullMat, 0, rotationMatrix);
-          
-          Mat translation = new Mat(3, 1, CvType.CV_64F);
-          translation.put(0, 0, tvecX, tvecY, tvecZ);
-          Core.gemm(transform, translation, 1, nullMat, 0, translation);
-          tvecX = translation.get(0, 0)[0];
-          tvecY = translation.get(1, 0)[0];
-          tvecZ = translation.get(2, 0)[0];
+        selectedKeys.clear();
+
+        FallbackTargetDetector detector = fallbackDetector;
+        FallbackTargetDetector.Result fallbackResult =
+            detector != null ? detector.pollResult() : null;
+        if (fallbackResult != null) {
+          handleFallbackResult(fallbackResult);
+          detector.releaseResult();
         }
-
-        double[] eulers = rotationMatrixToEulerAngles(rotationMatrix);
-        
-        ITable result = container.table.getSubTable("result");
-        result.putNumber("x", tvecX);
-        result.putNumber("y", tvecY);
-        result.putNumber("z", tvecZ);
-        result.putNumber("pitch", eulers[0]);
-        result.putNumber("yaw", eulers[1]);
-        result.putNumber("roll", eulers[2]);
-
-        notCurrentData.rvecPitch = eulers[0];
-        notCurrentData.rvecYaw = eulers[1];
-        notCurrentData.rvecRoll = eulers[2];
-        notCurrentData.tvecX = tvecX;
-        notCurrentData.tvecY = tvecY;
-        notCurrentData.tvecZ = tvecZ;
-        notCurrentData.centerX = centerX;
-        notCurrentData.centerY = centerY;
-
-        container.currentVisionDataIndex = 1 - container.currentVisionDataIndex;
-
-        container.lastPhoneDataTimestamp = System.nanoTime();
       } catch (Exception ex) {
-        logger.error("Data thread error", ex);
+        logger.error("Network thread communication error", ex);
         ex.printStackTrace();
       }
     }
   }
-  
-  private static double[] rotationMatrixToEulerAngles(Mat matrix) {
-    return new double[]{
-        Core.fastAtan2((float) matrix.get(1, 2)[0], (float) matrix.get(2, 2)[0]),
-        Core.fastAtan2((float) -matrix.get(2, 0)[0],
-            (float) Math.sqrt(matrix.get(1, 2)[0] * matrix.get(1, 2)[0]
-                + matrix.get(2, 2)[0] * matrix.get(2, 2)[0])),
-        Core.fastAtan2((float) matrix.get(1, 0)[0], (float) matrix.get(0, 0)[0])};
+
+  private long getNetworkThreadCpuNanos() {
+    return cpuTimeSupported ? threadMxBean.getCurrentThreadCpuTime() : 0;
+  }
+
+  private static DatagramChannel openChannel(int port) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.socket().setReuseAddress(true);
+    channel.socket().bind(new InetSocketAddress(port));
+    channel.configureBlocking(false);
+    return channel;
   }
 
   /**
-   * This runs in a separate thread and forwards vision frames from the phone to the DS.
+   * Receives and decodes every data packet that is waiting. The phone sends processing data over
+   * UDP faster than the NetworkTables 10fps refresh rate, which is why we don't use NT for it.
    */
-  public void packetForwardingThread() {
-    logger.info("Stream thread init");
+  private void receiveDataPackets(DatagramChannel channel, ByteBuffer dataPacket)
+      throws IOException {
+    while (true) {
+      dataPacket.clear();
+      SocketAddress from = channel.receive(dataPacket);
+      if (from == null) {
+        return;
+      }
+      long receiveNanos = System.nanoTime();
+      dataStats.packets++;
 
-    DatagramChannel udpChannel = null;
-    InetSocketAddress sendAddress = null;
-    ByteBuffer recvPacket = null;
-    byte[] feedbackMessage = "👌".getBytes();
-    ByteBuffer feedbackPacket = ByteBuffer.allocateDirect(feedbackMessage.length);
-    feedbackPacket.put(feedbackMessage);
-    long lastFeedbackTime = System.currentTimeMillis();
+      dataPacket.flip();
+      if (recorder != null) {
+        recorder.record(VisionPacketRecorder.PORT_DATA, receiveNanos, dataPacket);
+      }
+      handleDataPacket(dataPacket, receiveNanos);
+    }
+  }
 
-    // set up UDP
+  /**
+   * Runs in place of the network thread when a recording is being played back, so the decode path
+   * still only has one writer. Camera frames are counted but not forwarded, since there is no DS
+   * to send them to.
+   */
+  private void replayThread(File file, double speed) {
     try {
-      udpChannel = DatagramChannel.open();
-      udpChannel.socket().setReuseAddress(true);
-      udpChannel.socket().bind(new InetSocketAddress(CS_STREAM_PORT));
-      udpChannel.configureBlocking(false);
-
-      recvPacket = ByteBuffer.allocateDirect(udpChannel.socket().getReceiveBufferSize());
+      VisionPacketReplay replay = new VisionPacketReplay(file, speed);
+      replay.run((port, receiveNanos, packet) -> {
+        if (port == VisionPacketRecorder.PORT_DATA) {
+          long cpuStart = getNetworkThreadCpuNanos();
+          dataStats.packets++;
+          handleDataPacket(packet, receiveNanos);
+          dataStats.cpuNanos += getNetworkThreadCpuNanos() - cpuStart;
+        } else {
+          streamStats.packets++;
+        }
+      });
     } catch (Exception ex) {
-      logger.error("Stream thread init error", ex);
+      logger.error("Vision replay error", ex);
       ex.printStackTrace();
     }
+  }
 
-    while (true) {
-      try {
-        // steal the driver laptop's IP from networktables
-        if (sendAddress == null) {
-          ConnectionInfo[] connections = NetworkTablesJNI.getConnections();
-          for (ConnectionInfo connInfo : connections) {
-            // we want the laptop, not the phone
-            if (connInfo.remote_id.startsWith("Android")) {
-              continue;
-            }
-            sendAddress = new InetSocketAddress(connInfo.remote_ip, CS_STREAM_PORT);
-            logger.trace(String.format("Got DS IP address %s", sendAddress.toString()));
-          }
-        }
-        // get a packet from the phone
-        SocketAddress from = null;
-        recvPacket.limit(recvPacket.capacity());
-        recvPacket.position(0);
-        from = udpChannel.receive(recvPacket);
-        boolean gotPacket = from != null;
-
-        // if we have a packet and it's time to tell the phone we're
-        // getting packets then tell the phone we're getting packets
-
-        if (from != null && System.currentTimeMillis() - lastFeedbackTime > CS_FEEDBACK_INTERVAL) {
-          lastFeedbackTime = System.currentTimeMillis();
-          feedbackPacket.position(0);
-          udpChannel.send(feedbackPacket, from);
-        }
+  /**
+   * Decodes one gear or boiler data packet and publishes it. Both the original format and the
+   * versioned v2 format are accepted; they are told apart by length.
+   * 
+   * @param dataPacket The packet, from position 0 to its limit
+   * @param receiveNanos When the packet was received
+   */
+  private void handleDataPacket(ByteBuffer dataPacket, long receiveNanos) {
+    int length = dataPacket.remaining();
+    if (length == CLOCK_SYNC_PACKET_LENGTH && dataPacket.get(0) == DATA_CODE_CLOCK_SYNC) {
+      handleClockSyncPacket(dataPacket, receiveNanos);
+      return;
+    }
 
-        // if sending packets to the driver laptop turns out to be
-        // slower than receiving packets from the phone, then drop
-        // everything except the latest packet
-        while (from != null) {
-          // save the length of what we got last time
-          recvPacket.limit(recvPacket.capacity());
-          recvPacket.position(0);
-          from = udpChannel.receive(recvPacket);
-        }
+    boolean isVersion2 =
+        length >= DATA_PACKET_V2_LENGTH && dataPacket.get(1) == DATA_VERSION_2;
+    if (!isVersion2 && length < DATA_PACKET_LENGTH) {
+      logger.error(String.format("Short data packet: %d bytes", length));
+      return;
+    }
 
-        if (sendAddress != null && gotPacket) {
-          // make sure to forward a packet of the same length, by
-          // setting the limit on the bytebuffer
-          recvPacket.position(0);
-          byte dataCode = recvPacket.get();
-          int magic = recvPacket.getInt();
-
-          int length = recvPacket.getInt();
-          if (magic == CS_MAGIC_NUMBER) {
-            if ((dataCode == DATA_CODE_BOILER && (streamType == StreamType.BOILER_CAM
-                || streamType == StreamType.BOILER_CAM_FRONT))
-                || (dataCode == DATA_CODE_GEAR && streamType == StreamType.GEAR_CAM)) {
-              recvPacket.limit(length + 9);
-              recvPacket.position(1);
-              udpChannel.send(recvPacket, sendAddress);
-            }
-          }
-          // otherwise, it's probably a control packet from the
-          // dashboard sending the resolution and fps settings - we
-          // don't actually care
-        }
-      } catch (Exception ex) {
-        logger.error("Stream thread communication error", ex);
-        ex.printStackTrace();
+    byte code = dataPacket.get();
+
+    VisionContainer container;
+    if (code == DATA_CODE_BOILER) {
+      container = boilerVision;
+    } else if (code == DATA_CODE_GEAR) {
+      container = gearVision;
+    } else {
+      logger.error(String.format("Invalid data code: %x", code));
+      return;
+    }
+    container.link.onPacket(receiveNanos);
+
+    long phoneSequence = -1;
+    long captureNanos = 0;
+    long processingNanos = 0;
+    if (isVersion2) {
+      // the checksum covers the code byte too, which has already been read
+      checksum.reset();
+      dataPacket.position(0);
+      dataPacket.limit(DATA_PACKET_V2_LENGTH - 4);
+      checksum.update(dataPacket);
+      dataPacket.limit(DATA_PACKET_V2_LENGTH);
+      int expectedChecksum = dataPacket.getInt();
+      if ((int) checksum.getValue() != expectedChecksum) {
+        container.checksumErrors++;
+        logger.warn("Bad checksum in data");
+        return;
+      }
+
+      dataPacket.position(2);
+      phoneSequence = dataPacket.getInt() & 0xFFFFFFFFL;
+      captureNanos = dataPacket.getLong();
+      processingNanos = (dataPacket.getInt() & 0xFFFFFFFFL) * 1000;
+      if (!container.sequenceTracker.accept(phoneSequence)) {
+        // late or duplicate frame, we already have something newer
+        return;
+      }
+    }
+
+    double rvec0 = dataPacket.getDouble();
+    double rvec1 = dataPacket.getDouble();
+    double rvec2 = dataPacket.getDouble();
+    double tvecX = dataPacket.getDouble();
+    double tvecY = dataPacket.getDouble();
+    double tvecZ = dataPacket.getDouble();
+    double centerX = dataPacket.getDouble();
+    double centerY = dataPacket.getDouble();
+    double p0x = 0;
+    double p0y = 0;
+    double p1x = 0;
+    double p1y = 0;
+    double p2x = 0;
+    double p2y = 0;
+    double p3x = 0;
+    double p3y = 0;
+    if (isVersion2) {
+      p0x = dataPacket.getDouble();
+      p0y = dataPacket.getDouble();
+      p1x = dataPacket.getDouble();
+      p1y = dataPacket.getDouble();
+      p2x = dataPacket.getDouble();
+      p2y = dataPacket.getDouble();
+      p3x = dataPacket.getDouble();
+      p3y = dataPacket.getDouble();
+    }
+
+    long captureRobotNanos;
+    long clockErrorNanos;
+    if (isVersion2 && container.clockSync.isSynchronized()) {
+      captureRobotNanos = container.clockSync.toRobotNanos(captureNanos);
+      clockErrorNanos = container.clockSync.getErrorBoundNanos(captureRobotNanos);
+    } else {
+      captureRobotNanos = receiveNanos - processingNanos;
+      clockErrorNanos = Long.MAX_VALUE;
+    }
+
+    // if the data is garbage or no target was located, keep the old data
+    if (Double.isNaN(rvec0) || Double.isNaN(rvec1) || Double.isNaN(rvec2)
+        || Double.isNaN(tvecX) || Double.isNaN(tvecY) || Double.isNaN(tvecZ)
+        || Double.isNaN(centerX) || Double.isNaN(centerY)) {
+      logger.warn("NaN in data");
+      container.link.onFrame(receiveNanos, true);
+      return;
+    }
+
+    // turn condensed axis-angle representation into useful rotation matrix
+    VisionMath.rodrigues(rvec0, rvec1, rvec2, rotationMatrix);
+
+    if (code == DATA_CODE_GEAR) {
+      // the gear camera is tilted, so rotate everything back into the robot frame
+      VisionMath.multiply(rotationMatrix, VisionMath.GEAR_CAMERA_TILT, tiltedRotationMatrix);
+      System.arraycopy(tiltedRotationMatrix, 0, rotationMatrix, 0, 9);
+
+      VisionMath.multiply(VisionMath.GEAR_CAMERA_TILT, tvecX, tvecY, tvecZ, translation);
+      tvecX = translation[0];
+      tvecY = translation[1];
+      tvecZ = translation[2];
+    }
+
+    VisionMath.rotationMatrixToEulerAngles(rotationMatrix, eulers);
+
+    ITable result = container.resultTable;
+    result.putNumber("x", tvecX);
+    result.putNumber("y", tvecY);
+    result.putNumber("z", tvecZ);
+    result.putNumber("pitch", eulers[0]);
+    result.putNumber("yaw", eulers[1]);
+    result.putNumber("roll", eulers[2]);
+
+    long decodedNanos = System.nanoTime();
+    container.lock.beginWrite();
+    container.receiveNanos = receiveNanos;
+    container.decodedNanos = decodedNanos;
+    container.protocolVersion = isVersion2 ? 2 : 1;
+    container.phoneSequence = phoneSequence;
+    container.captureNanos = captureNanos;
+    container.captureRobotNanos = captureRobotNanos;
+    container.clockErrorNanos = clockErrorNanos;
+    container.processingNanos = processingNanos;
+    container.p0x = p0x;
+    container.p0y = p0y;
+    container.p1x = p1x;
+    container.p1y = p1y;
+    container.p2x = p2x;
+    container.p2y = p2y;
+    container.p3x = p3x;
+    container.p3y = p3y;
+    container.rvecPitch = eulers[0];
+    container.rvecYaw = eulers[1];
+    container.rvecRoll = eulers[2];
+    container.tvecX = tvecX;
+    container.tvecY = tvecY;
+    container.tvecZ = tvecZ;
+    container.centerX = centerX;
+    container.centerY = centerY;
+    container.lock.endWrite();
+
+    container.link.onFrame(receiveNanos, false);
+    latency.onDecoded(captureRobotNanos, receiveNanos, decodedNanos);
+    updateTrack(code, captureRobotNanos, tvecX, tvecZ, eulers[1], centerX, centerY, 1);
+  }
+
+  /**
+   * Publishes a target the fallback detector found, the same way as one from a phone. These don't
+   * count towards the link quality, or the detector would turn itself off.
+   */
+  private void handleFallbackResult(FallbackTargetDetector.Result result) {
+    if (!result.found) {
+      return;
+    }
+    boolean isGear = result.stream == CameraStreamForwarder.STREAM_GEAR;
+    VisionContainer container = isGear ? gearVision : boilerVision;
+
+    double tvecX = result.tvecX;
+    double tvecY = result.tvecY;
+    double tvecZ = result.tvecZ;
+    if (isGear) {
+      VisionMath.multiply(VisionMath.GEAR_CAMERA_TILT, tvecX, tvecY, tvecZ, translation);
+      tvecX = translation[0];
+      tvecY = translation[1];
+      tvecZ = translation[2];
+    }
+    // the stream doesn't say when the frame was taken, so go by when it got here
+    long captureRobotNanos = result.receiveNanos;
+
+    container.lock.beginWrite();
+    container.receiveNanos = result.receiveNanos;
+    container.decodedNanos = System.nanoTime();
+    container.protocolVersion = 0;
+    container.phoneSequence = -1;
+    container.captureNanos = 0;
+    container.captureRobotNanos = captureRobotNanos;
+    container.clockErrorNanos = Long.MAX_VALUE;
+    container.processingNanos = result.processingNanos;
+    container.p0x = result.corners[0];
+    container.p0y = result.corners[1];
+    container.p1x = result.corners[2];
+    container.p1y = result.corners[3];
+    container.p2x = result.corners[4];
+    container.p2y = result.corners[5];
+    container.p3x = result.corners[6];
+    container.p3y = result.corners[7];
+    container.rvecPitch = 0;
+    // the phones send 0 to 360
+    container.rvecYaw = DriveTrain.fixDegrees(result.yaw);
+    container.rvecRoll = 0;
+    container.tvecX = tvecX;
+    container.tvecY = tvecY;
+    container.tvecZ = tvecZ;
+    container.centerX = result.centerX;
+    container.centerY = result.centerY;
+    container.lock.endWrite();
+
+    container.fallbackFrameNanos = result.receiveNanos;
+    container.fallbackFrames++;
+    updateTrack(isGear ? DATA_CODE_GEAR : DATA_CODE_BOILER, captureRobotNanos, tvecX, tvecZ,
+        result.yaw, result.centerX, result.centerY, FALLBACK_SIGMA_SCALE);
+  }
+
+  /**
+   * Adds a frame to the gear or boiler target track, using where the robot was when the frame was
+   * captured.
+   */
+  private void updateTrack(byte code, long captureRobotNanos, double tvecX, double tvecZ,
+      double yaw, double centerX, double centerY, double sigmaScale) {
+    DriveTrain driveTrain = Robot.driveTrain;
+    if (driveTrain == null || !driveTrain.getPoseAt(captureRobotNanos, capturePose)) {
+      return;
+    }
+    double robotX = capturePose[0];
+    double robotY = capturePose[1];
+    double direction = capturePose[2];
+
+    if (code == DATA_CODE_GEAR) {
+      // measure from the turn center, like DriveToGearCommand does
+      double tz = tvecZ + RobotMap.ROBOT_GEAR_CAM_TURN_CENTER_DIST;
+      double range = Math.sqrt(tvecX * tvecX + tz * tz);
+      double bearing = direction + Math.toDegrees(Math.atan2(tvecX, tz));
+      // solvePnP gets worse with distance, mostly along the line of sight
+      double rangeSigma = (1 + 0.03 * range) * sigmaScale;
+      gearTrack.update(captureRobotNanos, robotX, robotY, bearing, range,
+          DriveTrain.fixDegrees(direction + yaw), rangeSigma, sigmaScale, 3 * sigmaScale);
+      correctPosition(driveTrain, VisionLocalizer.TARGET_GEAR_LIFT, robotX, robotY, bearing, range,
+          rangeSigma, sigmaScale);
+    } else {
+      double range = getBoilerDistance(centerX);
+      double bearing = direction + getBoilerAngle(centerY);
+      double rangeSigma = (2 + 0.05 * range) * sigmaScale;
+      boilerTrack.update(captureRobotNanos, robotX, robotY, bearing, range, Double.NaN,
+          rangeSigma, 0.5 * sigmaScale, 0);
+      correctPosition(driveTrain, VisionLocalizer.TARGET_BOILER, robotX, robotY, bearing, range,
+          rangeSigma, 0.5 * sigmaScale);
+    }
+  }
+
+  /**
+   * Uses a frame of a target whose field position is known to fix dead reckoning drift. The target
+   * tracks move along with the robot, since they were worked out from the uncorrected position.
+   */
+  private void correctPosition(DriveTrain driveTrain, int target, double robotX, double robotY,
+      double bearing, double range, double rangeSigma, double bearingSigma) {
+    if (!RobotMap.VISION_POSE_CORRECTION_ENABLED || !driveTrain.localizer.observe(target, robotX,
+        robotY, bearing, range, rangeSigma, bearingSigma, poseCorrection)) {
+      return;
+    }
+    driveTrain.addPositionCorrection(poseCorrection[0], poseCorrection[1]);
+    gearTrack.shift(poseCorrection[0], poseCorrection[1]);
+    boilerTrack.shift(poseCorrection[0], poseCorrection[1]);
+  }
+
+  /**
+   * Feeds a phone's answer to the clock sync in a feedback packet into that phone's clock estimate.
+   */
+  private void handleClockSyncPacket(ByteBuffer packet, long receiveNanos) {
+    packet.position(1);
+    byte phoneCode = packet.get();
+    long t1 = packet.getLong();
+    long t2 = packet.getLong();
+    long t3 = packet.getLong();
+    if (phoneCode == DATA_CODE_GEAR) {
+      gearVision.clockSync.addSample(t1, t2, t3, receiveNanos);
+    } else if (phoneCode == DATA_CODE_BOILER) {
+      boilerVision.clockSync.addSample(t1, t2, t3, receiveNanos);
+    } else {
+      logger.error(String.format("Invalid clock sync code: %x", phoneCode));
+    }
+  }
+
+  /**
+   * Receives every camera frame that is waiting and forwards the newest one to the dashboards.
+   */
+  private void handleStreamPackets(DatagramChannel channel) throws IOException {
+    FallbackTargetDetector detector = fallbackDetector;
+    if (detector != null) {
+      // look for targets ourselves while a phone is supposed to be processing but isn't
+      long now = System.nanoTime();
+      detector.setActive(CameraStreamForwarder.STREAM_GEAR, gearVision.visionEnabled
+          && gearVision.link.getQuality(now) < MIN_LINK_QUALITY);
+      detector.setActive(CameraStreamForwarder.STREAM_BOILER, boilerVision.visionEnabled
+          && boilerVision.link.getQuality(now) < MIN_LINK_QUALITY);
+    }
+
+    // get packets from the phone
+    SocketAddress from = streamForwarder.receive(channel);
+
+    int wantedStream = streamType == StreamType.GEAR_CAM ? CameraStreamForwarder.STREAM_GEAR
+        : CameraStreamForwarder.STREAM_BOILER;
+
+    // if we have a packet and it's time to tell the phones we're
+    // getting packets then tell the phones we're getting packets
+    if (from != null && System.currentTimeMillis() - lastFeedbackTime > CS_FEEDBACK_INTERVAL) {
+      lastFeedbackTime = System.currentTimeMillis();
+      // only the stream that's being forwarded tells us anything about the link to the DS
+      if (streamSubscribers.get().length > 0) {
+        streamSettings[wantedStream].update(streamCounters[wantedStream],
+            System.nanoTime());
       }
+      sendFeedback(channel, CameraStreamForwarder.STREAM_GEAR, DATA_CODE_GEAR);
+      sendFeedback(channel, CameraStreamForwarder.STREAM_BOILER, DATA_CODE_BOILER);
     }
+
+    streamForwarder.forward(channel, streamSubscribers.get(), wantedStream);
   }
 
+  private void sendFeedback(DatagramChannel channel, int stream, byte phoneCode)
+      throws IOException {
+    SocketAddress phone = streamForwarder.getSender(stream);
+    if (phone == null) {
+      return;
+    }
+    feedbackPacket.put(feedbackClockSyncOffset, phoneCode);
+    streamSettings[stream].writeHint(feedbackPacket, feedbackHintOffset);
+    // as late as possible, so the time in the packet is close to when it actually goes out
+    feedbackPacket.putLong(feedbackClockSyncOffset + 1, System.nanoTime());
+    feedbackPacket.position(0);
+    channel.send(feedbackPacket, phone);
+  }
+
+  /**
+   * Registers the vision diagnostics.
+   *
+   * @param telemetry The registry to add them to
+   */
   @Override
-  public void sendDataToSmartDashboard() {
-    // phone handles vision data for us
-    SmartDashboard.putBoolean("LED_On", isLedRingOn());
-
-    boolean gearLiftPhone = false;
-    boolean boilerPhone = false;
-    ConnectionInfo[] connections = NetworkTablesJNI.getConnections();
-    for (ConnectionInfo connInfo : connections) {
-      if (System.currentTimeMillis() - connInfo.last_update < 100) {
-        if (connInfo.remote_id.equals("Android_GEAR_LIFT")) {
-          gearLiftPhone = true;
-        } else if (connInfo.remote_id.equals("Android_BOILER")) {
-          boilerPhone = true;
-        }
-      }
+  public void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addBoolean("LED_On", Rate.NORMAL, this::isLedRingOn);
+    telemetry.addBoolean("VisionGearLift", Rate.NORMAL, () -> gearVision.link.connected);
+    telemetry.addBoolean("VisionGearLift_data", Rate.NORMAL, this::isGearVisionDataValid);
+    telemetry.addBoolean("VisionBoiler", Rate.NORMAL, () -> boilerVision.link.connected);
+    telemetry.addBoolean("VisionBoiler_data", Rate.NORMAL, this::isBoilerVisionDataValid);
+
+    dataStats.registerTelemetry(telemetry);
+    registerPhoneTelemetry(telemetry, gearVision);
+    registerPhoneTelemetry(telemetry, boilerVision);
+    gearTrack.registerTelemetry(telemetry);
+    boilerTrack.registerTelemetry(telemetry);
+    latency.registerTelemetry(telemetry);
+
+    streamStats.registerTelemetry(telemetry);
+    for (CameraStreamForwarder.StreamCounters counters : streamCounters) {
+      counters.registerTelemetry(telemetry);
+    }
+    telemetry.addNumber("Vision_Stream_Control_Packets", Rate.NORMAL,
+        startedValue(() -> streamForwarder, forwarder -> forwarder.controlPackets));
+    telemetry.addNumber("Vision_Stream_Max_Mbps", Rate.SLOW, () -> RobotMap.VISION_STREAM_MAX_MBPS);
+    streamSubscribers.registerTelemetry(telemetry);
+    for (StreamSettingsController settings : streamSettings) {
+      settings.registerTelemetry(telemetry);
     }
 
-    SmartDashboard.putBoolean("VisionGearLift", gearLiftPhone);
-    SmartDashboard.putBoolean("VisionGearLift_data", isGearVisionDataValid());
-    SmartDashboard.putBoolean("VisionBoiler", boilerPhone);
-    SmartDashboard.putBoolean("VisionBoiler_data", isBoilerVisionDataValid());
+    // the preference is only read when the network thread starts, so these are always registered
+    telemetry.addBoolean("Vision_Fallback_Gear_Active", Rate.NORMAL,
+        startedFlag(() -> fallbackDetector,
+            detector -> detector.isActive(CameraStreamForwarder.STREAM_GEAR)));
+    telemetry.addBoolean("Vision_Fallback_Boiler_Active", Rate.NORMAL,
+        startedFlag(() -> fallbackDetector,
+            detector -> detector.isActive(CameraStreamForwarder.STREAM_BOILER)));
+    telemetry.addBoolean("Vision_Fallback_Failed", Rate.NORMAL,
+        startedFlag(() -> fallbackDetector, FallbackTargetDetector::isFailed));
+    telemetry.addNumber("Vision_Fallback_Frames", Rate.NORMAL,
+        startedValue(() -> fallbackDetector, detector -> detector.offered));
+    telemetry.addNumber("Vision_Fallback_Detections", Rate.NORMAL,
+        startedValue(() -> fallbackDetector, detector -> detector.detections));
+    telemetry.addNumber("Vision_Fallback_Misses", Rate.NORMAL,
+        startedValue(() -> fallbackDetector, detector -> detector.misses));
+    telemetry.addNumber("Vision_Fallback_Processing_Ms", Rate.NORMAL, 0.1,
+        startedValue(() -> fallbackDetector,
+            detector -> detector.getAverageProcessingNanos() / 1e6));
+
+    if (RobotMap.VISION_STREAM_RING) {
+      telemetry.addNumber("Vision_Stream_Ring_Frames", Rate.NORMAL,
+          startedValue(() -> ringRecorder, ring -> ring.recordedFrames));
+      telemetry.addNumber("Vision_Stream_Ring_Dropped", Rate.NORMAL,
+          startedValue(() -> ringRecorder, ring -> ring.droppedFrames));
+    }
+    if (RobotMap.VISION_RECORD) {
+      telemetry.addNumber("Vision_Record_Packets", Rate.NORMAL,
+          startedValue(() -> recorder, packetRecorder -> packetRecorder.recordedPackets));
+      telemetry.addNumber("Vision_Record_Megabytes", Rate.NORMAL, 0.01,
+          startedValue(() -> recorder, packetRecorder -> packetRecorder.recordedBytes / 1e6));
+      telemetry.addNumber("Vision_Record_Dropped", Rate.NORMAL,
+          startedValue(() -> recorder, packetRecorder -> packetRecorder.droppedPackets));
+    }
+    if (cpuTimeSupported) {
+      // total includes time spent in select() bookkeeping, not just packet handling
+      telemetry.addRate("Vision_Network_Cpu_Percent", Rate.NORMAL, 0.1,
+          100 / RobotMap.NANOS_PER_SECOND, this::getNetworkThreadTotalCpuNanos);
+    }
+  }
+
+  private void registerPhoneTelemetry(TelemetryRegistry telemetry, VisionContainer container) {
+    String name = container.name;
+    container.link.registerTelemetry(telemetry);
+    telemetry.addRate(name + "_Fps", Rate.NORMAL, 0.1, 1, () -> container.link.frames);
+    telemetry.addBoolean(name + "_Enabled", Rate.NORMAL, () -> container.visionEnabled);
+    telemetry.addNumber(name + "_Users", Rate.NORMAL, () -> getVisionUserCount(container));
+    // the phone app puts its battery temperature here, in degrees C; it slows down above about 45
+    telemetry.addNumber(name + "_Temperature", Rate.SLOW, 0.1,
+        () -> container.table.getNumber("temperature", Double.NaN));
+
+    PacketSequenceTracker tracker = container.sequenceTracker;
+    telemetry.addNumber(name + "_Lost", Rate.NORMAL, () -> tracker.lost);
+    telemetry.addNumber(name + "_Reordered", Rate.NORMAL, () -> tracker.reordered);
+    telemetry.addNumber(name + "_Duplicates", Rate.NORMAL, () -> tracker.duplicates);
+    telemetry.addNumber(name + "_Restarts", Rate.NORMAL, () -> tracker.restarts);
+    telemetry.addNumber(name + "_Checksum_Errors", Rate.NORMAL, () -> container.checksumErrors);
+
+    // the estimates are NaN until the first round trip
+    PhoneClockSync clockSync = container.clockSync;
+    telemetry.addBoolean(name + "_Clock_Synced", Rate.NORMAL, clockSync::isSynchronized);
+    telemetry.addNumber(name + "_Clock_Samples", Rate.NORMAL, () -> clockSync.samples);
+    telemetry.addNumber(name + "_Clock_Rejected", Rate.NORMAL, () -> clockSync.rejectedSamples);
+    telemetry.addNumber(name + "_Clock_Resets", Rate.NORMAL, () -> clockSync.resets);
+    telemetry.addNumber(name + "_Clock_Offset_Ms", Rate.NORMAL, 0.01,
+        () -> clockSync.isSynchronized() ? clockSync.getOffsetNanos() / 1e6 : Double.NaN);
+    telemetry.addNumber(name + "_Clock_Drift_Ppm", Rate.NORMAL, 0.1,
+        () -> clockSync.isSynchronized() ? clockSync.getDriftPpm() : Double.NaN);
+    telemetry.addNumber(name + "_Clock_Error_Ms", Rate.NORMAL, 0.01,
+        () -> clockSync.isSynchronized()
+            ? clockSync.getErrorBoundNanos(System.nanoTime()) / 1e6 : Double.NaN);
+  }
+
+  private synchronized int getVisionUserCount(VisionContainer container) {
+    return container.visionUsers.size();
+  }
+
+  private long getNetworkThreadTotalCpuNanos() {
+    Thread thread = networkThread;
+    return thread != null ? threadMxBean.getThreadCpuTime(thread.getId()) : 0;
+  }
+
+  /**
+   * Reads a diagnostic from something the network thread starts, or 0 until it has.
+   *
+   * @param holder Gets the thing, or null if it hasn't been started
+   * @param value Reads the diagnostic from it
+   * @return A source for the telemetry registry
+   */
+  private static <T> DoubleSupplier startedValue(Supplier<T> holder, ToDoubleFunction<T> value) {
+    return () -> {
+      T started = holder.get();
+      return started != null ? value.applyAsDouble(started) : 0;
+    };
+  }
+
+  /**
+   * Reads a flag from something the network thread starts, or false until it has.
+   *
+   * @param holder Gets the thing, or null if it hasn't been started
+   * @param flag Reads the flag from it
+   * @return A source for the telemetry registry
+   */
+  private static <T> BooleanSupplier startedFlag(Supplier<T> holder, Predicate<T> flag) {
+    return () -> {
+      T started = holder.get();
+      return started != null && flag.test(started);
+    };
   }
 }
@@ -0,0 +1,160 @@
+package org.ligerbots.steamworks.subsystems;
+
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how old vision data is at each step on its way to the motors: captured by the phone,
+ * received by the robot, decoded, first read by a command, and the first drive call after that.
+ * Each step gets a histogram on the dashboard, and a summary goes to the log every so often.
+ *
+ * <p>
+ * {@link #onDecoded(long, long, long)} is only called from the vision network thread, and
+ * {@link #onConsumed(long, long, long)} and {@link #onDrive(long)} only from the main robot thread,
+ * so every histogram has a single writer.
+ * </p>
+ */
+class VisionLatencyTracker {
+  private static final Logger logger = LoggerFactory.getLogger(VisionLatencyTracker.class);
+
+  private static final long LOG_INTERVAL_NANOS = 10_000_000_000L;
+
+  /**
+   * Counts latencies in fixed buckets. The last bucket is everything longer.
+   */
+  static class Histogram {
+    private static final int[] BOUNDS_MS = {2, 5, 10, 20, 35, 50, 75, 100, 150, 250, 500};
+
+    final String name;
+    private final int[] buckets = new int[BOUNDS_MS.length + 1];
+    private volatile int count;
+    private volatile long totalNanos;
+    private volatile long maxNanos;
+
+    Histogram(String name) {
+      this.name = name;
+    }
+
+    void add(long nanos) {
+      if (nanos < 0) {
+        // clocks disagreeing by more than the latency, not worth counting
+        return;
+      }
+      int bucket = 0;
+      while (bucket < BOUNDS_MS.length && nanos > BOUNDS_MS[bucket] * 1_000_000L) {
+        bucket++;
+      }
+      buckets[bucket]++;
+      totalNanos += nanos;
+      if (nanos > maxNanos) {
+        maxNanos = nanos;
+      }
+      count++;
+    }
+
+    double getMeanMs() {
+      int n = count;
+      return n > 0 ? totalNanos / 1e6 / n : 0;
+    }
+
+    /**
+     * Gets the upper bound of the bucket a percentile falls in.
+     *
+     * @param fraction The percentile, from 0 to 1
+     * @return The bound in milliseconds, or the maximum if it's in the last bucket
+     */
+    double getPercentileMs(double fraction) {
+      int n = count;
+      int seen = 0;
+      for (int i = 0; i < BOUNDS_MS.length; i++) {
+        seen += buckets[i];
+        if (seen >= fraction * n) {
+          return BOUNDS_MS[i];
+        }
+      }
+      return maxNanos / 1e6;
+    }
+
+    void registerTelemetry(TelemetryRegistry telemetry) {
+      telemetry.addCounts(name + "_Histogram", Rate.NORMAL, buckets);
+      telemetry.addNumber(name + "_Mean_Ms", Rate.NORMAL, 0.1, this::getMeanMs);
+      telemetry.addNumber(name + "_Max_Ms", Rate.NORMAL, 0.1, () -> maxNanos / 1e6);
+      telemetry.addNumber(name + "_Count", Rate.NORMAL, () -> count);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s n=%d mean=%.1f p50<=%.0f p90<=%.0f max=%.1f ms", name, count,
+          getMeanMs(), getPercentileMs(0.5), getPercentileMs(0.9), maxNanos / 1e6);
+    }
+  }
+
+  final Histogram captureToReceive = new Histogram("Vision_Latency_Capture_To_Receive");
+  final Histogram receiveToDecode = new Histogram("Vision_Latency_Receive_To_Decode");
+  final Histogram decodeToConsume = new Histogram("Vision_Latency_Decode_To_Consume");
+  final Histogram consumeToDrive = new Histogram("Vision_Latency_Consume_To_Drive");
+  final Histogram captureToDrive = new Histogram("Vision_Latency_Capture_To_Drive");
+  private final Histogram[] all =
+      {captureToReceive, receiveToDecode, decodeToConsume, consumeToDrive, captureToDrive};
+
+  // main thread only
+  private boolean waitingForDrive;
+  private long consumedNanos;
+  private long consumedCaptureNanos;
+  private long lastLogNanos = System.nanoTime();
+
+  /**
+   * Records a frame that has just been decoded and published.
+   *
+   * @param captureNanos When the phone took the picture, in robot time
+   * @param receiveNanos When the packet arrived
+   * @param decodedNanos When it was published
+   */
+  void onDecoded(long captureNanos, long receiveNanos, long decodedNanos) {
+    captureToReceive.add(receiveNanos - captureNanos);
+    receiveToDecode.add(decodedNanos - receiveNanos);
+  }
+
+  /**
+   * Records the first time a command reads a frame, or a track it was added to.
+   *
+   * @param captureNanos When the phone took the picture, in robot time
+   * @param decodedNanos When it was published
+   * @param nanos Now
+   */
+  void onConsumed(long captureNanos, long decodedNanos, long nanos) {
+    decodeToConsume.add(nanos - decodedNanos);
+    waitingForDrive = true;
+    consumedNanos = nanos;
+    consumedCaptureNanos = captureNanos;
+  }
+
+  /**
+   * Records a drive call. Only the first one after a frame is read counts.
+   *
+   * @param nanos Now
+   */
+  void onDrive(long nanos) {
+    if (!waitingForDrive) {
+      return;
+    }
+    waitingForDrive = false;
+    consumeToDrive.add(nanos - consumedNanos);
+    captureToDrive.add(nanos - consumedCaptureNanos);
+
+    // captureToDrive has counts now, so there's something worth logging
+    if (nanos - lastLogNanos > LOG_INTERVAL_NANOS) {
+      lastLogNanos = nanos;
+      for (Histogram histogram : all) {
+        logger.info(histogram.toString());
+      }
+    }
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    for (Histogram histogram : all) {
+      histogram.registerTelemetry(telemetry);
+    }
+  }
+}
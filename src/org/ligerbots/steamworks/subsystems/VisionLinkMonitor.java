@@ -0,0 +1,139 @@
+package org.ligerbots.steamworks.subsystems;
+
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * Keeps track of how well one phone's data is getting through: packet rate, how much the time
+ * between packets jumps around, how often the phone can't find the target, and whether it's
+ * connected to NetworkTables. All of that is boiled down into a quality score from 0 to 1, so one
+ * late packet lowers the score a bit instead of making the data invalid.
+ *
+ * <p>
+ * The packet and frame methods are only called from the vision network thread, and the connection
+ * state comes from the NetworkTables listener thread. Everything else can be called from any
+ * thread.
+ * </p>
+ */
+class VisionLinkMonitor {
+  // upper bounds of the packet interval histogram buckets, the last bucket is everything longer
+  private static final int[] HISTOGRAM_BOUNDS_MS = {10, 20, 35, 50, 75, 100, 150, 250, 500};
+  // how fast the averages follow changes, as in RFC 3550 jitter
+  private static final double SMOOTHING = 1.0 / 16;
+  // the phones manage about this many frames a second when they're happy
+  private static final double NOMINAL_RATE = 15;
+  // a target seen this recently is as good as now; after MAX_AGE it's useless
+  private static final long FRESH_AGE_NANOS = 250_000_000L;
+  private static final long MAX_AGE_NANOS = 1_000_000_000L;
+  private static final double JITTER_SCALE_NANOS = 50_000_000;
+
+  final String name;
+  final String remoteId;
+
+  volatile boolean connected;
+  volatile long packets;
+  volatile long frames;
+  volatile long nanFrames;
+
+  private final int[] histogram = new int[HISTOGRAM_BOUNDS_MS.length + 1];
+  private volatile long lastPacketNanos;
+  private volatile long lastGoodFrameNanos;
+  private volatile double averageIntervalNanos;
+  private volatile double jitterNanos;
+  private volatile double nanRate;
+
+  /**
+   * Creates a monitor for one phone.
+   *
+   * @param name The dashboard prefix
+   * @param remoteId The NetworkTables identity the phone connects with
+   */
+  VisionLinkMonitor(String name, String remoteId) {
+    this.name = name;
+    this.remoteId = remoteId;
+  }
+
+  /**
+   * Records that a data packet arrived from this phone, good or not.
+   *
+   * @param nanos When it arrived
+   */
+  void onPacket(long nanos) {
+    if (packets > 0) {
+      long interval = nanos - lastPacketNanos;
+      int bucket = 0;
+      while (bucket < HISTOGRAM_BOUNDS_MS.length
+          && interval > HISTOGRAM_BOUNDS_MS[bucket] * 1_000_000L) {
+        bucket++;
+      }
+      histogram[bucket]++;
+
+      if (packets == 1) {
+        averageIntervalNanos = interval;
+      } else {
+        jitterNanos += (Math.abs(interval - averageIntervalNanos) - jitterNanos) * SMOOTHING;
+        averageIntervalNanos += (interval - averageIntervalNanos) * SMOOTHING;
+      }
+    }
+    lastPacketNanos = nanos;
+    packets++;
+  }
+
+  /**
+   * Records a decoded frame.
+   *
+   * @param nanos When it arrived
+   * @param isNan True if the phone couldn't find the target
+   */
+  void onFrame(long nanos, boolean isNan) {
+    frames++;
+    if (isNan) {
+      nanFrames++;
+      nanRate += (1 - nanRate) * SMOOTHING;
+    } else {
+      lastGoodFrameNanos = nanos;
+      nanRate -= nanRate * SMOOTHING;
+    }
+  }
+
+  /**
+   * Gets the link quality. It drops to 0 when there hasn't been a good frame for a second, and is
+   * otherwise lowered by a low packet rate, jitter and frames without a target.
+   *
+   * @param nanos The current time
+   * @return The quality from 0 to 1
+   */
+  double getQuality(long nanos) {
+    if (frames == nanFrames) {
+      return 0;
+    }
+    long age = nanos - lastGoodFrameNanos;
+    double ageScore = 1 - (double) (age - FRESH_AGE_NANOS) / (MAX_AGE_NANOS - FRESH_AGE_NANOS);
+    ageScore = Math.max(0, Math.min(1, ageScore));
+
+    double rateScore = Math.min(1, getPacketRate() / NOMINAL_RATE);
+    double jitterScore = 1 / (1 + jitterNanos / JITTER_SCALE_NANOS);
+    double quality = ageScore * (0.5 * rateScore + 0.25 * jitterScore + 0.25 * (1 - nanRate));
+    // the data comes over UDP, so it's still usable, but the phone is probably in trouble
+    return connected ? quality : quality * 0.5;
+  }
+
+  /**
+   * Gets the smoothed packet rate.
+   *
+   * @return Packets per second
+   */
+  double getPacketRate() {
+    double interval = averageIntervalNanos;
+    return interval > 0 ? 1e9 / interval : 0;
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber(name + "_Link_Quality", Rate.NORMAL, 0.01,
+        () -> getQuality(System.nanoTime()));
+    telemetry.addNumber(name + "_Link_Rate", Rate.NORMAL, 0.1, this::getPacketRate);
+    telemetry.addNumber(name + "_Link_Jitter_Ms", Rate.NORMAL, 0.1, () -> jitterNanos / 1e6);
+    telemetry.addNumber(name + "_Link_Nan_Percent", Rate.NORMAL, 0.5, () -> nanRate * 100);
+    telemetry.addBoolean(name + "_Link_Connected", Rate.NORMAL, () -> connected);
+    telemetry.addCounts(name + "_Link_Interval_Histogram", Rate.NORMAL, histogram);
+  }
+}
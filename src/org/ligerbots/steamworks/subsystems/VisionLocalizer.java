@@ -0,0 +1,150 @@
+package org.ligerbots.steamworks.subsystems;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import org.ligerbots.steamworks.FieldMap;
+import org.ligerbots.steamworks.FieldPosition;
+import org.ligerbots.steamworks.subsystems.TelemetryRegistry.Rate;
+
+/**
+ * Uses sightings of targets whose field positions are known (the gear lifts and the boiler) to
+ * correct dead reckoning drift. Each sighting says where the robot must have been when the frame
+ * was captured; that is blended into the position with a one-dimensional Kalman filter, where the
+ * position uncertainty grows with the distance driven. The heading is left to the NavX.
+ *
+ * <p>
+ * A sighting is matched to the nearest known target. Sightings that aren't near any of them (the
+ * gear camera also sees the loading station) are ignored, and ones that are too far from where the
+ * robot thinks it is are rejected as outliers. If sightings keep getting rejected, the uncertainty
+ * is raised so the position can catch up after a big slip.
+ * </p>
+ *
+ * <p>
+ * All methods are synchronized: {@link #onOdometry(double)} runs on the odometry thread and
+ * {@link #observe} on the vision network thread.
+ * </p>
+ */
+class VisionLocalizer {
+  static final int TARGET_GEAR_LIFT = 0;
+  static final int TARGET_BOILER = 1;
+
+  // how much the position variance grows per inch driven, in in^2, about a 1% drift
+  private static final double ODOMETRY_VARIANCE_PER_INCH = 0.1;
+  // how certain the position is right after being set from the starting position
+  private static final double INITIAL_VARIANCE = 4;
+  // sightings further than this from every known target aren't one of them
+  private static final double ASSOCIATION_DISTANCE = 48;
+  // 99% point of chi-squared with 2 degrees of freedom
+  private static final double GATE = 9.21;
+  private static final int REJECTS_BEFORE_INFLATE = 5;
+
+  private double variance = INITIAL_VARIANCE;
+  private int rejectsInARow;
+  // the boiler as a candidate list, so the vision thread doesn't allocate one per frame
+  private final FieldPosition[] boilerCandidates = new FieldPosition[1];
+
+  volatile long accepted;
+  volatile long rejected;
+  volatile long ignored;
+  volatile double lastCorrectionX;
+  volatile double lastCorrectionY;
+
+  /**
+   * Grows the position uncertainty as the robot drives.
+   *
+   * @param inches The distance driven since the last call
+   */
+  synchronized void onOdometry(double inches) {
+    variance += ODOMETRY_VARIANCE_PER_INCH * Math.abs(inches);
+  }
+
+  /**
+   * Starts over after the position has been set by hand.
+   */
+  synchronized void reset() {
+    variance = INITIAL_VARIANCE;
+    rejectsInARow = 0;
+  }
+
+  /**
+   * Works out a position correction from one sighting.
+   *
+   * @param target TARGET_GEAR_LIFT or TARGET_BOILER
+   * @param robotX Robot field x when the frame was captured
+   * @param robotY Robot field y when the frame was captured
+   * @param bearing Field direction from the robot to the target, NavX convention
+   * @param range Distance from the robot to the target
+   * @param rangeSigma Standard deviation of the range, inches
+   * @param bearingSigma Standard deviation of the bearing, degrees
+   * @param correction Where to put the {x, y} correction to add to the robot's position
+   * @return True if the sighting was used and correction filled in
+   */
+  synchronized boolean observe(int target, double robotX, double robotY, double bearing,
+      double range, double rangeSigma, double bearingSigma, double[] correction) {
+    DriverStation.Alliance alliance = DriverStation.getInstance().getAlliance();
+    if (alliance == DriverStation.Alliance.Invalid) {
+      return false;
+    }
+    FieldMap map = alliance == DriverStation.Alliance.Blue ? FieldMap.getBlue() : FieldMap.getRed();
+
+    double seenX = robotX + range * Math.sin(Math.toRadians(bearing));
+    double seenY = robotY + range * Math.cos(Math.toRadians(bearing));
+
+    FieldPosition nearest = null;
+    double nearestDistance = ASSOCIATION_DISTANCE;
+    boilerCandidates[0] = map.boiler;
+    FieldPosition[] candidates =
+        target == TARGET_GEAR_LIFT ? map.gearLiftPositions : boilerCandidates;
+    for (FieldPosition candidate : candidates) {
+      double distance = Math.hypot(candidate.getX() - seenX, candidate.getY() - seenY);
+      if (distance < nearestDistance) {
+        nearest = candidate;
+        nearestDistance = distance;
+      }
+    }
+    if (nearest == null) {
+      ignored++;
+      return false;
+    }
+
+    // the robot is off by however far the target appears off, averaged over both directions of the
+    // sighting's error
+    double tangentialSigma = range * Math.toRadians(bearingSigma);
+    double measurementVariance = (rangeSigma * rangeSigma + tangentialSigma * tangentialSigma) / 2;
+    double innovationX = nearest.getX() - seenX;
+    double innovationY = nearest.getY() - seenY;
+    double totalVariance = variance + measurementVariance;
+    double distance = (innovationX * innovationX + innovationY * innovationY) / totalVariance;
+    if (distance > GATE) {
+      rejected++;
+      if (++rejectsInARow >= REJECTS_BEFORE_INFLATE) {
+        variance += measurementVariance;
+        rejectsInARow = 0;
+      }
+      return false;
+    }
+    rejectsInARow = 0;
+
+    double gain = variance / totalVariance;
+    correction[0] = gain * innovationX;
+    correction[1] = gain * innovationY;
+    variance *= 1 - gain;
+
+    lastCorrectionX = correction[0];
+    lastCorrectionY = correction[1];
+    accepted++;
+    return true;
+  }
+
+  synchronized double getSigma() {
+    return Math.sqrt(variance);
+  }
+
+  void registerTelemetry(TelemetryRegistry telemetry) {
+    telemetry.addNumber("Localizer_Sigma", Rate.NORMAL, 0.1, this::getSigma);
+    telemetry.addNumber("Localizer_Accepted", Rate.NORMAL, () -> accepted);
+    telemetry.addNumber("Localizer_Rejected", Rate.NORMAL, () -> rejected);
+    telemetry.addNumber("Localizer_Ignored", Rate.NORMAL, () -> ignored);
+    telemetry.addNumber("Localizer_Last_Correction_X", Rate.NORMAL, 0.1, () -> lastCorrectionX);
+    telemetry.addNumber("Localizer_Last_Correction_Y", Rate.NORMAL, 0.1, () -> lastCorrectionY);
+  }
+}
@@ -0,0 +1,120 @@
+package org.ligerbots.steamworks.subsystems;
+
+/**
+ * Allocation-free replacements for the OpenCV calls the vision data thread used to make. All
+ * matrices are 3x3, stored row-major in a double[9].
+ */
+final class VisionMath {
+  /**
+   * Rotation from the gear camera frame to the robot frame. The gear camera is tilted 15 degrees
+   * about its x axis. This never changes, so it is computed once.
+   */
+  static final double[] GEAR_CAMERA_TILT = rotationAboutX(Math.toRadians(15));
+
+  private VisionMath() {}
+
+  private static double[] rotationAboutX(double alpha) {
+    double cos = Math.cos(alpha);
+    double sin = Math.sin(alpha);
+    // @formatter:off
+    return new double[] {
+        1,   0,    0,
+        0,   cos, -sin,
+        0,   sin,  cos};
+    // @formatter:on
+  }
+
+  /**
+   * Turns the condensed axis-angle representation the phone sends into a rotation matrix. Same
+   * result as Calib3d.Rodrigues, without going through JNI.
+   *
+   * @param rx Rotation vector x
+   * @param ry Rotation vector y
+   * @param rz Rotation vector z
+   * @param out The 3x3 matrix to write to
+   */
+  static void rodrigues(double rx, double ry, double rz, double[] out) {
+    double theta = Math.sqrt(rx * rx + ry * ry + rz * rz);
+    if (theta < 1e-12) {
+      out[0] = 1;
+      out[1] = 0;
+      out[2] = 0;
+      out[3] = 0;
+      out[4] = 1;
+      out[5] = 0;
+      out[6] = 0;
+      out[7] = 0;
+      out[8] = 1;
+      return;
+    }
+
+    double kx = rx / theta;
+    double ky = ry / theta;
+    double kz = rz / theta;
+    double cos = Math.cos(theta);
+    double sin = Math.sin(theta);
+    double oneMinusCos = 1 - cos;
+
+    // R = cos * I + (1 - cos) * k * k^T + sin * [k]x
+    out[0] = cos + oneMinusCos * kx * kx;
+    out[1] = oneMinusCos * kx * ky - sin * kz;
+    out[2] = oneMinusCos * kx * kz + sin * ky;
+    out[3] = oneMinusCos * ky * kx + sin * kz;
+    out[4] = cos + oneMinusCos * ky * ky;
+    out[5] = oneMinusCos * ky * kz - sin * kx;
+    out[6] = oneMinusCos * kz * kx - sin * ky;
+    out[7] = oneMinusCos * kz * ky + sin * kx;
+    out[8] = cos + oneMinusCos * kz * kz;
+  }
+
+  /**
+   * Multiplies two 3x3 matrices. out must not be the same array as a or b.
+   *
+   * @param a Left matrix
+   * @param b Right matrix
+   * @param out Where to put a * b
+   */
+  static void multiply(double[] a, double[] b, double[] out) {
+    for (int row = 0; row < 3; row++) {
+      double a0 = a[row * 3];
+      double a1 = a[row * 3 + 1];
+      double a2 = a[row * 3 + 2];
+      out[row * 3] = a0 * b[0] + a1 * b[3] + a2 * b[6];
+      out[row * 3 + 1] = a0 * b[1] + a1 * b[4] + a2 * b[7];
+      out[row * 3 + 2] = a0 * b[2] + a1 * b[5] + a2 * b[8];
+    }
+  }
+
+  /**
+   * Multiplies a 3x3 matrix by the column vector (x, y, z).
+   *
+   * @param m The matrix
+   * @param x Vector x
+   * @param y Vector y
+   * @param z Vector z
+   * @param out Where to put the resulting vector (length 3)
+   */
+  static void multiply(double[] m, double x, double y, double z, double[] out) {
+    out[0] = m[0] * x + m[1] * y + m[2] * z;
+    out[1] = m[3] * x + m[4] * y + m[5] * z;
+    out[2] = m[6] * x + m[7] * y + m[8] * z;
+  }
+
+  /**
+   * Converts a rotation matrix to pitch, yaw and roll in degrees, each in [0, 360) like
+   * Core.fastAtan2.
+   *
+   * @param m The rotation matrix
+   * @param out Where to put {pitch, yaw, roll}
+   */
+  static void rotationMatrixToEulerAngles(double[] m, double[] out) {
+    out[0] = atan2Degrees(m[5], m[8]);
+    out[1] = atan2Degrees(-m[6], Math.sqrt(m[5] * m[5] + m[8] * m[8]));
+    out[2] = atan2Degrees(m[3], m[0]);
+  }
+
+  private static double atan2Degrees(double y, double x) {
+    double angle = Math.toDegrees(Math.atan2(y, x));
+    return angle < 0 ? angle + 360 : angle;
+  }
+}
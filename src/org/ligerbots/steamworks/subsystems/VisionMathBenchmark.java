@@ -0,0 +1,183 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Compares {@link VisionMath} with the OpenCV calls the vision data thread used to make, on a
+ * desktop with the OpenCV Java bindings. Run
+ *
+ * <pre>
+ * java -Djava.library.path=path/to/opencv/lib -cp bin:opencv.jar \
+ *     org.ligerbots.steamworks.subsystems.VisionMathBenchmark
+ * </pre>
+ *
+ * <p>
+ * and it prints how long decoding one gear packet's pose takes each way, how much Java heap that
+ * allocates (the OpenCV path also allocates native memory, which isn't counted), and the worst
+ * disagreement in the Euler angles and translation.
+ * </p>
+ */
+class VisionMathBenchmark {
+  private static final int POSES = 1000;
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int TIMED_ROUNDS = 100;
+
+  private static final Mat nullMat = new Mat();
+
+  // the same scratch arrays Vision keeps
+  private static final double[] scratchRotation = new double[9];
+  private static final double[] scratchTiltedRotation = new double[9];
+  private static final double[] scratchTranslation = new double[3];
+  private static final double[] scratchEulers = new double[3];
+
+  /**
+   * Runs the comparison.
+   *
+   * @param args Not used
+   */
+  public static void main(String[] args) {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+    // poses like the phones send: any rotation, targets a few feet in front of the camera
+    Random random = new Random(2017);
+    double[][] poses = new double[POSES][];
+    for (int i = 0; i < POSES; i++) {
+      poses[i] = new double[] {random.nextGaussian(), random.nextGaussian(),
+          random.nextGaussian(), random.nextGaussian() * 20, random.nextGaussian() * 10,
+          24 + random.nextDouble() * 100};
+    }
+
+    double[] openCvResult = new double[6];
+    double[] javaResult = new double[6];
+    double worstAngle = 0;
+    double worstTranslation = 0;
+    for (double[] pose : poses) {
+      decodeOpenCv(pose, openCvResult);
+      decodeJava(pose, javaResult);
+      for (int i = 0; i < 3; i++) {
+        double angle = Math.abs(openCvResult[i] - javaResult[i]);
+        worstAngle = Math.max(worstAngle, Math.min(angle, 360 - angle));
+        worstTranslation =
+            Math.max(worstTranslation, Math.abs(openCvResult[i + 3] - javaResult[i + 3]));
+      }
+    }
+
+    Result openCv = time(poses, true);
+    Result java = time(poses, false);
+    System.out.println(String.format("OpenCV:     %8.0f ns, %6.0f heap bytes per packet",
+        openCv.nanosPerPacket, openCv.bytesPerPacket));
+    System.out.println(String.format("VisionMath: %8.0f ns, %6.0f heap bytes per packet",
+        java.nanosPerPacket, java.bytesPerPacket));
+    System.out.println(String.format(
+        "Worst disagreement: %.4f degrees (fastAtan2 is only good to about 0.3), %.2e inches",
+        worstAngle, worstTranslation));
+  }
+
+  private static class Result {
+    double nanosPerPacket;
+    double bytesPerPacket;
+  }
+
+  private static Result time(double[][] poses, boolean openCv) {
+    double[] out = new double[6];
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      run(poses, openCv, out);
+    }
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long startBytes = threads.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    for (int round = 0; round < TIMED_ROUNDS; round++) {
+      run(poses, openCv, out);
+    }
+    long nanos = System.nanoTime() - start;
+    long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+
+    Result result = new Result();
+    result.nanosPerPacket = (double) nanos / (TIMED_ROUNDS * poses.length);
+    result.bytesPerPacket = (double) bytes / (TIMED_ROUNDS * poses.length);
+    return result;
+  }
+
+  private static void run(double[][] poses, boolean openCv, double[] out) {
+    for (double[] pose : poses) {
+      if (openCv) {
+        decodeOpenCv(pose, out);
+      } else {
+        decodeJava(pose, out);
+      }
+    }
+  }
+
+  /**
+   * The gear packet math the way Vision did it before VisionMath, Mats and all.
+   *
+   * @param pose {rvec x, y, z, tvec x, y, z}
+   * @param out Where to put {pitch, yaw, roll, x, y, z}
+   */
+  private static void decodeOpenCv(double[] pose, double[] out) {
+    Mat rvec = new Mat(1, 3, CvType.CV_64F);
+    rvec.put(0, 0, pose[0], pose[1], pose[2]);
+    Mat rotationMatrix = new Mat();
+    Calib3d.Rodrigues(rvec, rotationMatrix);
+
+    Mat transform = Mat.eye(3, 3, CvType.CV_64F);
+    double alpha = Math.toRadians(15);
+    // @formatter:off
+    transform.put(0, 0,
+        1,     0,                0,
+        0,     Math.cos(alpha), -Math.sin(alpha),
+        0,     Math.sin(alpha),  Math.cos(alpha));
+    // @formatter:on
+    Core.gemm(rotationMatrix, transform, 1, nullMat, 0, rotationMatrix);
+
+    Mat translation = new Mat(3, 1, CvType.CV_64F);
+    translation.put(0, 0, pose[3], pose[4], pose[5]);
+    Core.gemm(transform, translation, 1, nullMat, 0, translation);
+
+    out[0] = Core.fastAtan2((float) rotationMatrix.get(1, 2)[0],
+        (float) rotationMatrix.get(2, 2)[0]);
+    out[1] = Core.fastAtan2((float) -rotationMatrix.get(2, 0)[0],
+        (float) Math.sqrt(rotationMatrix.get(1, 2)[0] * rotationMatrix.get(1, 2)[0]
+            + rotationMatrix.get(2, 2)[0] * rotationMatrix.get(2, 2)[0]));
+    out[2] = Core.fastAtan2((float) rotationMatrix.get(1, 0)[0],
+        (float) rotationMatrix.get(0, 0)[0]);
+    out[3] = translation.get(0, 0)[0];
+    out[4] = translation.get(1, 0)[0];
+    out[5] = translation.get(2, 0)[0];
+
+    // Vision left these for the finalizers; release them here so the run doesn't depend on when
+    // the GC gets around to it
+    rvec.release();
+    rotationMatrix.release();
+    transform.release();
+    translation.release();
+  }
+
+  /**
+   * The gear packet math the way Vision does it now.
+   *
+   * @param pose {rvec x, y, z, tvec x, y, z}
+   * @param out Where to put {pitch, yaw, roll, x, y, z}
+   */
+  private static void decodeJava(double[] pose, double[] out) {
+    VisionMath.rodrigues(pose[0], pose[1], pose[2], scratchRotation);
+    VisionMath.multiply(scratchRotation, VisionMath.GEAR_CAMERA_TILT, scratchTiltedRotation);
+    VisionMath.multiply(VisionMath.GEAR_CAMERA_TILT, pose[3], pose[4], pose[5],
+        scratchTranslation);
+    VisionMath.rotationMatrixToEulerAngles(scratchTiltedRotation, scratchEulers);
+    out[0] = scratchEulers[0];
+    out[1] = scratchEulers[1];
+    out[2] = scratchEulers[2];
+    out[3] = scratchTranslation[0];
+    out[4] = scratchTranslation[1];
+    out[5] = scratchTranslation[2];
+  }
+}
@@ -0,0 +1,144 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends every raw vision UDP packet, with the time it was received, to a memory-mapped file so a
+ * match can be played back later with {@link VisionPacketReplay}. Recording a packet is only a copy
+ * into the page cache, and the kernel writes the pages back on its own within about half a minute.
+ * Nothing here waits for that, so the network thread never blocks on flash I/O. A brownout only
+ * stops the robot code, not the kernel, so a recording is only cut short by losing power.
+ *
+ * <p>
+ * The file starts with a 16 byte header: magic int, version int, and the wall clock time in
+ * milliseconds when recording started. After that come the records: port byte (PORT_DATA or
+ * PORT_STREAM), receive time in System.nanoTime() nanoseconds, packet length int, then the packet
+ * bytes. The file is mapped in fixed size segments and a record never crosses a segment boundary,
+ * so a zero port byte, or too little space left for a record header, means the rest of the segment
+ * is unused.
+ * </p>
+ *
+ * <p>
+ * Only the vision network thread may call {@link #record(byte, long, ByteBuffer)}.
+ * </p>
+ */
+class VisionPacketRecorder {
+  private static final Logger logger = LoggerFactory.getLogger(VisionPacketRecorder.class);
+
+  static final byte PORT_DATA = 1;
+  static final byte PORT_STREAM = 2;
+
+  static final int FILE_MAGIC = 0x4C565231; // "LVR1"
+  static final int FILE_VERSION = 1;
+  static final int FILE_HEADER_LENGTH = 4 + 4 + 8;
+  // port byte + receive nanos + length
+  static final int RECORD_HEADER_LENGTH = 1 + 8 + 4;
+  static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+  // bigger than any UDP payload
+  static final int MAX_PACKET_LENGTH = 65536;
+  // left free for the logs and everything else on the roboRIO
+  static final long FREE_SPACE_MARGIN = 64L * 1024 * 1024;
+
+  volatile long recordedPackets;
+  volatile long recordedBytes;
+  volatile long droppedPackets;
+
+  private final FileChannel channel;
+  private final File directory;
+  private final long maxBytes;
+  private MappedByteBuffer segment;
+  private long segmentOffset;
+  private boolean full;
+
+  /**
+   * Creates a new recording.
+   *
+   * @param file The file to record to. It must not exist yet.
+   * @param maxBytes The most disk space to use. Packets after this, or after the disk is nearly
+   *     full, are dropped.
+   */
+  VisionPacketRecorder(File file, long maxBytes) throws IOException {
+    this.maxBytes = maxBytes;
+    directory = file.getAbsoluteFile().getParentFile();
+    // writing to a mapped page the disk has no room for crashes the JVM, so check before mapping
+    if (!hasSpaceForSegment(0)) {
+      throw new IOException("Not enough space for a vision recording");
+    }
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    segment.putInt(FILE_MAGIC);
+    segment.putInt(FILE_VERSION);
+    segment.putLong(System.currentTimeMillis());
+    recordedBytes = FILE_HEADER_LENGTH;
+    logger.info(String.format("Recording vision packets to %s", file));
+  }
+
+  /**
+   * Appends a packet. The packet's position and limit are left as they were.
+   *
+   * @param port PORT_DATA or PORT_STREAM
+   * @param receiveNanos When the packet was received
+   * @param packet The packet, from its position to its limit
+   */
+  void record(byte port, long receiveNanos, ByteBuffer packet) {
+    int length = packet.remaining();
+    int recordLength = RECORD_HEADER_LENGTH + length;
+    if (full || length > MAX_PACKET_LENGTH) {
+      droppedPackets++;
+      return;
+    }
+    if (segment.remaining() < recordLength && !nextSegment()) {
+      droppedPackets++;
+      return;
+    }
+
+    int position = packet.position();
+    segment.put(port);
+    segment.putLong(receiveNanos);
+    segment.putInt(length);
+    segment.put(packet);
+    packet.position(position);
+    recordedPackets++;
+    recordedBytes = segmentOffset + segment.position();
+  }
+
+  private boolean nextSegment() {
+    if (segmentOffset + 2L * SEGMENT_SIZE > maxBytes
+        || !hasSpaceForSegment(SEGMENT_SIZE - segment.position())) {
+      logger.warn("Vision recording is full, no more packets will be recorded");
+      full = true;
+      return false;
+    }
+    try {
+      segmentOffset += SEGMENT_SIZE;
+      segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentOffset, SEGMENT_SIZE);
+      return true;
+    } catch (IOException ex) {
+      logger.error("Could not extend vision recording", ex);
+      full = true;
+      return false;
+    }
+  }
+
+  /**
+   * Checks that the disk can back another segment and still keep the margin free.
+   *
+   * @param unwritten Bytes already mapped that haven't taken up disk space yet
+   */
+  private boolean hasSpaceForSegment(long unwritten) {
+    long usable = directory.getUsableSpace();
+    if (usable - FREE_SPACE_MARGIN - unwritten >= SEGMENT_SIZE) {
+      return true;
+    }
+    logger.warn(String.format("Only %d MB free for the vision recording", usable / 1000000));
+    return false;
+  }
+}
@@ -0,0 +1,140 @@
+package org.ligerbots.steamworks.subsystems;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plays back a file written by {@link VisionPacketRecorder}, handing each packet to a
+ * {@link PacketHandler} at the speed it was originally received, or faster. Packets are copied into
+ * one reused buffer, so playback doesn't allocate per packet.
+ */
+class VisionPacketReplay {
+  private static final Logger logger = LoggerFactory.getLogger(VisionPacketReplay.class);
+
+  /**
+   * Receives replayed packets.
+   */
+  interface PacketHandler {
+    /**
+     * Handles one packet.
+     *
+     * @param port VisionPacketRecorder.PORT_DATA or PORT_STREAM
+     * @param receiveNanos When the packet is being delivered, in System.nanoTime() nanoseconds
+     * @param packet The packet, starting at position 0. Only valid until this returns.
+     */
+    void handlePacket(byte port, long receiveNanos, ByteBuffer packet);
+  }
+
+  private final MappedByteBuffer file;
+  private final double speed;
+  private final ByteBuffer packet =
+      ByteBuffer.allocateDirect(VisionPacketRecorder.MAX_PACKET_LENGTH);
+
+  /**
+   * Opens a recording.
+   *
+   * @param file The recording
+   * @param speed How many times faster than real time to play it, or 0 to play it as fast as the
+   *        handler can go
+   */
+  VisionPacketReplay(File file, double speed) throws IOException {
+    this.speed = speed;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      this.file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (this.file.remaining() < VisionPacketRecorder.FILE_HEADER_LENGTH
+        || this.file.getInt() != VisionPacketRecorder.FILE_MAGIC) {
+      throw new IOException(file + " is not a vision recording");
+    }
+    int version = this.file.getInt();
+    if (version != VisionPacketRecorder.FILE_VERSION) {
+      throw new IOException(String.format("Unknown vision recording version %d", version));
+    }
+    long startMillis = this.file.getLong();
+    logger.info(String.format("Replaying vision packets from %s, recorded at %d, speed %f", file,
+        startMillis, speed));
+  }
+
+  /**
+   * Plays back the whole recording on the calling thread.
+   *
+   * @param handler Where to send the packets
+   * @return The number of packets played
+   */
+  long run(PacketHandler handler) {
+    long count = 0;
+    long firstRecordedNanos = 0;
+    long startNanos = System.nanoTime();
+
+    while (seekToRecord()) {
+      byte port = file.get();
+      long recordedNanos = file.getLong();
+      int length = file.getInt();
+      if (length < 0 || length > file.remaining()
+          || length > VisionPacketRecorder.MAX_PACKET_LENGTH) {
+        logger.warn("Vision recording is truncated");
+        break;
+      }
+
+      if (count == 0) {
+        firstRecordedNanos = recordedNanos;
+      }
+
+      long deliverNanos;
+      if (speed > 0) {
+        deliverNanos = startNanos + (long) ((recordedNanos - firstRecordedNanos) / speed);
+        long waitNanos;
+        while ((waitNanos = deliverNanos - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(waitNanos);
+        }
+      } else {
+        deliverNanos = System.nanoTime();
+      }
+
+      int end = file.position() + length;
+      int limit = file.limit();
+      file.limit(end);
+      packet.clear();
+      packet.put(file);
+      packet.flip();
+      file.limit(limit);
+
+      handler.handlePacket(port, deliverNanos, packet);
+      count++;
+    }
+
+    logger.info(String.format("Vision replay finished after %d packets", count));
+    return count;
+  }
+
+  /**
+   * Skips the unused end of a segment if needed.
+   *
+   * @return True if the file is positioned at a record
+   */
+  private boolean seekToRecord() {
+    while (true) {
+      int position = file.position();
+      int segmentLeft =
+          VisionPacketRecorder.SEGMENT_SIZE - position % VisionPacketRecorder.SEGMENT_SIZE;
+      if (segmentLeft >= VisionPacketRecorder.RECORD_HEADER_LENGTH
+          && file.remaining() >= VisionPacketRecorder.RECORD_HEADER_LENGTH
+          && file.get(position) != 0) {
+        return true;
+      }
+
+      long nextSegment = (long) position + segmentLeft;
+      if (nextSegment >= file.limit()) {
+        return false;
+      }
+      file.position((int) nextSegment);
+    }
+  }
+}